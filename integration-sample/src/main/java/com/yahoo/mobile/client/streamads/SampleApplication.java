@@ -4,6 +4,8 @@ import android.app.Application;
 import android.util.Log;
 
 import com.flurry.android.FlurryAgent;
+import com.flurry.android.FlurryAgentListener;
+import com.yahoo.mobile.library.streamads.StreamAds;
 
 public class SampleApplication extends Application {
 
@@ -13,6 +15,13 @@ public class SampleApplication extends Application {
         super.onCreate();
         FlurryAgent.setLogLevel(Log.DEBUG);
         FlurryAgent.setLogEnabled(true);
+        FlurryAgent.setFlurryAgentListener(new FlurryAgentListener() {
+            @Override
+            public void onSessionStarted() {
+                // Lets ad adapters start fetching right away
+                StreamAds.notifySessionStarted();
+            }
+        });
         FlurryAgent.init(this, FLURRY_API_KEY);
     }
 }
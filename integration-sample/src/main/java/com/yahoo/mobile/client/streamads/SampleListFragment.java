@@ -68,6 +68,7 @@ public class SampleListFragment extends ListFragment implements NativeAdAdapter.
         adListAdapter.setRetryFailedAdPositions(false);
 
         setListAdapter(adListAdapter);
+        getListView().setOnScrollListener(adListAdapter.wrapOnScrollListener(null));
 
         ((FlurryAdListAdapter)getListAdapter()).refreshAds();
     }
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2015 Yahoo Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.mobile.library.streamads;
+
+import android.support.annotation.MainThread;
+import android.support.annotation.NonNull;
+import android.widget.ImageView;
+
+/**
+ * <p>Loads the image assets of native ads into ad views, instead of the Flurry SDK. Set one on
+ * the adapter builder to control how ad images are downloaded, cached and decoded.</p>
+ *
+ * <p>The library comes with {@link CachingAdImageLoader}, which keeps images in a memory and a
+ * disk cache.</p>
+ */
+public interface AdImageLoader {
+
+    /**
+     * Loads an image into a view, replacing any load still pending for the view. The view is
+     * cleared until the image is loaded.
+     *
+     * @param url the URL of the image asset
+     * @param imageView the view to show the image in
+     * @param targetWidth the width the image is shown at, in pixels, or 0 if not known
+     * @param targetHeight the height the image is shown at, in pixels, or 0 if not known
+     */
+    @MainThread
+    void loadImage(@NonNull String url, @NonNull ImageView imageView, int targetWidth,
+                   int targetHeight);
+
+    /**
+     * Cancels the load pending for a view, e.g. because the view is cleared or shows another
+     * ad. Noop if no load is pending.
+     *
+     * @param imageView the view the image was loaded into
+     */
+    @MainThread
+    void cancelLoad(@NonNull ImageView imageView);
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015 Yahoo Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.mobile.library.streamads;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.app.Application;
+import android.os.Build;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * <p>Watches the lifecycle of the Activity housing an ad adapter and forwards the events the
+ * adapter cares about to a {@link LifecycleListener}.</p>
+ *
+ * <p>The controller registers itself with the Application at most once, however many times
+ * {@link #register()} is called, and unregisters itself when the Activity is destroyed.</p>
+ */
+@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+final class AdLifecycleController implements Application.ActivityLifecycleCallbacks {
+    private final WeakReference<Activity> mActivityReference;
+    private final Application mApplication;
+    private final LifecycleListener mLifecycleListener;
+    private boolean mRegistered;
+
+    AdLifecycleController(@NonNull Activity activity,
+                          @NonNull LifecycleListener lifecycleListener) {
+        mActivityReference = new WeakReference<>(activity);
+        mApplication = activity.getApplication();
+        mLifecycleListener = lifecycleListener;
+    }
+
+    /**
+     * Checks if Activity lifecycle events can be observed for a given context. This requires an
+     * Activity context and API 14+.
+     *
+     * @param context the context the ad adapter was created with
+     * @return <code>true</code> if a controller can be created for the context
+     */
+    static boolean isSupported(Object context) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH &&
+                context instanceof Activity;
+    }
+
+    /**
+     * Starts observing the Activity. Noop if already observing.
+     */
+    void register() {
+        if (!mRegistered) {
+            mApplication.registerActivityLifecycleCallbacks(this);
+            mRegistered = true;
+        }
+    }
+
+    /**
+     * Stops observing the Activity. Noop if not observing.
+     */
+    void unregister() {
+        if (mRegistered) {
+            mApplication.unregisterActivityLifecycleCallbacks(this);
+            mRegistered = false;
+        }
+    }
+
+    @Override
+    public void onActivityCreated(Activity activity, Bundle savedInstanceState) {}
+
+    @Override
+    public void onActivityStarted(Activity activity) {
+        if (activity == mActivityReference.get()) {
+            mLifecycleListener.onStarted();
+        }
+    }
+
+    @Override
+    public void onActivityResumed(Activity activity) {}
+
+    @Override
+    public void onActivityPaused(Activity activity) {}
+
+    @Override
+    public void onActivityStopped(Activity activity) {
+        if (activity == mActivityReference.get()) {
+            mLifecycleListener.onStopped();
+        }
+    }
+
+    @Override
+    public void onActivitySaveInstanceState(Activity activity, Bundle outState) {}
+
+    @Override
+    public void onActivityDestroyed(Activity activity) {
+        if (activity == mActivityReference.get()) {
+            unregister();
+            mLifecycleListener.onDestroyed(activity.isFinishing());
+        }
+    }
+
+    /**
+     * Callback interface for the Activity lifecycle events that affect ads.
+     */
+    interface LifecycleListener {
+        /**
+         * The Activity became visible again.
+         */
+        void onStarted();
+
+        /**
+         * The Activity is no longer visible, e.g. the app went to the background.
+         */
+        void onStopped();
+
+        /**
+         * The Activity was destroyed. The controller has already unregistered itself.
+         *
+         * @param isFinishing <code>true</code> if the Activity is finishing rather than being
+         *                    recreated
+         */
+        void onDestroyed(boolean isFinishing);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 Yahoo Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.mobile.library.streamads;
+
+import android.support.annotation.Nullable;
+
+import com.flurry.android.ads.FlurryAdNative;
+
+import java.util.List;
+
+/**
+ * An ad placed in the adapter, anchored to the stable ID of the wrapped item that it follows.
+ */
+final class AdPlacement {
+    /**
+     * Anchor ID of placements that do not follow an item, or whose wrapped adapter does not have
+     * stable IDs.
+     */
+    static final long NO_ANCHOR = Long.MIN_VALUE;
+
+    /**
+     * Expand states of an expandable ad. The default state follows the expandable ad mode of the
+     * adapter.
+     */
+    static final int EXPAND_STATE_DEFAULT = 0;
+    static final int EXPAND_STATE_EXPANDED = 1;
+    static final int EXPAND_STATE_COLLAPSED = 2;
+
+    /**
+     * The ad shown in this placement. Null if the ad was released after the placement left the
+     * residency window, in which case a new ad is popped when the placement is bound again. Only
+     * set by the adapter's <code>setPlacementAd()</code>, which keeps placements findable by ad.
+     */
+    @Nullable FlurryAdNative flurryAdNative;
+    /**
+     * Further ads shown after {@link #flurryAdNative} when the slot is a carousel, or null. They
+     * are taken from the queue and released together with the first ad. Only set by the
+     * adapter's <code>setCarouselAds()</code>.
+     */
+    @Nullable List<FlurryAdNative> carouselAds;
+    long anchorId;
+    /**
+     * The key of this placement in the adapter's position mapping, kept in sync whenever the
+     * mapping is rebuilt so the placement can be located without a scan.
+     */
+    int layoutPosition;
+    /**
+     * Whether the ad expired without a replacement and the slot is about to be removed. Until
+     * then the slot is still counted but has no ad to show.
+     */
+    boolean pendingCollapse;
+    /**
+     * Whether the ad has logged an impression. Ads that have not can be reused in another slot.
+     */
+    boolean impressed;
+    /**
+     * Uptime until which the slot is shown as a placeholder while waiting for an ad, or 0 if it
+     * is not waiting. Only used in reservation mode.
+     */
+    long reservedUntilMillis;
+    /**
+     * Whether the user expanded or collapsed the ad. Reset when the placement gets another ad.
+     */
+    int expandState = EXPAND_STATE_DEFAULT;
+    /**
+     * Uptime at which the ad is swapped for the next queued ad, or 0 if no rotation is scheduled.
+     * Only used when ads are rotated.
+     */
+    long rotateAtMillis;
+    /**
+     * Whether the ad was due for rotation while off-screen. It is rotated after it has been back
+     * on screen for a full rotation interval.
+     */
+    boolean rotationDue;
+
+    AdPlacement(long anchorId) {
+        this.anchorId = anchorId;
+    }
+}
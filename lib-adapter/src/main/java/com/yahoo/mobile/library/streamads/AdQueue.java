@@ -0,0 +1,181 @@
+/*
+ * Copyright 2015 Yahoo Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.mobile.library.streamads;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.flurry.android.ads.FlurryAdNative;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * <p>Queue of fetched ads, indexed by the optional assets each ad has, so that the oldest ad
+ * with the assets a layout variant shows can be polled without scanning the queue.</p>
+ *
+ * <p>Ads are kept in one FIFO bucket per combination of asset flags, see
+ * {@link FlurryNativeAdViewBuilder#getAssetFlags(FlurryAdNative)}. Every ad gets a sequence
+ * number when it is added, so the oldest ad across buckets is found by comparing the bucket
+ * heads.</p>
+ */
+final class AdQueue implements Iterable<FlurryAdNative> {
+    private final ArrayDeque<Entry>[] mBuckets;
+    private long mHeadSequence;
+    private long mTailSequence;
+    private int mSize;
+
+    @SuppressWarnings("unchecked")
+    AdQueue() {
+        mBuckets = new ArrayDeque[FlurryNativeAdViewBuilder.ASSET_FLAG_COMBINATIONS];
+        for (int i = 0; i < mBuckets.length; i++) {
+            mBuckets[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Adds an ad at the end of the queue.
+     *
+     * @param flurryAdNative the ad to add
+     */
+    void addLast(@NonNull FlurryAdNative flurryAdNative) {
+        getBucket(flurryAdNative).addLast(new Entry(flurryAdNative, mTailSequence++));
+        mSize++;
+    }
+
+    /**
+     * Adds an ad at the front of the queue, so that it is the next ad to be polled.
+     *
+     * @param flurryAdNative the ad to add
+     */
+    void addFirst(@NonNull FlurryAdNative flurryAdNative) {
+        getBucket(flurryAdNative).addFirst(new Entry(flurryAdNative, --mHeadSequence));
+        mSize++;
+    }
+
+    /**
+     * Removes the oldest ad in the queue.
+     *
+     * @return the oldest ad, or <code>null</code> if the queue is empty
+     */
+    @Nullable
+    FlurryAdNative pollFirst() {
+        return pollOldest(0);
+    }
+
+    /**
+     * Removes the oldest ad that has exactly the given assets, or else the oldest ad that has
+     * them among others. Ads with more assets are left for the layouts that show them.
+     *
+     * @param assetFlags the assets the ad needs, see
+     *                   {@link FlurryNativeAdViewBuilder#getRequiredAssetFlags(NativeAdViewBinder)}
+     * @return the ad, or <code>null</code> if no queued ad has the assets
+     */
+    @Nullable
+    FlurryAdNative pollFirst(int assetFlags) {
+        if (!mBuckets[assetFlags].isEmpty()) {
+            mSize--;
+            return mBuckets[assetFlags].pollFirst().flurryAdNative;
+        }
+        return pollOldest(assetFlags);
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    void clear() {
+        for (ArrayDeque<Entry> bucket : mBuckets) {
+            bucket.clear();
+        }
+        mSize = 0;
+    }
+
+    /**
+     * Iterates over the queued ads, bucket by bucket. Ads can be removed through the iterator.
+     */
+    @Override
+    public Iterator<FlurryAdNative> iterator() {
+        return new Iterator<FlurryAdNative>() {
+            private int mBucketIndex;
+            private Iterator<Entry> mBucketIterator = mBuckets[0].iterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!mBucketIterator.hasNext() && mBucketIndex < mBuckets.length - 1) {
+                    mBucketIterator = mBuckets[++mBucketIndex].iterator();
+                }
+                return mBucketIterator.hasNext();
+            }
+
+            @Override
+            public FlurryAdNative next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return mBucketIterator.next().flurryAdNative;
+            }
+
+            @Override
+            public void remove() {
+                mBucketIterator.remove();
+                mSize--;
+            }
+        };
+    }
+
+    /*
+     Removes the oldest ad of the buckets whose asset flags include the given ones
+     */
+    @Nullable
+    private FlurryAdNative pollOldest(int assetFlags) {
+        ArrayDeque<Entry> oldestBucket = null;
+        for (int flags = 0; flags < mBuckets.length; flags++) {
+            ArrayDeque<Entry> bucket = mBuckets[flags];
+            if ((flags & assetFlags) == assetFlags && !bucket.isEmpty() &&
+                    (oldestBucket == null ||
+                    bucket.peekFirst().sequence < oldestBucket.peekFirst().sequence)) {
+                oldestBucket = bucket;
+            }
+        }
+
+        if (oldestBucket == null) {
+            return null;
+        }
+        mSize--;
+        return oldestBucket.pollFirst().flurryAdNative;
+    }
+
+    private ArrayDeque<Entry> getBucket(@NonNull FlurryAdNative flurryAdNative) {
+        return mBuckets[FlurryNativeAdViewBuilder.getAssetFlags(flurryAdNative)];
+    }
+
+    private static final class Entry {
+        final FlurryAdNative flurryAdNative;
+        final long sequence;
+
+        Entry(FlurryAdNative flurryAdNative, long sequence) {
+            this.flurryAdNative = flurryAdNative;
+            this.sequence = sequence;
+        }
+    }
+}
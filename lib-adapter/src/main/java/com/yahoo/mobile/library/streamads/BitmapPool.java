@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015 Yahoo Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.mobile.library.streamads;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * <p>Size-bounded pool of bitmaps that are no longer shown or cached, to decode new images into
+ * with <code>BitmapFactory.Options#inBitmap</code> instead of allocating new bitmaps. The oldest
+ * bitmaps are dropped once the pool is over its size.</p>
+ *
+ * <p>Only used from API 19, which can decode an image of any size into a large enough bitmap.
+ * The pool stays empty on older versions. Safe to use from several threads.</p>
+ */
+final class BitmapPool {
+    /**
+     * Bytes per pixel of the ARGB_8888 bitmaps images are decoded into by default.
+     */
+    static final int BYTES_PER_PIXEL = 4;
+
+    private final long mMaxBytes;
+    private long mSize;
+    // Oldest first
+    private final LinkedList<Bitmap> mBitmaps = new LinkedList<>();
+
+    BitmapPool(long maxBytes) {
+        mMaxBytes = Math.max(maxBytes, 0);
+    }
+
+    /**
+     * @return <code>true</code> if decoded images can reuse bitmaps of other sizes on this device
+     */
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    /**
+     * Adds a bitmap to the pool. The caller must not use it anymore. Noop for bitmaps that cannot
+     * be decoded into, i.e. immutable or recycled ones.
+     *
+     * @param bitmap the bitmap to reuse
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    synchronized void put(@NonNull Bitmap bitmap) {
+        if (!isSupported() || !bitmap.isMutable() || bitmap.isRecycled() ||
+                bitmap.getAllocationByteCount() > mMaxBytes) {
+            return;
+        }
+
+        mBitmaps.addLast(bitmap);
+        mSize += bitmap.getAllocationByteCount();
+        while (mSize > mMaxBytes) {
+            // Left to the garbage collector, so that nothing still drawing it breaks
+            mSize -= mBitmaps.removeFirst().getAllocationByteCount();
+        }
+    }
+
+    /**
+     * Takes the smallest pooled bitmap that an image of the given size can be decoded into.
+     *
+     * @param byteCount the number of bytes of the decoded image
+     * @return the bitmap, or null if none is large enough
+     */
+    @Nullable
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    synchronized Bitmap get(long byteCount) {
+        Bitmap bestFit = null;
+        for (Bitmap bitmap : mBitmaps) {
+            int allocationByteCount = bitmap.getAllocationByteCount();
+            if (allocationByteCount >= byteCount && (bestFit == null ||
+                    allocationByteCount < bestFit.getAllocationByteCount())) {
+                bestFit = bitmap;
+            }
+        }
+        if (bestFit != null) {
+            remove(bestFit);
+        }
+        return bestFit;
+    }
+
+    /**
+     * Takes a bitmap back out of the pool, e.g. because it is shown again.
+     *
+     * @param bitmap the pooled bitmap
+     * @return <code>true</code> if the bitmap was in the pool
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    synchronized boolean remove(@NonNull Bitmap bitmap) {
+        Iterator<Bitmap> iterator = mBitmaps.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() == bitmap) {
+                iterator.remove();
+                mSize -= bitmap.getAllocationByteCount();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops all pooled bitmaps.
+     */
+    synchronized void clear() {
+        mBitmaps.clear();
+        mSize = 0;
+    }
+}
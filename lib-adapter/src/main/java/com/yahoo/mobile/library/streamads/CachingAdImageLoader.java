@@ -0,0 +1,486 @@
+/*
+ * Copyright 2015 Yahoo Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.mobile.library.streamads;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>{@link AdImageLoader} that keeps ad images in a size-bounded memory cache of decoded
+ * bitmaps, in front of a size-bounded disk cache of downloaded files. Branding logos and rating
+ * images that many ads share are then downloaded and decoded once.</p>
+ *
+ * <p>Images are decoded on background threads, scaled down to cover the view they are shown in.
+ * From API 19, they are decoded into bitmaps that are no longer shown or cached, e.g. those of
+ * recycled ad rows, instead of new ones. Share one instance between the ad adapters of an app,
+ * so that they share the caches.</p>
+ */
+public final class CachingAdImageLoader implements AdImageLoader {
+    private static final String TAG = CachingAdImageLoader.class.getName();
+    private static final String DISK_CACHE_DIRECTORY = "streamads-images";
+    /**
+     * Default size of the disk cache, in bytes.
+     */
+    private static final long DEFAULT_DISK_CACHE_BYTES = 10 * 1024 * 1024;
+    /**
+     * Default size of the memory cache, as a fraction of the maximum heap size.
+     */
+    private static final int DEFAULT_MEMORY_CACHE_FRACTION = 16;
+    /**
+     * Size of the pool of reusable bitmaps, as a fraction of the memory cache size.
+     */
+    private static final int BITMAP_POOL_FRACTION = 4;
+    private static final int LOADER_THREAD_COUNT = 2;
+    /**
+     * Density that images are scaled from when decoded, with a target density of the scale
+     * times this. Large enough to scale to the pixel.
+     */
+    private static final int SCALING_DENSITY = 1 << 16;
+
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final ImageDiskCache mDiskCache;
+    private final BitmapPool mBitmapPool;
+    private final ExecutorService mExecutor;
+    private final Handler mMainHandler;
+    /*
+    Cache key of the latest load of each view, so that images loaded after the view was
+    cancelled or reused are dropped. Only used on the main thread.
+     */
+    private final Map<ImageView, String> mPendingLoads = new WeakHashMap<>();
+    /*
+    Bitmap the loader shows in each view, until the view is cleared. Views that are garbage
+    collected without being cleared are enqueued, so that their bitmaps are released. Only used on
+    the main thread.
+     */
+    private final Map<ImageView, ShownBitmap> mShownBitmaps = new WeakHashMap<>();
+    private final ReferenceQueue<ImageView> mCollectedViews = new ReferenceQueue<>();
+
+    /*
+    A bitmap is only pooled once it is neither in the memory cache nor shown or about to be shown
+    in a view, since decoding into it overwrites its pixels. Guarded by mBitmapLock.
+     */
+    private final Object mBitmapLock = new Object();
+    // Bitmaps in the memory cache
+    private final Set<Bitmap> mCachedBitmaps =
+            Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>());
+    // Number of views each bitmap is shown or about to be shown in
+    private final Map<Bitmap, Integer> mBitmapUseCounts = new IdentityHashMap<>();
+
+    /**
+     * Creates an image loader with a memory cache of 1/16th of the heap and a 10MB disk cache.
+     *
+     * @param context a context to get the cache directory of the app from
+     */
+    public CachingAdImageLoader(@NonNull Context context) {
+        this(context, (int) (Runtime.getRuntime().maxMemory() / DEFAULT_MEMORY_CACHE_FRACTION),
+                DEFAULT_DISK_CACHE_BYTES);
+    }
+
+    /**
+     * Creates an image loader with the given cache sizes.
+     *
+     * @param context a context to get the cache directory of the app from
+     * @param memoryCacheBytes the maximum size of the decoded bitmaps kept in memory, in bytes
+     * @param diskCacheBytes the maximum size of the downloaded images kept on disk, in bytes
+     */
+    public CachingAdImageLoader(@NonNull Context context, int memoryCacheBytes,
+                                long diskCacheBytes) {
+        mMemoryCache = new LruCache<String, Bitmap>(Math.max(memoryCacheBytes, 1)) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                // getByteCount() is API 12+
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue,
+                                        Bitmap newValue) {
+                onBitmapUncached(oldValue);
+            }
+        };
+        mBitmapPool = new BitmapPool(Math.max(memoryCacheBytes, 0) / BITMAP_POOL_FRACTION);
+        mDiskCache = new ImageDiskCache(new File(context.getCacheDir(), DISK_CACHE_DIRECTORY),
+                diskCacheBytes);
+        mExecutor = Executors.newFixedThreadPool(LOADER_THREAD_COUNT, new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull final Runnable runnable) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, DISK_CACHE_DIRECTORY);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mMainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * @inheritDoc
+     *
+     * <p>Images in the memory cache are shown right away. Others are read from the disk cache,
+     * or downloaded into it, and decoded in the background.</p>
+     */
+    @Override
+    public void loadImage(@NonNull String url, @NonNull ImageView imageView, int targetWidth,
+                          int targetHeight) {
+        releaseCollectedViews();
+        String cacheKey = getCacheKey(url, targetWidth, targetHeight);
+        Bitmap bitmap = acquireCachedBitmap(cacheKey);
+        if (bitmap != null) {
+            mPendingLoads.remove(imageView);
+            showBitmap(imageView, bitmap);
+            return;
+        }
+
+        imageView.setImageDrawable(null);
+        releaseShownBitmap(imageView);
+        mPendingLoads.put(imageView, cacheKey);
+        mExecutor.execute(new LoadTask(url, cacheKey, imageView, targetWidth, targetHeight));
+    }
+
+    /**
+     * @inheritDoc
+     *
+     * <p>The image the loader showed in the view can then be reused for another image, so the
+     * view must have been cleared.</p>
+     */
+    @Override
+    public void cancelLoad(@NonNull ImageView imageView) {
+        releaseCollectedViews();
+        mPendingLoads.remove(imageView);
+        releaseShownBitmap(imageView);
+    }
+
+    /*
+     Shows a bitmap acquired for a view, releasing the one shown before
+     */
+    private void showBitmap(@NonNull ImageView imageView, @NonNull Bitmap bitmap) {
+        imageView.setImageBitmap(bitmap);
+        releaseShownBitmap(mShownBitmaps.put(imageView,
+                new ShownBitmap(imageView, bitmap, mCollectedViews)));
+    }
+
+    private void releaseShownBitmap(@NonNull ImageView imageView) {
+        releaseShownBitmap(mShownBitmaps.remove(imageView));
+    }
+
+    private void releaseShownBitmap(@Nullable ShownBitmap shownBitmap) {
+        if (shownBitmap != null) {
+            // Released here, so not again once the view is collected
+            shownBitmap.clear();
+            releaseBitmap(shownBitmap.mBitmap);
+        }
+    }
+
+    /*
+     Releases the bitmaps of views that were garbage collected while showing them
+     */
+    private void releaseCollectedViews() {
+        Reference<? extends ImageView> reference;
+        while ((reference = mCollectedViews.poll()) != null) {
+            releaseBitmap(((ShownBitmap) reference).mBitmap);
+        }
+    }
+
+    /*
+     Gets a bitmap from the memory cache, and marks it as used so that it is not pooled while it is
+     shown. A bitmap evicted and pooled since it was read from the cache is taken back out of the
+     pool, unless it is being decoded into already.
+     */
+    @Nullable
+    private Bitmap acquireCachedBitmap(@NonNull String cacheKey) {
+        Bitmap bitmap = mMemoryCache.get(cacheKey);
+        if (bitmap == null) {
+            return null;
+        }
+
+        synchronized (mBitmapLock) {
+            Integer useCount = mBitmapUseCounts.get(bitmap);
+            if (useCount == null && !mCachedBitmaps.contains(bitmap) &&
+                    !mBitmapPool.remove(bitmap)) {
+                return null;
+            }
+            mBitmapUseCounts.put(bitmap, useCount != null ? useCount + 1 : 1);
+            return bitmap;
+        }
+    }
+
+    /*
+     Adds a decoded bitmap to the memory cache, marked as used by the view it was decoded for
+     */
+    private void cacheAcquiredBitmap(@NonNull String cacheKey, @NonNull Bitmap bitmap) {
+        synchronized (mBitmapLock) {
+            mCachedBitmaps.add(bitmap);
+            mBitmapUseCounts.put(bitmap, 1);
+        }
+        mMemoryCache.put(cacheKey, bitmap);
+    }
+
+    /*
+     Marks a bitmap as no longer used by a view, and pools it if it is not cached either
+     */
+    private void releaseBitmap(@NonNull Bitmap bitmap) {
+        synchronized (mBitmapLock) {
+            Integer useCount = mBitmapUseCounts.get(bitmap);
+            if (useCount == null) {
+                return;
+            } else if (useCount > 1) {
+                mBitmapUseCounts.put(bitmap, useCount - 1);
+                return;
+            }
+            mBitmapUseCounts.remove(bitmap);
+            if (!mCachedBitmaps.contains(bitmap)) {
+                mBitmapPool.put(bitmap);
+            }
+        }
+    }
+
+    private void onBitmapUncached(@NonNull Bitmap bitmap) {
+        synchronized (mBitmapLock) {
+            mCachedBitmaps.remove(bitmap);
+            if (!mBitmapUseCounts.containsKey(bitmap)) {
+                mBitmapPool.put(bitmap);
+            }
+        }
+    }
+
+    /**
+     * Frees the memory cache according to the memory trim level. Ad adapters using this loader
+     * call this when the app is asked to trim memory.
+     *
+     * @param level the trim level passed to {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    public void trimMemory(int level) {
+        releaseCollectedViews();
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mMemoryCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            mMemoryCache.trimToSize(mMemoryCache.maxSize() / 2);
+        }
+        // Evicted bitmaps are pooled, which would defeat the trim
+        mBitmapPool.clear();
+    }
+
+    /*
+     The same image is cached once per size it is shown at
+     */
+    private static String getCacheKey(String url, int targetWidth, int targetHeight) {
+        return targetWidth + "x" + targetHeight + ":" + url;
+    }
+
+    /**
+     * <p>Decodes an image file, scaled down to the smallest size that covers the target size
+     * while keeping its aspect ratio. The image is first downsampled by the largest power of two
+     * that keeps it at least as large, then scaled to the exact size while it is decoded.</p>
+     *
+     * <p>From API 19, the image is decoded into a pooled bitmap if one is large enough.</p>
+     *
+     * @param file the image file
+     * @param targetWidth the width the image is shown at, or 0 if not known
+     * @param targetHeight the height the image is shown at, or 0 if not known
+     * @param bitmapPool the pool to take a bitmap to decode into from
+     * @return the decoded bitmap, or null if the file is not a supported image
+     */
+    @Nullable
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    static Bitmap decodeBitmap(@NonNull File file, int targetWidth, int targetHeight,
+                               @NonNull BitmapPool bitmapPool) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inSampleSize = getSampleSize(options.outWidth, options.outHeight,
+                targetWidth, targetHeight);
+        // Decoders round sampled sizes differently, so assume the larger one
+        int sampledWidth = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+        int sampledHeight = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+        float scale = getScale(sampledWidth, sampledHeight, targetWidth, targetHeight);
+        if (scale < 1) {
+            options.inScaled = true;
+            options.inDensity = SCALING_DENSITY;
+            options.inTargetDensity = (int) Math.ceil(scale * SCALING_DENSITY);
+        }
+        options.inJustDecodeBounds = false;
+
+        Bitmap bitmap = null;
+        if (BitmapPool.isSupported()) {
+            // Mutable, so that it can be pooled once it is no longer used
+            options.inMutable = true;
+            long byteCount = (long) ((int) (sampledWidth * scale + 0.5f) + 1) *
+                    ((int) (sampledHeight * scale + 0.5f) + 1) * BitmapPool.BYTES_PER_PIXEL;
+            options.inBitmap = bitmapPool.get(byteCount);
+            if (options.inBitmap != null) {
+                try {
+                    bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+                } catch (IllegalArgumentException e) {
+                    // The image cannot be decoded into the pooled bitmap, e.g. another config
+                    Log.i(TAG, "Could not reuse a bitmap for " + file, e);
+                }
+                options.inBitmap = null;
+            }
+        }
+        if (bitmap == null) {
+            bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+        }
+
+        if (bitmap != null) {
+            // Drawn at its pixel size, not scaled back by the scaling density
+            bitmap.setDensity(Bitmap.DENSITY_NONE);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Gets the largest power of two an image can be downsampled by, so that it is still at least
+     * as large as the target size. Unknown target dimensions do not limit the sample size.
+     *
+     * @return the sample size, at least 1
+     */
+    static int getSampleSize(int width, int height, int targetWidth, int targetHeight) {
+        if (targetWidth <= 0 && targetHeight <= 0) {
+            return 1;
+        }
+
+        int sampleSize = 1;
+        while ((targetWidth <= 0 || width / (sampleSize * 2) >= targetWidth) &&
+                (targetHeight <= 0 || height / (sampleSize * 2) >= targetHeight)) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Gets the factor to scale an image down by so that it still covers the target size. Unknown
+     * target dimensions do not limit the scale.
+     *
+     * @return the scale, at most 1
+     */
+    static float getScale(int width, int height, int targetWidth, int targetHeight) {
+        float scale = 0;
+        if (targetWidth > 0) {
+            scale = (float) targetWidth / width;
+        }
+        if (targetHeight > 0) {
+            scale = Math.max(scale, (float) targetHeight / height);
+        }
+        return scale > 0 ? Math.min(scale, 1) : 1;
+    }
+
+    /*
+     A bitmap shown in a view, enqueued once the view is garbage collected
+     */
+    private static final class ShownBitmap extends WeakReference<ImageView> {
+        final Bitmap mBitmap;
+
+        ShownBitmap(ImageView imageView, Bitmap bitmap, ReferenceQueue<ImageView> queue) {
+            super(imageView, queue);
+            mBitmap = bitmap;
+        }
+    }
+
+    /*
+     Reads or downloads an image and decodes it on a loader thread, then shows it on the main
+     thread if the view still waits for it
+     */
+    private final class LoadTask implements Runnable {
+        private final String mUrl;
+        private final String mCacheKey;
+        private final WeakReference<ImageView> mImageViewReference;
+        private final int mTargetWidth;
+        private final int mTargetHeight;
+
+        LoadTask(String url, String cacheKey, ImageView imageView, int targetWidth,
+                 int targetHeight) {
+            mUrl = url;
+            mCacheKey = cacheKey;
+            mImageViewReference = new WeakReference<>(imageView);
+            mTargetWidth = targetWidth;
+            mTargetHeight = targetHeight;
+        }
+
+        @Override
+        public void run() {
+            if (mImageViewReference.get() == null) {
+                return;
+            }
+
+            // Another view may have loaded the same image in the meantime
+            Bitmap bitmap = acquireCachedBitmap(mCacheKey);
+            if (bitmap == null) {
+                try {
+                    bitmap = decodeBitmap(mDiskCache.getOrDownload(mUrl), mTargetWidth,
+                            mTargetHeight, mBitmapPool);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to load ad image " + mUrl, e);
+                    return;
+                }
+                if (bitmap == null) {
+                    Log.w(TAG, "Failed to decode ad image " + mUrl);
+                    return;
+                }
+                cacheAcquiredBitmap(mCacheKey, bitmap);
+            }
+
+            final Bitmap loadedBitmap = bitmap;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    ImageView imageView = mImageViewReference.get();
+                    if (imageView != null && mCacheKey.equals(mPendingLoads.get(imageView))) {
+                        mPendingLoads.remove(imageView);
+                        showBitmap(imageView, loadedBitmap);
+                    } else {
+                        releaseBitmap(loadedBitmap);
+                    }
+                }
+            });
+        }
+    }
+}
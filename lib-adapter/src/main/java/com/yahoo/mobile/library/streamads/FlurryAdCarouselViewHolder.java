@@ -0,0 +1,78 @@
+/*
+ * Copyright 2015 Yahoo Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.mobile.library.streamads;
+
+import android.content.Context;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.view.ViewGroup;
+
+/**
+ * {@link android.support.v7.widget.RecyclerView.ViewHolder} of an ad row that shows the ads of an
+ * ad slot in a horizontally scrolling carousel. Cards are bound as they scroll in.
+ */
+class FlurryAdCarouselViewHolder extends RecyclerView.ViewHolder {
+    final RecyclerView carouselView;
+    private RecyclerView.RecycledViewPool mCardViewPool;
+
+    FlurryAdCarouselViewHolder(Context context, int heightPx,
+                               RecyclerView.RecycledViewPool cardViewPool) {
+        super(new RecyclerView(context));
+        carouselView = (RecyclerView) itemView;
+        // Fixed height, so that binding cards never changes the height of the row
+        carouselView.setLayoutParams(
+                new RecyclerView.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, heightPx));
+        carouselView.setHasFixedSize(true);
+        carouselView.setLayoutManager(new CarouselLayoutManager(context));
+        carouselView.setRecycledViewPool(cardViewPool);
+        mCardViewPool = cardViewPool;
+    }
+
+    /**
+     * Applies the carousel settings of the adapter binding this holder. It may have been created
+     * by another adapter with other settings, if the adapters share a recycled view pool.
+     *
+     * @param heightPx the height of the carousel
+     * @param cardViewPool the pool of card views of the adapter
+     */
+    void applySettings(int heightPx, RecyclerView.RecycledViewPool cardViewPool) {
+        ViewGroup.LayoutParams layoutParams = carouselView.getLayoutParams();
+        if (layoutParams.height != heightPx) {
+            layoutParams.height = heightPx;
+            carouselView.setLayoutParams(layoutParams);
+        }
+        if (mCardViewPool != cardViewPool) {
+            carouselView.setRecycledViewPool(cardViewPool);
+            mCardViewPool = cardViewPool;
+        }
+    }
+
+    /*
+     Lays out cards up to half a carousel beyond the visible ones, so that the next card is bound
+     before it scrolls in.
+     */
+    private static final class CarouselLayoutManager extends LinearLayoutManager {
+        CarouselLayoutManager(Context context) {
+            super(context, HORIZONTAL, false);
+        }
+
+        @Override
+        protected int getExtraLayoutSpace(RecyclerView.State state) {
+            return getWidth() / 2;
+        }
+    }
+}
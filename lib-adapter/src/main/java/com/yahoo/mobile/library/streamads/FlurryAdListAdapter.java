@@ -19,22 +19,26 @@ package com.yahoo.mobile.library.streamads;
 import android.app.Activity;
 import android.content.Context;
 import android.database.DataSetObserver;
+import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.util.Log;
-import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.Adapter;
 import android.widget.BaseAdapter;
+import android.widget.ListView;
 
 import com.flurry.android.ads.FlurryAdNative;
 import com.flurry.android.ads.FlurryAdNativeListener;
 import com.flurry.android.ads.FlurryAdTargeting;
 
 import java.lang.ref.WeakReference;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 import com.yahoo.mobile.library.streamads.positioning.AdapterAdPositioner;
 import com.yahoo.mobile.library.streamads.positioning.LinearIntervalAdPositioner;
@@ -47,20 +51,24 @@ public final class FlurryAdListAdapter extends BaseAdapter implements NativeAdAd
         FlurryBaseAdAdapter.ListAdapterDataListener {
 
     public static final String TAG = FlurryAdListAdapter.class.getSimpleName();
-    private static DataSetObserver sAdapterObserver;
+    private DataSetObserver mAdapterObserver;
 
     private FlurryBaseAdAdapter mBaseAdAdapter;
     private WeakReference<Context> mContextReference;
     private Adapter mWrappedAdapter;
-    private NativeAdViewBinder mViewBinder;
-    private SparseArray<Boolean> mPositionExpandedMap;
     private ExpandedAdListener mExpandedAdListener;
     private boolean mAdListenerAttached;
+    /*
+    The view holder each ad is currently bound to, so that expand events update the row of the ad
+    that fired them. Holds at most one entry per view holder. Entries are dropped when the ad is
+    released or its row is moved to the scrap heap.
+     */
+    @VisibleForTesting
+    final Map<FlurryAdNative, FlurryAdViewHolder> mAdViewHolders = new IdentityHashMap<>();
 
     // Private to prevent external instantiation
     private FlurryAdListAdapter() {
         mBaseAdAdapter = new FlurryBaseAdAdapter(this);
-        mPositionExpandedMap = new SparseArray<>();
         mExpandedAdListener = new ExpandedAdListener();
     }
 
@@ -88,7 +96,7 @@ public final class FlurryAdListAdapter extends BaseAdapter implements NativeAdAd
      */
     @Override
     public int getCount() {
-        return mWrappedAdapter.getCount() > 0 ? mWrappedAdapter.getCount() + getNumberOfAds() : 0;
+        return mBaseAdAdapter.getAdjustedCount(mWrappedAdapter.getCount());
     }
 
     /**
@@ -118,7 +126,8 @@ public final class FlurryAdListAdapter extends BaseAdapter implements NativeAdAd
      */
     @Override
     public int getViewTypeCount() {
-        return mWrappedAdapter.getViewTypeCount() + 1;
+        // One view type per ad layout variant
+        return mWrappedAdapter.getViewTypeCount() + mBaseAdAdapter.getViewBinders().size();
     }
 
     /**
@@ -127,8 +136,8 @@ public final class FlurryAdListAdapter extends BaseAdapter implements NativeAdAd
     @Override
     public int getItemViewType(int position) {
         if (mBaseAdAdapter.shouldShowAd(position, mWrappedAdapter.getCount())) {
-            // View type should be next index in 0-indexed
-            return mWrappedAdapter.getViewTypeCount();
+            // View types of ad layout variants follow the wrapped adapter's, which are 0-indexed
+            return mWrappedAdapter.getViewTypeCount() + mBaseAdAdapter.selectViewBinder(position);
         } else {
             return mWrappedAdapter.getItemViewType(getOriginalPosition(position));
         }
@@ -140,25 +149,21 @@ public final class FlurryAdListAdapter extends BaseAdapter implements NativeAdAd
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
         View returnedView;
-        final int adViewType = mWrappedAdapter.getViewTypeCount();
+        final int viewBinderIndex = getItemViewType(position) - mWrappedAdapter.getViewTypeCount();
 
-        if (getItemViewType(position) == adViewType) {
+        if (viewBinderIndex >= 0) {
+            NativeAdViewBinder viewBinder = mBaseAdAdapter.getViewBinders().get(viewBinderIndex);
             int expandableAdMode = mBaseAdAdapter.getExpandableAdMode();
 
             FlurryAdNative flurryAdNative = mBaseAdAdapter.getAdForPosition(position);
             FlurryAdViewHolder adViewHolder;
 
-            if (flurryAdNative == null) {
-                Log.e(TAG, "Should not happen. Flurry ad should not be null at this point");
-                return convertView;
-            }
-
             if (convertView == null) {
                 convertView = LayoutInflater.from(mContextReference.get()).inflate(
-                        mViewBinder.getAdLayoutId(), parent, false
+                        viewBinder.getAdLayoutId(), parent, false
                 );
 
-                adViewHolder = FlurryAdViewHolder.newInstance(convertView, mViewBinder,
+                adViewHolder = FlurryAdViewHolder.newInstance(convertView, viewBinder,
                         flurryAdNative);
 
                 if (expandableAdMode != EXPANDABLE_AD_MODE_OFF && !mAdListenerAttached) {
@@ -169,36 +174,41 @@ public final class FlurryAdListAdapter extends BaseAdapter implements NativeAdAd
             } else {
                 adViewHolder = (FlurryAdViewHolder) convertView.getTag();
                 // Remove tracking from previous view since view will be recycled
-                if (adViewHolder.flurryAdNative != null) {
+                if (adViewHolder.flurryAdNative != null && (flurryAdNative == null ||
+                        !FlurryNativeAdViewBuilder.isAdBound(flurryAdNative, adViewHolder))) {
                     adViewHolder.flurryAdNative.removeTrackingView();
                 }
+                if (adViewHolder.flurryAdNative != flurryAdNative &&
+                        mAdViewHolders.get(adViewHolder.flurryAdNative) == adViewHolder) {
+                    mAdViewHolders.remove(adViewHolder.flurryAdNative);
+                }
             }
 
-            mExpandedAdListener.setAdViewHolder(adViewHolder);
-            mExpandedAdListener.setPosition(position);
-
-            FlurryNativeAdViewBuilder.buildAdIntoViews(flurryAdNative, adViewHolder);
-
-            switch (expandableAdMode) {
-                case EXPANDABLE_AD_MODE_OFF:
-                    flurryAdNative.setTrackingView(convertView);
-                    break;
-                case EXPANDABLE_AD_MODE_EXPANDED:
-                    if (mPositionExpandedMap.get(position) == null ||
-                            mPositionExpandedMap.get(position)) {
-                        expandAdView(adViewHolder);
-                    } else {
-                        collapseAdView(adViewHolder);
-                    }
-                    break;
-                case EXPANDABLE_AD_MODE_COLLAPSED:
-                    if (mPositionExpandedMap.get(position) == null ||
-                            !mPositionExpandedMap.get(position)) {
-                        collapseAdView(adViewHolder);
-                    } else {
-                        expandAdView(adViewHolder);
-                    }
-                    break;
+            if (flurryAdNative == null) {
+                // Expired ad without a replacement, the slot is about to be removed
+                adViewHolder.flurryAdNative = null;
+                FlurryNativeAdViewBuilder.clearAdHolder(adViewHolder);
+                return convertView;
+            }
+
+            mAdViewHolders.put(flurryAdNative, adViewHolder);
+
+            if (FlurryNativeAdViewBuilder.isAdBound(flurryAdNative, adViewHolder)) {
+                /*
+                 Same ad rebound during measure or relayout, or popped back into its view after
+                 it was requeued. Only the expand state and tracking may change.
+                 */
+                mBaseAdAdapter.onAdViewReused();
+                if (expandableAdMode != EXPANDABLE_AD_MODE_OFF || adViewHolder.trackingRemoved) {
+                    FlurryNativeAdViewBuilder.bindExpandState(adViewHolder, expandableAdMode,
+                            mBaseAdAdapter.isAdExpanded(flurryAdNative));
+                }
+            } else {
+                FlurryNativeAdViewBuilder.buildAdIntoViews(flurryAdNative, adViewHolder,
+                        mBaseAdAdapter.getImageLoader());
+                mBaseAdAdapter.onAdViewBound(adViewHolder);
+                FlurryNativeAdViewBuilder.bindExpandState(adViewHolder, expandableAdMode,
+                        mBaseAdAdapter.isAdExpanded(flurryAdNative));
             }
 
             mBaseAdAdapter.notifyAdRendered(position);
@@ -212,6 +222,127 @@ public final class FlurryAdListAdapter extends BaseAdapter implements NativeAdAd
         return returnedView;
     }
 
+    /**
+     * @inheritDoc
+     *
+     * <p>Also invalidates the cached number of ads in the adapter.</p>
+     */
+    @Override
+    public void notifyDataSetChanged() {
+        mBaseAdAdapter.invalidateAdCount();
+        super.notifyDataSetChanged();
+    }
+
+    /**
+     * @inheritDoc
+     *
+     * <p>Also invalidates the cached number of ads in the adapter.</p>
+     */
+    @Override
+    public void notifyDataSetInvalidated() {
+        mBaseAdAdapter.invalidateAdCount();
+        super.notifyDataSetInvalidated();
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean hasStableWrappedIds() {
+        return mWrappedAdapter.hasStableIds();
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public long getWrappedItemId(int originalPosition) {
+        return mWrappedAdapter.getItemId(originalPosition);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void onAdReleased(@NonNull FlurryAdNative flurryAdNative) {
+        mAdViewHolders.remove(flurryAdNative);
+    }
+
+    /**
+     * <p>Wraps an {@link AbsListView.OnScrollListener} so that the adapter can track which rows
+     * are visible. Ads that were placed far off-screen without being seen are then reused at the
+     * next ad position instead of fetching new ones.</p>
+     *
+     * <p>Set the returned listener on the list view showing this adapter, e.g.
+     * <code>listView.setOnScrollListener(adAdapter.wrapOnScrollListener(myScrollListener))</code>.
+     * </p>
+     *
+     * @param scrollListener your own scroll listener, or null if you do not have one
+     * @return a scroll listener that also notifies the given listener
+     */
+    public AbsListView.OnScrollListener wrapOnScrollListener(
+            @Nullable final AbsListView.OnScrollListener scrollListener) {
+        return new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+                if (scrollListener != null) {
+                    scrollListener.onScrollStateChanged(view, scrollState);
+                }
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                                 int totalItemCount) {
+                // Positions of the list view include its header views
+                int headerCount = view instanceof ListView ?
+                        ((ListView) view).getHeaderViewsCount() : 0;
+                int firstVisiblePosition = Math.max(firstVisibleItem - headerCount, 0);
+                int lastVisiblePosition = Math.min(
+                        firstVisibleItem + visibleItemCount - 1 - headerCount, getCount() - 1);
+                if (visibleItemCount > 0 && lastVisiblePosition >= firstVisiblePosition) {
+                    mBaseAdAdapter.onViewportChanged(firstVisiblePosition, lastVisiblePosition);
+                }
+
+                if (scrollListener != null) {
+                    scrollListener.onScroll(view, firstVisibleItem, visibleItemCount,
+                            totalItemCount);
+                }
+            }
+        };
+    }
+
+    /**
+     * <p>Wraps an {@link AbsListView.RecyclerListener} so that the adapter lets go of ad rows the
+     * list view moves to its scrap heap.</p>
+     *
+     * <p>Set the returned listener on the list view showing this adapter, e.g.
+     * <code>listView.setRecyclerListener(adAdapter.wrapRecyclerListener(myListener))</code>.
+     * </p>
+     *
+     * @param recyclerListener your own recycler listener, or null if you do not have one
+     * @return a recycler listener that also notifies the given listener
+     */
+    public AbsListView.RecyclerListener wrapRecyclerListener(
+            @Nullable final AbsListView.RecyclerListener recyclerListener) {
+        return new AbsListView.RecyclerListener() {
+            @Override
+            public void onMovedToScrapHeap(View view) {
+                Object tag = view.getTag();
+                if (tag instanceof FlurryAdViewHolder) {
+                    FlurryAdViewHolder adViewHolder = (FlurryAdViewHolder) tag;
+                    if (adViewHolder.flurryAdNative != null &&
+                            mAdViewHolders.get(adViewHolder.flurryAdNative) == adViewHolder) {
+                        mAdViewHolders.remove(adViewHolder.flurryAdNative);
+                    }
+                }
+
+                if (recyclerListener != null) {
+                    recyclerListener.onMovedToScrapHeap(view);
+                }
+            }
+        };
+    }
+
     /**
      * Refreshes ads with a new Flurry ad space.
      *
@@ -238,8 +369,9 @@ public final class FlurryAdListAdapter extends BaseAdapter implements NativeAdAd
     @Override
     public void destroyAds() {
         mBaseAdAdapter.destroyAds();
+        mAdViewHolders.clear();
         notifyDataSetChanged();
-        mWrappedAdapter.unregisterDataSetObserver(sAdapterObserver);
+        mWrappedAdapter.unregisterDataSetObserver(mAdapterObserver);
     }
 
     /**
@@ -267,45 +399,63 @@ public final class FlurryAdListAdapter extends BaseAdapter implements NativeAdAd
     }
 
     /**
-     * @inheritDoc
+     * Saves the expand state of the ads in the adapter. Call this from
+     * <code>onSaveInstanceState(Bundle)</code> of your Activity or Fragment.
+     *
+     * @param outState the Bundle to save the state to
      */
-    @Override
-    public void setRetryFailedAdPositions(boolean retryFailedAdPositions) {
-        mBaseAdAdapter.setRetryFailedAdPositions(retryFailedAdPositions);
+    public void onSaveInstanceState(@NonNull Bundle outState) {
+        mBaseAdAdapter.onSaveInstanceState(outState);
     }
 
-    private void expandAdView(FlurryAdViewHolder adViewHolder) {
-        if (adViewHolder.callToActionView != null) {
-            adViewHolder.callToActionView.setVisibility(View.GONE);
-        }
-        if (adViewHolder.adCollapseView != null) {
-            adViewHolder.adCollapseView.setVisibility(View.VISIBLE);
-        }
-        if (adViewHolder.adImageView != null) {
-            adViewHolder.adImageView.setVisibility(View.VISIBLE);
-        }
+    /**
+     * Restores the expand state of ads saved with {@link #onSaveInstanceState(Bundle)}, e.g.
+     * after a configuration change. The state applies to the ads shown at the same positions.
+     *
+     * @param savedInstanceState the Bundle the state was saved to, or null
+     */
+    public void onRestoreInstanceState(@Nullable Bundle savedInstanceState) {
+        mBaseAdAdapter.onRestoreInstanceState(savedInstanceState);
+    }
 
-        if (adViewHolder.flurryAdNative != null) {
-            adViewHolder.flurryAdNative.setCollapsableTrackingView(adViewHolder.parentView,
-                    adViewHolder.adCollapseView);
-        }
+    /**
+     * Gets the number of times an ad view was bound to the ad it already showed, and so was not
+     * rebuilt. Every bind of an ad view is also reported to
+     * {@link NativeAdRenderListener#onAdRendered(int)}, so comparing both counts shows how many
+     * rebuilds were saved.
+     *
+     * @return the number of skipped ad view rebuilds
+     */
+    public int getReusedAdViewCount() {
+        return mBaseAdAdapter.getReusedAdViewCount();
     }
 
-    private void collapseAdView(FlurryAdViewHolder adViewHolder) {
-        if (adViewHolder.callToActionView != null) {
-            adViewHolder.callToActionView.setVisibility(View.VISIBLE);
-        }
-        if (adViewHolder.adCollapseView != null) {
-            adViewHolder.adCollapseView.setVisibility(View.GONE);
-        }
-        if (adViewHolder.adImageView != null) {
-            adViewHolder.adImageView.setVisibility(View.GONE);
-        }
+    /**
+     * Gets the number of ads destroyed so far to free memory when the system asked the app to
+     * trim its memory use.
+     *
+     * @return the number of reclaimed ads
+     */
+    public int getReclaimedAdCount() {
+        return mBaseAdAdapter.getReclaimedAdCount();
+    }
 
-        if (adViewHolder.flurryAdNative != null) {
-            adViewHolder.flurryAdNative.setExpandableTrackingView(adViewHolder.parentView,
-                    adViewHolder.callToActionView);
-        }
+    /**
+     * Gets the approximate number of image bytes released so far from ad views when the system
+     * asked the app to trim its memory use.
+     *
+     * @return the number of reclaimed bytes
+     */
+    public long getReclaimedImageBytes() {
+        return mBaseAdAdapter.getReclaimedImageBytes();
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void setRetryFailedAdPositions(boolean retryFailedAdPositions) {
+        mBaseAdAdapter.setRetryFailedAdPositions(retryFailedAdPositions);
     }
 
     public static class Builder {
@@ -324,9 +474,10 @@ public final class FlurryAdListAdapter extends BaseAdapter implements NativeAdAd
             mFlurryAdapter = new FlurryAdListAdapter();
             mFlurryAdapter.mContextReference = new WeakReference<>(context);
             mFlurryAdapter.mWrappedAdapter = adapter;
-            mFlurryAdapter.mViewBinder = viewBinder;
-            mFlurryAdapter.mBaseAdAdapter.initAdFetcher(context);
+            mFlurryAdapter.mBaseAdAdapter.addViewBinder(viewBinder);
+            // Ad space first, so that ads warmed up for it are adopted
             mFlurryAdapter.mBaseAdAdapter.setAdSpaceName(adSpaceName);
+            mFlurryAdapter.mBaseAdAdapter.initAdFetcher(context);
         }
 
         /**
@@ -393,6 +544,109 @@ public final class FlurryAdListAdapter extends BaseAdapter implements NativeAdAd
             return this;
         }
 
+        /**
+         * <p>Sets how many screens above and below the visible rows placed ads are kept in memory.
+         * Ads that have been seen are destroyed once they are further away, and their positions
+         * get a new ad if they are scrolled back into view.</p>
+         *
+         * <p>Defaults to 3 screens.</p>
+         *
+         * @param screens the number of screens on either side of the visible rows, at least 1
+         * @return a {@link FlurryAdListAdapter.Builder} instance
+         */
+        public Builder setResidencyWindow(int screens) {
+            mFlurryAdapter.mBaseAdAdapter.setResidencyWindow(screens);
+            return this;
+        }
+
+        /**
+         * <p>Rotates ads in long-dwell screens. Once an ad has logged its impression and has been
+         * on screen for the given interval, the next queued ad is shown in its place, with the
+         * same layout variant. Expanded ads and ads that are scrolled off-screen are rotated
+         * later. Fetching is paced to the rotation rate.</p>
+         *
+         * <p>Whether a rotated ad is on screen is only known if the scroll listener from
+         * {@link FlurryAdListAdapter#wrapOnScrollListener(AbsListView.OnScrollListener)} is set on
+         * the list. Without it, ads are rotated wherever they are.</p>
+         *
+         * @param rotationIntervalMillis how long each ad is shown after its impression, or 0 to
+         *                               keep ads in their positions
+         * @return a {@link FlurryAdListAdapter.Builder} instance
+         */
+        public Builder setAdRotation(long rotationIntervalMillis) {
+            mFlurryAdapter.mBaseAdAdapter.setRotationInterval(rotationIntervalMillis);
+            return this;
+        }
+
+        /**
+         * <p>Loads the image assets of ads with the given {@link AdImageLoader}, by their URLs,
+         * instead of letting the Flurry SDK load them. Images are requested at the size of the
+         * views they are shown in.</p>
+         *
+         * <p>Use a {@link CachingAdImageLoader} to keep ad images in memory and disk caches.
+         * Share it between ad adapters so that they share the caches.</p>
+         *
+         * @param imageLoader the image loader to use
+         * @return a {@link FlurryAdListAdapter.Builder} instance
+         */
+        public Builder setImageLoader(@NonNull AdImageLoader imageLoader) {
+            mFlurryAdapter.mBaseAdAdapter.setImageLoader(imageLoader);
+            return this;
+        }
+
+        /**
+         * <p>Adds a layout variant for ad views, e.g. a text-only layout for ads without an
+         * image. Each variant has its own view type, so ad views are only recycled into positions
+         * with the same layout.</p>
+         *
+         * <p>By default, each ad is shown with the first view binder whose image views it has
+         * assets for, starting with the one passed to <code>from(...)</code>. Use
+         * {@link #setViewBinderSelector(NativeAdViewBinder.ViewBinderSelector)} to pick variants
+         * by position instead.</p>
+         *
+         * @param viewBinder the {@link NativeAdViewBinder} of the layout variant
+         * @return a {@link FlurryAdListAdapter.Builder} instance
+         */
+        public Builder addViewBinder(@NonNull NativeAdViewBinder viewBinder) {
+            mFlurryAdapter.mBaseAdAdapter.addViewBinder(viewBinder);
+            return this;
+        }
+
+        /**
+         * Sets how ad positions pick one of the layout variants added with
+         * {@link #addViewBinder(NativeAdViewBinder)}.
+         *
+         * @param viewBinderSelector the selector, or <code>null</code> to pick by the assets of
+         *                           each ad
+         * @return a {@link FlurryAdListAdapter.Builder} instance
+         */
+        public Builder setViewBinderSelector(
+                @Nullable NativeAdViewBinder.ViewBinderSelector viewBinderSelector) {
+            mFlurryAdapter.mBaseAdAdapter.setViewBinderSelector(viewBinderSelector);
+            return this;
+        }
+
+        /**
+         * <p>Sets which ad a position gets when no queued ad has the assets its layout variant
+         * shows, e.g. an image. Only applies to layout variants picked by a
+         * {@link NativeAdViewBinder.ViewBinderSelector}.</p>
+         *
+         * <p>Value should be one of:</p>
+         * <ul>
+         *     <li>{@link #ASSET_FALLBACK_OLDEST_AD} -
+         *          Default. The position gets the oldest queued ad.</li>
+         *     <li>{@link #ASSET_FALLBACK_NONE} -
+         *          The position waits for an ad that has the assets.</li>
+         * </ul>
+         *
+         * @param assetFallback the fallback to use
+         * @return a {@link FlurryAdListAdapter.Builder} instance
+         */
+        public Builder setAssetFallback(@AssetFallback int assetFallback) {
+            mFlurryAdapter.mBaseAdAdapter.setAssetFallback(assetFallback);
+            return this;
+        }
+
         /**
          * <p>Sets the expanded mode that ads from this adapter should start in.</p>
          *
@@ -426,11 +680,10 @@ public final class FlurryAdListAdapter extends BaseAdapter implements NativeAdAd
          */
         public FlurryAdListAdapter build() {
             if (mFlurryAdapter.mBaseAdAdapter.getExpandableAdMode() != EXPANDABLE_AD_MODE_OFF &&
-                    (mFlurryAdapter.mViewBinder.getCallToActionViewId() <= 0 ||
-                    mFlurryAdapter.mViewBinder.getAdCollapseViewId() <= 0)) {
+                    !mFlurryAdapter.mBaseAdAdapter.canExpandAdViews()) {
                 throw new IllegalStateException("If you are not passing EXPANDABLE_AD_MODE_OFF to " +
                         "FlurryAdListAdapter.Builder#setExpandableAdMode(int), you should set a " +
-                        "call-to-action and collapse-ad View in your NativeAdViewBinder.");
+                        "call-to-action and collapse-ad View in all your NativeAdViewBinders.");
             }
 
             mFlurryAdapter.mBaseAdAdapter.setFetchListener(
@@ -445,9 +698,11 @@ public final class FlurryAdListAdapter extends BaseAdapter implements NativeAdAd
 
             mFlurryAdapter.setRetryFailedAdPositions(true);
 
-            sAdapterObserver = new DataSetObserver() {
+            mFlurryAdapter.mAdapterObserver = new DataSetObserver() {
                 @Override
                 public void onChanged() {
+                    mFlurryAdapter.mBaseAdAdapter.onWrappedDataSetChanged(
+                            mFlurryAdapter.mWrappedAdapter.getCount());
                     mFlurryAdapter.notifyDataSetChanged();
                 }
 
@@ -456,7 +711,8 @@ public final class FlurryAdListAdapter extends BaseAdapter implements NativeAdAd
                     mFlurryAdapter.notifyDataSetInvalidated();
                 }
             };
-            mFlurryAdapter.mWrappedAdapter.registerDataSetObserver(sAdapterObserver);
+            mFlurryAdapter.mWrappedAdapter.registerDataSetObserver(
+                    mFlurryAdapter.mAdapterObserver);
 
             return mFlurryAdapter;
         }
@@ -468,29 +724,35 @@ public final class FlurryAdListAdapter extends BaseAdapter implements NativeAdAd
         }
     }
 
+    /*
+     Updates the row of an ad when it is expanded or collapsed. The base adapter records the
+     expand state of the ad, so it is restored when the ad is bound again.
+     */
     private class ExpandedAdListener extends StubFlurryAdNativeListener {
-        private FlurryAdViewHolder mAdViewHolder;
-        private int mPosition;
-
-
         @Override
         public void onExpanded(FlurryAdNative flurryAdParam) {
-            mPositionExpandedMap.put(mPosition, true);
-            expandAdView(mAdViewHolder);
+            FlurryAdViewHolder adViewHolder = getBoundAdViewHolder(flurryAdParam);
+            if (adViewHolder != null) {
+                FlurryNativeAdViewBuilder.expandAdView(adViewHolder);
+            }
         }
 
         @Override
         public void onCollapsed(FlurryAdNative flurryAdParam) {
-            mPositionExpandedMap.put(mPosition, false);
-            collapseAdView(mAdViewHolder);
-        }
-
-        public void setAdViewHolder(FlurryAdViewHolder adViewHolder) {
-            mAdViewHolder = adViewHolder;
+            FlurryAdViewHolder adViewHolder = getBoundAdViewHolder(flurryAdParam);
+            if (adViewHolder != null) {
+                FlurryNativeAdViewBuilder.collapseAdView(adViewHolder);
+            }
         }
 
-        public void setPosition(int position) {
-            mPosition = position;
+        /*
+         Returns null if the ad's holder has since been rebound to another row
+         */
+        @Nullable
+        private FlurryAdViewHolder getBoundAdViewHolder(FlurryAdNative flurryAdNative) {
+            FlurryAdViewHolder adViewHolder = mAdViewHolders.get(flurryAdNative);
+            return adViewHolder != null && adViewHolder.flurryAdNative == flurryAdNative ?
+                    adViewHolder : null;
         }
     }
 }
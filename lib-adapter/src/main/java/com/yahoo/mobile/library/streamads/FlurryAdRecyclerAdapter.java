@@ -19,10 +19,13 @@ package com.yahoo.mobile.library.streamads;
 import android.app.Activity;
 import android.app.Application;
 import android.content.Context;
+import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
+import android.support.v7.widget.GridLayoutManager;
 import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.StaggeredGridLayoutManager;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -35,6 +38,8 @@ import com.yahoo.mobile.library.streamads.positioning.AdapterAdPositioner;
 import com.yahoo.mobile.library.streamads.positioning.LinearIntervalAdPositioner;
 
 import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.List;
 
 /**
  *
@@ -42,15 +47,28 @@ import java.lang.ref.WeakReference;
 public class FlurryAdRecyclerAdapter extends RecyclerView.Adapter implements NativeAdAdapter,
         FlurryBaseAdAdapter.RecyclerAdapterDataListener {
     public static final String TAG = FlurryAdRecyclerAdapter.class.getSimpleName();
-    private static RecyclerView.AdapterDataObserver sAdapterObserver;
+    private RecyclerView.AdapterDataObserver mAdapterObserver;
 
-    // Attempt to ensure unique view type different from wrapped adapter's view types
-    private final int VIEW_TYPE_AD = -42;
 
     private FlurryBaseAdAdapter mBaseAdAdapter;
     private WeakReference<Context> mContextReference;
     private RecyclerView.Adapter mWrappedAdapter;
-    private NativeAdViewBinder mViewBinder;
+    /*
+    Distinct from the wrapped adapter's view types and the -layoutId types of ad layouts. The same
+    for all adapters, so carousels are reconfigured for the adapter that binds them.
+     */
+    private static final int VIEW_TYPE_AD_CAROUSEL = -42;
+
+    private int mPlaceholderHeight;
+    private int mCarouselHeight;
+    /*
+    Card views of all carousels of this adapter, so that cards scrolled out of one carousel are
+    reused by the next.
+     */
+    private final RecyclerView.RecycledViewPool mCarouselCardPool =
+            new RecyclerView.RecycledViewPool();
+    @Nullable private RecyclerView.RecycledViewPool mRecycledViewPool;
+    private int mMaxRecycledAdViews;
 
     private FlurryAdRecyclerAdapter() {
         mBaseAdAdapter = new FlurryBaseAdAdapter(this);
@@ -79,14 +97,17 @@ public class FlurryAdRecyclerAdapter extends RecyclerView.Adapter implements Nat
      */
     @Override
     public int getItemCount() {
-        return mWrappedAdapter.getItemCount() > 0 ?
-                mWrappedAdapter.getItemCount() + getNumberOfAds() : 0;
+        return mBaseAdAdapter.getAdjustedCount(mWrappedAdapter.getItemCount());
     }
 
     @Override
     public int getItemViewType(int position) {
         if (mBaseAdAdapter.shouldShowAd(position, mWrappedAdapter.getItemCount())) {
-            return VIEW_TYPE_AD;
+            if (mBaseAdAdapter.isCarouselMode()) {
+                return VIEW_TYPE_AD_CAROUSEL;
+            }
+            return getAdViewType(
+                    mBaseAdAdapter.getViewBinders().get(mBaseAdAdapter.selectViewBinder(position)));
         } else {
             return mWrappedAdapter.getItemViewType(getOriginalPosition(position));
         }
@@ -97,18 +118,39 @@ public class FlurryAdRecyclerAdapter extends RecyclerView.Adapter implements Nat
      */
     @Override
     public RecyclerView.ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
-        LayoutInflater inflater = LayoutInflater.from(mContextReference.get());
-        RecyclerView.ViewHolder viewHolder;
-        switch (viewType) {
-            case VIEW_TYPE_AD:
-                View view = inflater.inflate(mViewBinder.getAdLayoutId(), parent, false);
-                viewHolder = new FlurryRecyclerAdViewHolder(view, mViewBinder);
-                break;
-            default:
-                viewHolder = mWrappedAdapter.onCreateViewHolder(parent, viewType);
-                break;
+        if (viewType == VIEW_TYPE_AD_CAROUSEL) {
+            FlurryAdCarouselViewHolder carouselViewHolder = new FlurryAdCarouselViewHolder(
+                    mContextReference.get(), mCarouselHeight, mCarouselCardPool);
+            // The carousel comes with plain RecyclerView layout params, which a staggered grid
+            // would replace with ones for a single column
+            if (parent instanceof RecyclerView && ((RecyclerView) parent).getLayoutManager()
+                    instanceof StaggeredGridLayoutManager) {
+                carouselViewHolder.itemView.setLayoutParams(
+                        new StaggeredGridLayoutManager.LayoutParams(
+                                carouselViewHolder.itemView.getLayoutParams()));
+            }
+            setFullSpan(carouselViewHolder.itemView);
+            return carouselViewHolder;
+        } else if (isAdViewType(viewType)) {
+            NativeAdViewBinder viewBinder = getViewBinder(viewType);
+            View view = LayoutInflater.from(mContextReference.get())
+                    .inflate(viewBinder.getAdLayoutId(), parent, false);
+            // Ad rows keep the placeholder height, so filling a placeholder does not move rows
+            view.setMinimumHeight(mPlaceholderHeight);
+            setFullSpan(view);
+            return new FlurryRecyclerAdViewHolder(view, viewBinder);
+        }
+        return mWrappedAdapter.onCreateViewHolder(parent, viewType);
+    }
+
+    /*
+     Ads take up a whole row of a staggered grid instead of landing in a column.
+     */
+    private static void setFullSpan(View adView) {
+        if (adView.getLayoutParams() instanceof StaggeredGridLayoutManager.LayoutParams) {
+            ((StaggeredGridLayoutManager.LayoutParams) adView.getLayoutParams())
+                    .setFullSpan(true);
         }
-        return viewHolder;
     }
 
     /**
@@ -117,33 +159,349 @@ public class FlurryAdRecyclerAdapter extends RecyclerView.Adapter implements Nat
     @Override
     @SuppressWarnings("unchecked")
     public void onBindViewHolder(RecyclerView.ViewHolder holder, int position) {
-        switch (holder.getItemViewType()) {
-            case VIEW_TYPE_AD:
-                FlurryAdNative flurryAdNative = mBaseAdAdapter.getAdForPosition(position);
+        if (holder.getItemViewType() == VIEW_TYPE_AD_CAROUSEL) {
+            bindCarousel((FlurryAdCarouselViewHolder) holder, position);
+            return;
+        } else if (!isAdViewType(holder.getItemViewType())) {
+            mWrappedAdapter.onBindViewHolder(holder, getOriginalPosition(position));
+            return;
+        }
 
-                ((FlurryRecyclerAdViewHolder) holder).getNativeAdViewHolder().flurryAdNative =
-                        flurryAdNative;
+        // The holder may have been created by another adapter sharing the recycled view pool
+        ((FlurryRecyclerAdViewHolder) holder).setViewBinder(
+                mBaseAdAdapter.getViewBinders().get(mBaseAdAdapter.selectViewBinder(position)));
+        FlurryAdViewHolder adViewHolder =
+                ((FlurryRecyclerAdViewHolder) holder).getNativeAdViewHolder();
+        FlurryAdNative flurryAdNative = mBaseAdAdapter.getAdForPosition(position);
 
-                if (flurryAdNative == null) {
-                    Log.w(TAG, "Should not happen. Flurry ad should not be null at this point");
-                    return;
-                }
+        if (flurryAdNative == null) {
+            /*
+             Placeholder waiting for an ad, or expired ad without a replacement whose
+             slot is about to be removed
+             */
+            adViewHolder.flurryAdNative = null;
+            FlurryNativeAdViewBuilder.clearAdHolder(adViewHolder);
+            return;
+        }
 
-                flurryAdNative.setTrackingView(holder.itemView);
+        if (FlurryNativeAdViewBuilder.isAdBound(flurryAdNative, adViewHolder)) {
+            // Same ad rebound, e.g. after a layout change. Views are current.
+            mBaseAdAdapter.onAdViewReused();
+            if (adViewHolder.trackingRemoved) {
+                // Popped back into its view after it was requeued
+                FlurryNativeAdViewBuilder.bindExpandState(adViewHolder,
+                        mBaseAdAdapter.getExpandableAdMode(),
+                        mBaseAdAdapter.isAdExpanded(flurryAdNative));
+            }
+            mBaseAdAdapter.notifyAdRendered(position);
+            return;
+        }
 
-                FlurryNativeAdViewBuilder.buildAdIntoViews(
-                        flurryAdNative,
-                        ((FlurryRecyclerAdViewHolder)holder).getNativeAdViewHolder()
-                );
+        FlurryNativeAdViewBuilder.buildAdIntoViews(flurryAdNative, adViewHolder,
+                mBaseAdAdapter.getImageLoader());
+        mBaseAdAdapter.onAdViewBound(adViewHolder);
+        if (FlurryNativeAdViewBuilder.isRatingPending(adViewHolder)) {
+            mBaseAdAdapter.onAdRatingPending(flurryAdNative);
+        }
+        FlurryNativeAdViewBuilder.bindExpandState(adViewHolder,
+                mBaseAdAdapter.getExpandableAdMode(),
+                mBaseAdAdapter.isAdExpanded(flurryAdNative));
 
+        mBaseAdAdapter.notifyAdRendered(position);
+    }
+
+    /**
+     * @inheritDoc
+     *
+     * <p>Ad rows that still show the same ad are only partially rebound for the payloads notified
+     * by the adapter, e.g. an expansion change, or a rating whose view was not laid out when the
+     * row was built. Their other assets are not reloaded and the ad keeps tracking the same
+     * view.</p>
+     *
+     * <p>Ad rows whose ad was rotated are rebuilt with the next ad in the same view.</p>
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void onBindViewHolder(RecyclerView.ViewHolder holder, int position, List payloads) {
+        if (isAdViewType(holder.getItemViewType()) && !payloads.isEmpty()) {
+            FlurryAdViewHolder adViewHolder =
+                    ((FlurryRecyclerAdViewHolder) holder).getNativeAdViewHolder();
+            FlurryAdNative flurryAdNative = mBaseAdAdapter.getAdForPosition(position);
+            if (flurryAdNative != null && flurryAdNative == adViewHolder.flurryAdNative) {
+                for (Object payload : payloads) {
+                    bindPayload(adViewHolder, payload);
+                }
+                return;
+            }
+        } else if (!isAdRowType(holder.getItemViewType())) {
+            mWrappedAdapter.onBindViewHolder(holder, getOriginalPosition(position), payloads);
+            return;
+        }
+        onBindViewHolder(holder, position);
+    }
+
+    /*
+     Shows the ads of a carousel slot. Cards are bound by the carousel as they scroll in.
+     */
+    private void bindCarousel(FlurryAdCarouselViewHolder holder, int position) {
+        // The holder may have been created by another adapter sharing the recycled view pool
+        holder.applySettings(mCarouselHeight, mCarouselCardPool);
+        List<FlurryAdNative> flurryAdNatives = mBaseAdAdapter.getCarouselAdsForPosition(position);
+        AdCarouselAdapter carouselAdapter = getCarouselAdapter(holder);
+        if (carouselAdapter.mFlurryAdNatives.equals(flurryAdNatives)) {
+            // Same ads rebound, e.g. after a layout change. Cards and tracking are current.
+            if (!flurryAdNatives.isEmpty()) {
+                mBaseAdAdapter.onAdViewReused();
                 mBaseAdAdapter.notifyAdRendered(position);
-                break;
-            default:
-                mWrappedAdapter.onBindViewHolder(holder, getOriginalPosition(position));
-                break;
+            }
+            return;
+        }
+
+        // Cards of the previous ads are released into the card pool at the next layout
+        carouselAdapter.setAds(flurryAdNatives);
+        if (!flurryAdNatives.isEmpty()) {
+            mBaseAdAdapter.notifyAdRendered(position);
+        }
+    }
+
+    /*
+     Each carousel keeps the card adapter of this adapter, whose ads are replaced on rebind.
+     Setting another adapter on a carousel would clear the card pool once no other carousel has
+     one, so that cards would be inflated again.
+     */
+    private AdCarouselAdapter getCarouselAdapter(FlurryAdCarouselViewHolder holder) {
+        RecyclerView.Adapter carouselAdapter = holder.carouselView.getAdapter();
+        if (carouselAdapter instanceof AdCarouselAdapter &&
+                ((AdCarouselAdapter) carouselAdapter).getOuterAdapter() == this) {
+            return (AdCarouselAdapter) carouselAdapter;
+        }
+
+        AdCarouselAdapter newCarouselAdapter = new AdCarouselAdapter();
+        holder.carouselView.setAdapter(newCarouselAdapter);
+        return newCarouselAdapter;
+    }
+
+    /*
+     Lets go of the ads of a carousel, whose cards stay attached until it is laid out again.
+     */
+    private static void releaseCarousel(FlurryAdCarouselViewHolder holder) {
+        RecyclerView.Adapter carouselAdapter = holder.carouselView.getAdapter();
+        if (carouselAdapter instanceof AdCarouselAdapter) {
+            ((AdCarouselAdapter) carouselAdapter).release(holder.carouselView);
         }
     }
 
+    /*
+     Updates the views of an ad row for a single payload. Unknown payloads need no update, since
+     the row already shows the same ad.
+     */
+    private void bindPayload(FlurryAdViewHolder adViewHolder, Object payload) {
+        if (payload == FlurryBaseAdAdapter.PAYLOAD_AD_EXPANDED) {
+            FlurryNativeAdViewBuilder.expandAdView(adViewHolder);
+        } else if (payload == FlurryBaseAdAdapter.PAYLOAD_AD_COLLAPSED) {
+            FlurryNativeAdViewBuilder.collapseAdView(adViewHolder);
+        } else if (payload == FlurryBaseAdAdapter.PAYLOAD_AD_RATING) {
+            FlurryNativeAdViewBuilder.bindRating(adViewHolder);
+        }
+    }
+
+    /**
+     * @inheritDoc
+     *
+     * <p>Ad views stop being tracked while they are not attached. Ad views reattached without
+     * being bound again, e.g. from the view cache, are tracked again here, and rebuilt if their
+     * images were released in the meantime.</p>
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void onViewAttachedToWindow(RecyclerView.ViewHolder holder) {
+        if (isAdViewType(holder.getItemViewType())) {
+            rebuildReleasedAdView(((FlurryRecyclerAdViewHolder) holder).getNativeAdViewHolder(),
+                    mBaseAdAdapter.getExpandableAdMode());
+        } else if (holder.getItemViewType() != VIEW_TYPE_AD_CAROUSEL) {
+            mWrappedAdapter.onViewAttachedToWindow(holder);
+        }
+    }
+
+    /*
+     Views bound since they were detached, including newly bound ones, are already current.
+     */
+    private void rebuildReleasedAdView(FlurryAdViewHolder adViewHolder,
+                                       @ExpandableAdMode int expandableAdMode) {
+        FlurryAdNative flurryAdNative = adViewHolder.flurryAdNative;
+        // The ad may have been destroyed while the view was detached
+        if (flurryAdNative == null || !mBaseAdAdapter.isAdPlaced(flurryAdNative) ||
+                (!adViewHolder.imagesReleased && !adViewHolder.trackingRemoved)) {
+            return;
+        }
+
+        if (adViewHolder.imagesReleased) {
+            FlurryNativeAdViewBuilder.buildAdIntoViews(flurryAdNative, adViewHolder,
+                    mBaseAdAdapter.getImageLoader());
+            mBaseAdAdapter.onAdViewBound(adViewHolder);
+        }
+        FlurryNativeAdViewBuilder.bindExpandState(adViewHolder, expandableAdMode,
+                mBaseAdAdapter.isAdExpanded(flurryAdNative));
+    }
+
+    /**
+     * @inheritDoc
+     *
+     * <p>Ad views stop being tracked, but keep their ad and images in case they are reattached,
+     * e.g. after a transient detach or from the view cache. They are released once recycled.</p>
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void onViewDetachedFromWindow(RecyclerView.ViewHolder holder) {
+        if (isAdViewType(holder.getItemViewType())) {
+            releaseDetachedAdView(((FlurryRecyclerAdViewHolder) holder).getNativeAdViewHolder());
+        } else if (holder.getItemViewType() != VIEW_TYPE_AD_CAROUSEL) {
+            mWrappedAdapter.onViewDetachedFromWindow(holder);
+        }
+    }
+
+    private static void releaseDetachedAdView(FlurryAdViewHolder adViewHolder) {
+        if (adViewHolder.flurryAdNative != null) {
+            adViewHolder.flurryAdNative.removeTrackingView();
+            adViewHolder.trackingRemoved = true;
+        }
+    }
+
+    /**
+     * @inheritDoc
+     *
+     * <p>Ad views in the recycled view pool keep no ad, tracking or content.</p>
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void onViewRecycled(RecyclerView.ViewHolder holder) {
+        if (isAdViewType(holder.getItemViewType())) {
+            releaseAdViewHolder((FlurryRecyclerAdViewHolder) holder);
+        } else if (holder.getItemViewType() == VIEW_TYPE_AD_CAROUSEL) {
+            releaseCarousel((FlurryAdCarouselViewHolder) holder);
+        } else {
+            mWrappedAdapter.onViewRecycled(holder);
+        }
+    }
+
+    /**
+     * @inheritDoc
+     *
+     * <p>Ad views that cannot be recycled are released and discarded.</p>
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean onFailedToRecycleView(RecyclerView.ViewHolder holder) {
+        if (isAdViewType(holder.getItemViewType())) {
+            releaseAdViewHolder((FlurryRecyclerAdViewHolder) holder);
+            return false;
+        } else if (holder.getItemViewType() == VIEW_TYPE_AD_CAROUSEL) {
+            releaseCarousel((FlurryAdCarouselViewHolder) holder);
+            return false;
+        }
+        return mWrappedAdapter.onFailedToRecycleView(holder);
+    }
+
+    /*
+     Ad view types are derived from the ad layout only, so that adapters sharing a recycled view
+     pool agree on them. Layout resource IDs are positive, so the view types do not collide with
+     the usual non-negative view types of the wrapped adapter.
+     */
+    private static int getAdViewType(NativeAdViewBinder viewBinder) {
+        return -viewBinder.getAdLayoutId();
+    }
+
+    private boolean isAdViewType(int viewType) {
+        return viewType < 0 && getViewBinder(viewType) != null;
+    }
+
+    private boolean isAdRowType(int viewType) {
+        return viewType == VIEW_TYPE_AD_CAROUSEL || isAdViewType(viewType);
+    }
+
+    /*
+     Gets the first layout variant inflating the layout of an ad view type
+     */
+    @Nullable
+    private NativeAdViewBinder getViewBinder(int viewType) {
+        for (NativeAdViewBinder viewBinder : mBaseAdAdapter.getViewBinders()) {
+            if (getAdViewType(viewBinder) == viewType) {
+                return viewBinder;
+            }
+        }
+        return null;
+    }
+
+    private void releaseAdViewHolder(FlurryRecyclerAdViewHolder holder) {
+        FlurryAdViewHolder adViewHolder = holder.getNativeAdViewHolder();
+        mBaseAdAdapter.onAdViewReleased(adViewHolder);
+        if (adViewHolder.flurryAdNative != null) {
+            adViewHolder.flurryAdNative.removeTrackingView();
+            adViewHolder.flurryAdNative = null;
+        }
+        FlurryNativeAdViewBuilder.clearAdHolder(adViewHolder);
+    }
+
+    /**
+     * @inheritDoc
+     *
+     * <p>Also starts tracking which rows are visible in the RecyclerView, makes ads take up
+     * whole rows of a {@link GridLayoutManager}, and sets the shared recycled view pool, if
+     * any.</p>
+     */
+    @Override
+    public void onAttachedToRecyclerView(RecyclerView recyclerView) {
+        recyclerView.addOnScrollListener(mViewportScrollListener);
+        if (mRecycledViewPool != null && recyclerView.getRecycledViewPool() != mRecycledViewPool) {
+            recyclerView.setRecycledViewPool(mRecycledViewPool);
+        }
+        if (recyclerView.getLayoutManager() instanceof GridLayoutManager) {
+            applySpanSizeLookup((GridLayoutManager) recyclerView.getLayoutManager());
+        }
+        mWrappedAdapter.onAttachedToRecyclerView(recyclerView);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void onDetachedFromRecyclerView(RecyclerView recyclerView) {
+        recyclerView.removeOnScrollListener(mViewportScrollListener);
+        if (recyclerView.getLayoutManager() instanceof GridLayoutManager) {
+            GridLayoutManager layoutManager = (GridLayoutManager) recyclerView.getLayoutManager();
+            if (layoutManager.getSpanSizeLookup() instanceof AdSpanSizeLookup) {
+                layoutManager.setSpanSizeLookup(
+                        ((AdSpanSizeLookup) layoutManager.getSpanSizeLookup()).mWrappedLookup);
+            }
+        }
+        mWrappedAdapter.onDetachedFromRecyclerView(recyclerView);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean hasStableWrappedIds() {
+        return mWrappedAdapter.hasStableIds();
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public long getWrappedItemId(int originalPosition) {
+        return mWrappedAdapter.getItemId(originalPosition);
+    }
+
+    /**
+     * @inheritDoc
+     *
+     * <p>Noop, since view holders of released ads are rebound through item change notifications.
+     * </p>
+     */
+    @Override
+    public void onAdReleased(@NonNull FlurryAdNative flurryAdNative) {}
+
     /**
      * Refreshes ads with a new Flurry ad space.
      *
@@ -168,7 +526,7 @@ public class FlurryAdRecyclerAdapter extends RecyclerView.Adapter implements Nat
     public void destroyAds() {
         mBaseAdAdapter.destroyAds();
         notifyDataSetChanged();
-        mWrappedAdapter.unregisterAdapterDataObserver(sAdapterObserver);
+        mWrappedAdapter.unregisterAdapterDataObserver(mAdapterObserver);
     }
 
     /**
@@ -195,6 +553,58 @@ public class FlurryAdRecyclerAdapter extends RecyclerView.Adapter implements Nat
         return mBaseAdAdapter.getNumberOfAds(mWrappedAdapter.getItemCount());
     }
 
+    /**
+     * Saves the expand state of the ads in the adapter. Call this from
+     * <code>onSaveInstanceState(Bundle)</code> of your Activity or Fragment.
+     *
+     * @param outState the Bundle to save the state to
+     */
+    public void onSaveInstanceState(@NonNull Bundle outState) {
+        mBaseAdAdapter.onSaveInstanceState(outState);
+    }
+
+    /**
+     * Restores the expand state of ads saved with {@link #onSaveInstanceState(Bundle)}, e.g.
+     * after a configuration change. The state applies to the ads shown at the same positions.
+     *
+     * @param savedInstanceState the Bundle the state was saved to, or null
+     */
+    public void onRestoreInstanceState(@Nullable Bundle savedInstanceState) {
+        mBaseAdAdapter.onRestoreInstanceState(savedInstanceState);
+    }
+
+    /**
+     * Gets the number of times an ad view was bound to the ad it already showed, and so was not
+     * rebuilt. Every bind of an ad view is also reported to
+     * {@link NativeAdRenderListener#onAdRendered(int)}, so comparing both counts shows how many
+     * rebuilds were saved.
+     *
+     * @return the number of skipped ad view rebuilds
+     */
+    public int getReusedAdViewCount() {
+        return mBaseAdAdapter.getReusedAdViewCount();
+    }
+
+    /**
+     * Gets the number of ads destroyed so far to free memory when the system asked the app to
+     * trim its memory use.
+     *
+     * @return the number of reclaimed ads
+     */
+    public int getReclaimedAdCount() {
+        return mBaseAdAdapter.getReclaimedAdCount();
+    }
+
+    /**
+     * Gets the approximate number of image bytes released so far from ad views when the system
+     * asked the app to trim its memory use.
+     *
+     * @return the number of reclaimed bytes
+     */
+    public long getReclaimedImageBytes() {
+        return mBaseAdAdapter.getReclaimedImageBytes();
+    }
+
     /**
      * @inheritDoc
      */
@@ -203,6 +613,162 @@ public class FlurryAdRecyclerAdapter extends RecyclerView.Adapter implements Nat
         mBaseAdAdapter.setRetryFailedAdPositions(retryFailedAdPositions);
     }
 
+    /**
+     * <p>Wraps the {@link GridLayoutManager.SpanSizeLookup} of a grid so that ads take up whole
+     * rows. The wrapped lookup is queried with the positions of the wrapped adapter, so it does
+     * not need to know about ads. Span indexes are cached, so looking them up in large grids does
+     * not walk all preceding rows.</p>
+     *
+     * <p>This is done automatically when the adapter is attached to a RecyclerView with a
+     * GridLayoutManager. Call it again if you set another SpanSizeLookup afterwards.</p>
+     *
+     * <p>Use a {@link com.yahoo.mobile.library.streamads.positioning.GridIntervalAdPositioner}
+     * so that ads are placed between full rows of content.</p>
+     *
+     * @param layoutManager the layout manager of the RecyclerView showing this adapter
+     */
+    public void applySpanSizeLookup(@NonNull GridLayoutManager layoutManager) {
+        GridLayoutManager.SpanSizeLookup spanSizeLookup = layoutManager.getSpanSizeLookup();
+        if (spanSizeLookup instanceof AdSpanSizeLookup) {
+            return;
+        }
+        layoutManager.setSpanSizeLookup(new AdSpanSizeLookup(layoutManager, spanSizeLookup));
+    }
+
+    private final class AdSpanSizeLookup extends GridLayoutManager.SpanSizeLookup {
+        private final GridLayoutManager mLayoutManager;
+        final GridLayoutManager.SpanSizeLookup mWrappedLookup;
+
+        AdSpanSizeLookup(GridLayoutManager layoutManager,
+                         GridLayoutManager.SpanSizeLookup wrappedLookup) {
+            mLayoutManager = layoutManager;
+            mWrappedLookup = wrappedLookup;
+            // The layout manager invalidates the cache whenever the adapter notifies changes
+            setSpanIndexCacheEnabled(true);
+        }
+
+        @Override
+        public int getSpanSize(int position) {
+            if (isAdRowType(getItemViewType(position))) {
+                return mLayoutManager.getSpanCount();
+            }
+            return mWrappedLookup.getSpanSize(getOriginalPosition(position));
+        }
+    }
+
+    /*
+     Cards of a carousel, one per ad. Cards pick their layout variant by the assets of their ad,
+     and do not support expansion toggling.
+     */
+    private final class AdCarouselAdapter extends RecyclerView.Adapter<FlurryRecyclerAdViewHolder> {
+        List<FlurryAdNative> mFlurryAdNatives = Collections.emptyList();
+
+        /*
+         Shows other ads. The cards of the previous ads are rebound or released into the card pool
+         at the next layout.
+         */
+        void setAds(List<FlurryAdNative> flurryAdNatives) {
+            mFlurryAdNatives = flurryAdNatives;
+            notifyDataSetChanged();
+        }
+
+        /*
+         Shows no ads, and lets go of the ads of the attached cards right away, since a recycled
+         carousel is not laid out until it is bound again.
+         */
+        void release(RecyclerView carouselView) {
+            setAds(Collections.<FlurryAdNative>emptyList());
+            for (int i = 0; i < carouselView.getChildCount(); i++) {
+                releaseAdViewHolder((FlurryRecyclerAdViewHolder)
+                        carouselView.getChildViewHolder(carouselView.getChildAt(i)));
+            }
+        }
+
+        FlurryAdRecyclerAdapter getOuterAdapter() {
+            return FlurryAdRecyclerAdapter.this;
+        }
+
+        @Override
+        public int getItemCount() {
+            return mFlurryAdNatives.size();
+        }
+
+        @Override
+        public int getItemViewType(int position) {
+            return getAdViewType(mBaseAdAdapter.getViewBinders().get(
+                    mBaseAdAdapter.selectViewBinder(mFlurryAdNatives.get(position))));
+        }
+
+        @Override
+        public FlurryRecyclerAdViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            NativeAdViewBinder viewBinder = getViewBinder(viewType);
+            View view = LayoutInflater.from(mContextReference.get())
+                    .inflate(viewBinder.getAdLayoutId(), parent, false);
+            return new FlurryRecyclerAdViewHolder(view, viewBinder);
+        }
+
+        @Override
+        public void onBindViewHolder(FlurryRecyclerAdViewHolder holder, int position) {
+            FlurryAdNative flurryAdNative = mFlurryAdNatives.get(position);
+            // The card may have been bound for another layout variant inflating the same layout
+            holder.setViewBinder(mBaseAdAdapter.getViewBinders().get(
+                    mBaseAdAdapter.selectViewBinder(flurryAdNative)));
+            FlurryAdViewHolder adViewHolder = holder.getNativeAdViewHolder();
+            if (FlurryNativeAdViewBuilder.isAdBound(flurryAdNative, adViewHolder)) {
+                mBaseAdAdapter.onAdViewReused();
+                return;
+            }
+
+            FlurryNativeAdViewBuilder.buildAdIntoViews(flurryAdNative, adViewHolder,
+                    mBaseAdAdapter.getImageLoader());
+            mBaseAdAdapter.onAdViewBound(adViewHolder);
+            FlurryNativeAdViewBuilder.bindExpandState(adViewHolder, EXPANDABLE_AD_MODE_OFF, false);
+        }
+
+        @Override
+        public void onViewAttachedToWindow(FlurryRecyclerAdViewHolder holder) {
+            rebuildReleasedAdView(holder.getNativeAdViewHolder(), EXPANDABLE_AD_MODE_OFF);
+        }
+
+        @Override
+        public void onViewDetachedFromWindow(FlurryRecyclerAdViewHolder holder) {
+            releaseDetachedAdView(holder.getNativeAdViewHolder());
+        }
+
+        @Override
+        public void onViewRecycled(FlurryRecyclerAdViewHolder holder) {
+            releaseAdViewHolder(holder);
+        }
+
+        @Override
+        public boolean onFailedToRecycleView(FlurryRecyclerAdViewHolder holder) {
+            releaseAdViewHolder(holder);
+            return false;
+        }
+    }
+
+    private final RecyclerView.OnScrollListener mViewportScrollListener =
+            new RecyclerView.OnScrollListener() {
+        @Override
+        public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+            // Works with any LayoutManager, children are the laid out rows
+            int firstVisiblePosition = Integer.MAX_VALUE;
+            int lastVisiblePosition = RecyclerView.NO_POSITION;
+            for (int i = 0; i < recyclerView.getChildCount(); i++) {
+                int position = recyclerView.getChildAdapterPosition(recyclerView.getChildAt(i));
+                if (position == RecyclerView.NO_POSITION) {
+                    continue;
+                }
+                firstVisiblePosition = Math.min(firstVisiblePosition, position);
+                lastVisiblePosition = Math.max(lastVisiblePosition, position);
+            }
+
+            if (lastVisiblePosition != RecyclerView.NO_POSITION) {
+                mBaseAdAdapter.onViewportChanged(firstVisiblePosition, lastVisiblePosition);
+            }
+        }
+    };
+
     public static class Builder {
         FlurryAdRecyclerAdapter mFlurryRecyclerAdapter;
 
@@ -220,9 +786,10 @@ public class FlurryAdRecyclerAdapter extends RecyclerView.Adapter implements Nat
             mFlurryRecyclerAdapter = new FlurryAdRecyclerAdapter();
             mFlurryRecyclerAdapter.mContextReference = new WeakReference<>(context);
             mFlurryRecyclerAdapter.mWrappedAdapter = adapter;
-            mFlurryRecyclerAdapter.mViewBinder = viewBinder;
-            mFlurryRecyclerAdapter.mBaseAdAdapter.initAdFetcher(context);
+            mFlurryRecyclerAdapter.mBaseAdAdapter.addViewBinder(viewBinder);
+            // Ad space first, so that ads warmed up for it are adopted
             mFlurryRecyclerAdapter.mBaseAdAdapter.setAdSpaceName(adSpaceName);
+            mFlurryRecyclerAdapter.mBaseAdAdapter.initAdFetcher(context);
         }
 
         /**
@@ -289,11 +856,211 @@ public class FlurryAdRecyclerAdapter extends RecyclerView.Adapter implements Nat
             return this;
         }
 
+        /**
+         * <p>Sets how many screens above and below the visible rows placed ads are kept in memory.
+         * Ads that have been seen are destroyed once they are further away, and their positions
+         * get a new ad if they are scrolled back into view.</p>
+         *
+         * <p>Defaults to 3 screens.</p>
+         *
+         * @param screens the number of screens on either side of the visible rows, at least 1
+         * @return a {@link FlurryAdRecyclerAdapter.Builder} instance
+         */
+        public Builder setResidencyWindow(int screens) {
+            mFlurryRecyclerAdapter.mBaseAdAdapter.setResidencyWindow(screens);
+            return this;
+        }
+
+        /**
+         * <p>Rotates ads in long-dwell screens. Once an ad has logged its impression and has been
+         * on screen for the given interval, the next queued ad is shown in its place, with the
+         * same layout variant. Expanded ads and ads that are scrolled off-screen are rotated
+         * later. Fetching is paced to the rotation rate.</p>
+         *
+         * <p>Use it with {@link #setAdReservation(int, long)}, so that rotating an ad never
+         * changes the number of rows. Otherwise, a rotation that uses up a queued ad slot
+         * removes that slot, which is further down the list and not bound yet.</p>
+         *
+         * <p>Carousels are not rotated.</p>
+         *
+         * @param rotationIntervalMillis how long each ad is shown after its impression, or 0 to
+         *                               keep ads in their positions
+         * @return a {@link FlurryAdRecyclerAdapter.Builder} instance
+         */
+        public Builder setAdRotation(long rotationIntervalMillis) {
+            mFlurryRecyclerAdapter.mBaseAdAdapter.setRotationInterval(rotationIntervalMillis);
+            return this;
+        }
+
+        /**
+         * <p>Loads the image assets of ads with the given {@link AdImageLoader}, by their URLs,
+         * instead of letting the Flurry SDK load them. Images are requested at the size of the
+         * views they are shown in.</p>
+         *
+         * <p>Use a {@link CachingAdImageLoader} to keep ad images in memory and disk caches.
+         * Share it between ad adapters so that they share the caches.</p>
+         *
+         * @param imageLoader the image loader to use
+         * @return a {@link FlurryAdRecyclerAdapter.Builder} instance
+         */
+        public Builder setImageLoader(@NonNull AdImageLoader imageLoader) {
+            mFlurryRecyclerAdapter.mBaseAdAdapter.setImageLoader(imageLoader);
+            return this;
+        }
+
+        /**
+         * <p>Adds a layout variant for ad views, e.g. a text-only layout for ads without an
+         * image. Each variant has its own view type, so ad views are only recycled into positions
+         * with the same layout.</p>
+         *
+         * <p>By default, each ad is shown with the first view binder whose image views it has
+         * assets for, starting with the one passed to <code>from(...)</code>. Use
+         * {@link #setViewBinderSelector(NativeAdViewBinder.ViewBinderSelector)} to pick variants
+         * by position instead.</p>
+         *
+         * @param viewBinder the {@link NativeAdViewBinder} of the layout variant
+         * @return a {@link FlurryAdRecyclerAdapter.Builder} instance
+         */
+        public Builder addViewBinder(@NonNull NativeAdViewBinder viewBinder) {
+            mFlurryRecyclerAdapter.mBaseAdAdapter.addViewBinder(viewBinder);
+            return this;
+        }
+
+        /**
+         * Sets how ad positions pick one of the layout variants added with
+         * {@link #addViewBinder(NativeAdViewBinder)}.
+         *
+         * @param viewBinderSelector the selector, or <code>null</code> to pick by the assets of
+         *                           each ad
+         * @return a {@link FlurryAdRecyclerAdapter.Builder} instance
+         */
+        public Builder setViewBinderSelector(
+                @Nullable NativeAdViewBinder.ViewBinderSelector viewBinderSelector) {
+            mFlurryRecyclerAdapter.mBaseAdAdapter.setViewBinderSelector(viewBinderSelector);
+            return this;
+        }
+
+        /**
+         * <p>Sets which ad a position gets when no queued ad has the assets its layout variant
+         * shows, e.g. an image. Only applies to layout variants picked by a
+         * {@link NativeAdViewBinder.ViewBinderSelector}.</p>
+         *
+         * <p>Value should be one of:</p>
+         * <ul>
+         *     <li>{@link #ASSET_FALLBACK_OLDEST_AD} -
+         *          Default. The position gets the oldest queued ad.</li>
+         *     <li>{@link #ASSET_FALLBACK_NONE} -
+         *          The position waits for an ad that has the assets.</li>
+         * </ul>
+         *
+         * @param assetFallback the fallback to use
+         * @return a {@link FlurryAdRecyclerAdapter.Builder} instance
+         */
+        public Builder setAssetFallback(@AssetFallback int assetFallback) {
+            mFlurryRecyclerAdapter.mBaseAdAdapter.setAssetFallback(assetFallback);
+            return this;
+        }
+
+        /**
+         * <p>Sets the expanded mode that ads from this adapter should start in.</p>
+         *
+         * <p>Mode value should be one of:</p>
+         * <ul>
+         *     <li>{@link #EXPANDABLE_AD_MODE_OFF} -
+         *          Default mode. Ad expansion toggling is not supported.</li>
+         *     <li>{@link #EXPANDABLE_AD_MODE_EXPANDED} -
+         *          Ads start off in expanded mode and can be toggled.</li>
+         *     <li>{@link #EXPANDABLE_AD_MODE_COLLAPSED} -
+         *          Ads start off in collapsed mode and can be toggled.</li>
+         * </ul>
+         *
+         * <p>If you set any mode other than <code>EXPANDABLE_AD_MODE_OFF</code>, you must pass
+         * in a call-to-action view
+         * ({@link NativeAdViewBinder.ViewBinderBuilder#setCallToActionViewId(int)}) and a
+         * "collapse" button ({@link NativeAdViewBinder.ViewBinderBuilder#setAdCollapseViewId(int)}).
+         * </p>
+         *
+         * @param mode the expanded mode to set for all ads in the adapter
+         * @return a {@link FlurryAdRecyclerAdapter.Builder} instance
+         */
+        public Builder setExpandableAdMode(@ExpandableAdMode int mode) {
+            mFlurryRecyclerAdapter.mBaseAdAdapter.setExpandableAdMode(mode);
+            return this;
+        }
+
+        /**
+         * <p>Reserves ad positions shortly before they come on screen instead of inserting ads
+         * as they are fetched. Until an ad is available, a reserved position shows an empty ad
+         * view of the given height. The ad is then filled into the same view, so the rows around
+         * it do not move. Placeholders still waiting for an ad after the given delay are
+         * removed.</p>
+         *
+         * <p>Ad views are at least as high as the placeholder in this mode. Use the height of
+         * your ad layout to avoid any layout shift.</p>
+         *
+         * @param placeholderHeightPx the minimum height of ad views, in pixels
+         * @param collapseDelayMillis how long a placeholder waits for an ad before it is removed
+         * @return a {@link FlurryAdRecyclerAdapter.Builder} instance
+         */
+        public Builder setAdReservation(int placeholderHeightPx, long collapseDelayMillis) {
+            mFlurryRecyclerAdapter.mPlaceholderHeight = Math.max(placeholderHeightPx, 0);
+            mFlurryRecyclerAdapter.mBaseAdAdapter.setReservationMode(collapseDelayMillis);
+            return this;
+        }
+
+        /**
+         * <p>Shows several ads in each ad slot, as a horizontally scrolling carousel of cards.
+         * The ads of a carousel are taken from the queue together, and each card is bound as it
+         * scrolls in. Cards are built with the view binders of the adapter, picked by the assets
+         * of each ad.</p>
+         *
+         * <p>The carousel has a fixed height, so that binding its cards does not change the
+         * layout of the stream. Expansion toggling is not supported for cards.</p>
+         *
+         * @param adsPerCarousel the maximum number of ads in each carousel, at least 2 to enable
+         *                       carousels
+         * @param carouselHeightPx the height of carousel rows, in pixels
+         * @return a {@link FlurryAdRecyclerAdapter.Builder} instance
+         */
+        public Builder setAdCarousel(int adsPerCarousel, int carouselHeightPx) {
+            mFlurryRecyclerAdapter.mBaseAdAdapter.setCarouselSize(adsPerCarousel);
+            mFlurryRecyclerAdapter.mCarouselHeight = Math.max(carouselHeightPx, 0);
+            return this;
+        }
+
+        /**
+         * <p>Shares a {@link RecyclerView.RecycledViewPool} with other RecyclerViews, e.g. in tabs
+         * or nested lists, so that ad views inflated for one are reused by the others. The pool
+         * is set on the RecyclerView when this adapter is attached to it.</p>
+         *
+         * <p>Ad view types are derived from the ad layouts, so adapters with the same ad layouts
+         * share ad views. Since the wrapped adapter's views go to the same pool, the wrapped
+         * adapters of all RecyclerViews sharing it must agree on their view types.</p>
+         *
+         * @param recycledViewPool the pool to share
+         * @param maxRecycledAdViews how many ad views of each ad layout the pool keeps
+         * @return a {@link FlurryAdRecyclerAdapter.Builder} instance
+         */
+        public Builder setRecycledViewPool(@NonNull RecyclerView.RecycledViewPool recycledViewPool,
+                                           int maxRecycledAdViews) {
+            mFlurryRecyclerAdapter.mRecycledViewPool = recycledViewPool;
+            mFlurryRecyclerAdapter.mMaxRecycledAdViews = Math.max(maxRecycledAdViews, 0);
+            return this;
+        }
+
         /**
          * Builds the {@link FlurryAdRecyclerAdapter} with the current settings
          * @return the ready to use {@link FlurryAdRecyclerAdapter}
          */
         public FlurryAdRecyclerAdapter build() {
+            if (mFlurryRecyclerAdapter.mBaseAdAdapter.getExpandableAdMode() !=
+                    EXPANDABLE_AD_MODE_OFF &&
+                    !mFlurryRecyclerAdapter.mBaseAdAdapter.canExpandAdViews()) {
+                throw new IllegalStateException("If you are not passing EXPANDABLE_AD_MODE_OFF to " +
+                        "FlurryAdRecyclerAdapter.Builder#setExpandableAdMode(int), you should set " +
+                        "a call-to-action and collapse-ad View in all your NativeAdViewBinders.");
+            }
+
             mFlurryRecyclerAdapter.mBaseAdAdapter.setFetchListener(
                     new FlurryNativeAdFetcher.FetchListener() {
                         @Override
@@ -306,33 +1073,52 @@ public class FlurryAdRecyclerAdapter extends RecyclerView.Adapter implements Nat
 
             mFlurryRecyclerAdapter.setRetryFailedAdPositions(true);
 
-            sAdapterObserver = new RecyclerView.AdapterDataObserver() {
+            if (mFlurryRecyclerAdapter.mRecycledViewPool != null) {
+                for (NativeAdViewBinder viewBinder :
+                        mFlurryRecyclerAdapter.mBaseAdAdapter.getViewBinders()) {
+                    mFlurryRecyclerAdapter.mRecycledViewPool.setMaxRecycledViews(
+                            getAdViewType(viewBinder), mFlurryRecyclerAdapter.mMaxRecycledAdViews);
+                }
+            }
+
+            mFlurryRecyclerAdapter.mAdapterObserver = new RecyclerView.AdapterDataObserver() {
                 @Override
                 public void onChanged() {
+                    mFlurryRecyclerAdapter.mBaseAdAdapter.onWrappedDataSetChanged(
+                            mFlurryRecyclerAdapter.mWrappedAdapter.getItemCount());
                     mFlurryRecyclerAdapter.notifyDataSetChanged();
                 }
 
                 @Override
                 public void onItemRangeChanged(int positionStart, int itemCount) {
-                    mFlurryRecyclerAdapter.notifyItemRangeChanged(positionStart, itemCount);
+                    mFlurryRecyclerAdapter.mBaseAdAdapter.onWrappedItemRangeChanged(
+                            positionStart, itemCount,
+                            mFlurryRecyclerAdapter.mWrappedAdapter.getItemCount());
                 }
 
                 @Override
                 public void onItemRangeInserted(int positionStart, int itemCount) {
-                    mFlurryRecyclerAdapter.notifyItemRangeInserted(positionStart, itemCount);
+                    mFlurryRecyclerAdapter.mBaseAdAdapter.onWrappedItemRangeInserted(
+                            positionStart, itemCount,
+                            mFlurryRecyclerAdapter.mWrappedAdapter.getItemCount());
                 }
 
                 @Override
                 public void onItemRangeRemoved(int positionStart, int itemCount) {
-                    mFlurryRecyclerAdapter.notifyItemRangeRemoved(positionStart, itemCount);
+                    mFlurryRecyclerAdapter.mBaseAdAdapter.onWrappedItemRangeRemoved(
+                            positionStart, itemCount,
+                            mFlurryRecyclerAdapter.mWrappedAdapter.getItemCount());
                 }
 
                 @Override
                 public void onItemRangeMoved(int fromPosition, int toPosition, int itemCount) {
-                    mFlurryRecyclerAdapter.notifyDataSetChanged();
+                    mFlurryRecyclerAdapter.mBaseAdAdapter.onWrappedItemRangeMoved(fromPosition,
+                            toPosition, itemCount,
+                            mFlurryRecyclerAdapter.mWrappedAdapter.getItemCount());
                 }
             };
-            mFlurryRecyclerAdapter.mWrappedAdapter.registerAdapterDataObserver(sAdapterObserver);
+            mFlurryRecyclerAdapter.mWrappedAdapter.registerAdapterDataObserver(
+                    mFlurryRecyclerAdapter.mAdapterObserver);
             return mFlurryRecyclerAdapter;
         }
 
@@ -30,6 +30,28 @@ import com.flurry.android.ads.FlurryAdNative;
 class FlurryAdViewHolder extends NativeAdViewHolder {
     @Nullable FlurryAdNative flurryAdNative;
     View parentView;
+    /**
+     * Whether all assets of {@link #flurryAdNative} are loaded into the views. False until the
+     * views that pick an image size by their width have been laid out, or after images were
+     * released.
+     */
+    boolean fullyBound;
+    /**
+     * Whether the images of {@link #flurryAdNative} were released, so the views have to be
+     * rebuilt before they are shown again. Only set by
+     * {@link FlurryNativeAdViewBuilder#releaseAdImages(FlurryAdViewHolder)}.
+     */
+    boolean imagesReleased;
+    /**
+     * Whether {@link #flurryAdNative} stopped tracking the views, e.g. when they were detached or
+     * the ad was returned to the queue. They are tracked again when reattached or rebound.
+     */
+    boolean trackingRemoved;
+    /**
+     * The loader the images of {@link #flurryAdNative} were last loaded with, or null if the SDK
+     * loaded them. Used to cancel loads still pending when the views are cleared.
+     */
+    @Nullable AdImageLoader imageLoader;
 
     private FlurryAdViewHolder(@NonNull View parentView,
                                @NonNull NativeAdViewBinder viewBinder) {
@@ -16,17 +16,23 @@
 
 package com.yahoo.mobile.library.streamads;
 
-import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.app.Activity;
-import android.app.Application;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
+import android.support.v4.util.LongSparseArray;
+import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import com.flurry.android.ads.FlurryAdNative;
 import com.flurry.android.ads.FlurryAdNativeListener;
@@ -34,22 +40,97 @@ import com.flurry.android.ads.FlurryAdTargeting;
 import com.yahoo.mobile.library.streamads.positioning.AdapterAdPositioner;
 import com.yahoo.mobile.library.streamads.positioning.LinearIntervalAdPositioner;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 /**
  * Base implementation ozf {@link NativeAdAdapter}. Designed to be used by composition and does not
  * directly implement <code>NativeAdAdapter</code>.
  */
 class FlurryBaseAdAdapter {
+    private static final String TAG = FlurryBaseAdAdapter.class.getSimpleName();
 
+    private static final int INVALID_AD_COUNT = -1;
+    private static final int ANCHOR_NOT_FOUND = -2;
+    /**
+     * How many screens away from the viewport a placement has to be before its ad is returned to
+     * the queue if it never logged an impression. Keeps clear of views the list widget caches
+     * without rebinding.
+     */
+    private static final int RECLAIM_DISTANCE_SCREENS = 2;
+    /**
+     * Default number of screens on either side of the viewport that placed ads are kept for.
+     */
+    static final int DEFAULT_RESIDENCY_WINDOW_SCREENS = 3;
+    /**
+     * Number of ads to keep queued while memory is low.
+     */
+    private static final int LOW_MEMORY_PREFETCH_TARGET = 1;
+    /**
+     * How long after the last memory trim request the queue goes back to its normal size.
+     */
+    private static final int MEMORY_RECOVERY_TIME_MILLI = 60000;
+    private static final Comparator<AdPlacement> LAST_PLACEMENT_FIRST =
+            new Comparator<AdPlacement>() {
+                @Override
+                public int compare(AdPlacement lhs, AdPlacement rhs) {
+                    return rhs.layoutPosition - lhs.layoutPosition;
+                }
+            };
+    static final String STATE_EXPANDED_AD_POSITIONS =
+            "com.yahoo.mobile.library.streamads.EXPANDED_AD_POSITIONS";
+    static final String STATE_COLLAPSED_AD_POSITIONS =
+            "com.yahoo.mobile.library.streamads.COLLAPSED_AD_POSITIONS";
+    /**
+     * Payload of the item change notified when a placeholder is filled with an ad in place.
+     */
+    static final Object PAYLOAD_AD_FILLED = new Object();
+    /**
+     * Payloads of the item change notified when the ad shown in a slot was expanded or collapsed.
+     * Only the views that depend on the expansion are updated.
+     */
+    static final Object PAYLOAD_AD_EXPANDED = new Object();
+    static final Object PAYLOAD_AD_COLLAPSED = new Object();
+    /**
+     * Payload of the item change notified when the ad in a slot was rotated for the next one. The
+     * slot keeps its view, which is rebuilt with the new ad.
+     */
+    static final Object PAYLOAD_AD_ROTATED = new Object();
+    /**
+     * Payload of the item change notified when the ad shown in a slot was built before its rating
+     * view was laid out. Only the rating is loaded.
+     */
+    static final Object PAYLOAD_AD_RATING = new Object();
+
+    /*
+    Placed ads of this adapter, so that several adapters can show ads at the same time, e.g. in
+    tabs. Keyed by layout position, see PositionShiftMap.
+     */
+    private SparseArray<AdPlacement> mAdPositionMapping;
+    /*
+    Placements by the ads they show, including further carousel ads, so that the placement of an
+    ad is found on every bind or ad event without scanning all placements. Updated by
+    setPlacementAd() and setCarouselAds().
+     */
+    private final Map<FlurryAdNative, AdPlacement> mPlacementsByAd = new IdentityHashMap<>();
     /*
-    Potentially memory-dangerous attempt to outlive Activity rotation by using static fields.
-    This is circumvented by destroying ad objects when no longer in use.
+    Placements that currently hold an ad. Placements whose ads were released stay in the position
+    mapping, so ads far from the viewport are looked for here instead, which the residency window
+    keeps small. Updated by setPlacementAd().
      */
-    private static SparseArray<FlurryAdNative> sAdPositionMapping;
+    private final Set<AdPlacement> mFilledPlacements =
+            Collections.newSetFromMap(new IdentityHashMap<AdPlacement, Boolean>());
 
     private FlurryNativeAdFetcher mNativeAdFetcher;
+    @Nullable private AdLifecycleController mLifecycleController;
     private AdapterAdPositioner mPositioner;
     private ListAdapterDataListener mAdapterDataListener;
 
@@ -60,6 +141,81 @@ class FlurryBaseAdAdapter {
     private boolean mAutoDestroyAds;
     private @NativeAdAdapter.ExpandableAdMode int mExpandableAdMode;
 
+    /*
+    Layout variants for ad views. The first one is the view binder the adapter was created with.
+     */
+    private final List<NativeAdViewBinder> mViewBinders = new ArrayList<>();
+    @Nullable private NativeAdViewBinder.ViewBinderSelector mViewBinderSelector;
+    private @NativeAdAdapter.AssetFallback int mAssetFallback;
+    /*
+    Number of ads each ad slot shows. Slots with more than one ad are shown as carousels.
+     */
+    private int mCarouselSize = 1;
+    /*
+    How long an ad is shown on screen after its impression before it is rotated, or 0 if ads stay
+    in their slot.
+     */
+    private long mRotationIntervalMillis;
+    @Nullable private AdImageLoader mImageLoader;
+
+    /*
+    Number of ads is queried on every getCount()/getItemCount() call, which the list widgets do
+    many times per layout pass. Cache it and only recompute after invalidateAdCount().
+     */
+    private int mCachedAdCount = INVALID_AD_COUNT;
+    private int mCachedInternalAdapterSize;
+    /*
+    Queued ad slots used up by swapping expired ads during a layout pass. They are still counted
+    until their removal has been notified after that pass.
+     */
+    private int mPendingSlotRemovals;
+
+    /*
+    Rows inserted into or removed from the wrapped adapter after ads were placed. Lets placed ads
+    move along with their content instead of staying at a fixed adjusted position.
+     */
+    private PositionShiftMap mShiftMap;
+
+    /*
+    Used to defer adapter notifications raised while the list widget is querying the adapter, so
+    that they reach it after the current layout pass.
+     */
+    private final Handler mMainHandler;
+
+    /*
+    Adjusted positions of the first and last visible rows, as last reported by the list widget.
+     */
+    private int mFirstVisiblePosition = PositionShiftMap.NO_POSITION;
+    private int mLastVisiblePosition = PositionShiftMap.NO_POSITION;
+    private int mResidencyWindowScreens = DEFAULT_RESIDENCY_WINDOW_SCREENS;
+
+    /*
+    Ad view holders that have been bound, so their images can be released under memory pressure.
+    Weakly held since the list widget owns them.
+     */
+    private final Set<FlurryAdViewHolder> mBoundAdViewHolders =
+            Collections.newSetFromMap(new WeakHashMap<FlurryAdViewHolder, Boolean>());
+    private boolean mAdImagesReleased;
+    @Nullable private Context mApplicationContext;
+    @Nullable private MemoryCallbacks mMemoryCallbacks;
+    private int mReclaimedAdCount;
+    private long mReclaimedImageBytes;
+    private int mReusedAdViewCount;
+
+    /*
+    Reservation mode. Ad slots are reserved ahead of the viewport and shown as placeholders until
+    an ad fills them in place. Queued ads then only fill reserved slots instead of adding slots.
+     */
+    private boolean mReservationMode;
+    private long mReservationDeadlineMillis;
+    private boolean mReservationPosted;
+
+    /*
+    Expand states restored after a configuration change, by layout position. Applied to the
+    placements created at those positions.
+     */
+    private final SparseIntArray mRestoredExpandStates = new SparseIntArray();
+
     FlurryBaseAdAdapter(ListAdapterDataListener adapterDataListener) {
         if (!(adapterDataListener instanceof NativeAdAdapter)) {
             throw new IllegalArgumentException(
@@ -68,51 +224,107 @@ class FlurryBaseAdAdapter {
         }
         mAdapterDataListener = adapterDataListener;
         mAdRenderListeners = new ArrayList<>();
+        mShiftMap = new PositionShiftMap();
+        mMainHandler = new Handler(Looper.getMainLooper());
         // Set a default AdapterAdPositioner with startPosition and interval of 3
         mPositioner = new LinearIntervalAdPositioner(3, 3);
         initAdPositionMap(5);
     }
 
+    /**
+     * Creates the ad fetcher, or adopts the one warmed up for the ad space with
+     * {@link StreamAds#warmUp(Context, String, int)}. The ad space name must be set before.
+     *
+     * @param context the context the adapter was created with
+     */
     void initAdFetcher(Context context) {
-        mNativeAdFetcher = new FlurryNativeAdFetcher(context);
-
-        if (mAutoDestroyAds) {
-            registerActivityLifecycleListener(context);
+        FlurryNativeAdFetcher warmFetcher = mAdSpaceName != null ?
+                StreamAds.adoptWarmFetcher(mAdSpaceName) : null;
+        if (warmFetcher != null) {
+            // Already queued ads are counted from the first layout, so nothing reflows
+            mNativeAdFetcher = warmFetcher;
+            mNativeAdFetcher.setPrefetchTarget(Integer.MAX_VALUE);
+        } else {
+            mNativeAdFetcher = new FlurryNativeAdFetcher(context);
         }
+        mNativeAdFetcher.addFlurryAdNativeListener(mImpressionListener);
+        initLifecycleController(context);
+        mApplicationContext = context.getApplicationContext();
+        registerMemoryCallbacks();
     }
 
     void refreshAds(String adSpaceName) {
-        // Destroy ads from previous ad space
-        destroyAds();
+        if (mAdPositionMapping == null) {
+            Log.w(TAG, "Cannot refresh ads, they were destroyed");
+            return;
+        }
+        // Release ads from previous ad space, but keep the adapter attached to its listeners
+        releaseAds();
         setAdSpaceName(adSpaceName);
         refreshAds();
+        mAdapterDataListener.notifyDataSetChanged();
     }
 
     //region methods from NativeAdAdapter
 
     /**
-     * A base implementation of {@link NativeAdAdapter#refreshAds()}.
+     * A base implementation of {@link NativeAdAdapter#refreshAds()}. Noop once ads were destroyed.
      */
     void refreshAds() {
+        if (mAdPositionMapping == null) {
+            Log.w(TAG, "Cannot refresh ads, they were destroyed");
+            return;
+        }
+        // Noop unless the Activity was destroyed while ads were kept
+        registerMemoryCallbacks();
         mNativeAdFetcher.prefetchAds(mAdSpaceName);
     }
 
     /**
-     * A base implementation of {@link NativeAdAdapter#destroyAds()}.
+     * A base implementation of {@link NativeAdAdapter#destroyAds()}. The adapter is detached from
+     * its fetcher, lifecycle and memory callbacks for good, and shows no ads afterwards.
      */
     void destroyAds() {
+        releaseAds();
+        mAdPositionMapping = null;
+        if (mLifecycleController != null) {
+            mLifecycleController.unregister();
+        }
+        unregisterMemoryCallbacks();
+        mNativeAdFetcher.setFetchListener(null);
+        mNativeAdFetcher.clearFlurryAdNativeListeners();
+    }
+
+    /**
+     * Destroys placed and queued ads, abandoning any request in flight, while keeping the
+     * adapter ready to fetch again.
+     */
+    private void releaseAds() {
         /*
          A bit slower than looping through HashMap, but any good ad integration
          should not contain > 50 ads, so perf. diff. is negligible and memory savings are greater
          */
-        for (int i = 0; i < sAdPositionMapping.size(); i++) {
-            sAdPositionMapping.valueAt(i).destroy();
+        for (int i = 0; i < mAdPositionMapping.size(); i++) {
+            FlurryAdNative flurryAdNative = mAdPositionMapping.valueAt(i).flurryAdNative;
+            if (flurryAdNative != null) {
+                flurryAdNative.destroy();
+            }
+            destroyCarouselAds(mAdPositionMapping.valueAt(i));
         }
-        sAdPositionMapping.clear();
-        sAdPositionMapping = null;
-        mNativeAdFetcher.setFetchListener(null);
-        mNativeAdFetcher.clearFlurryAdNativeListeners();
+        mAdPositionMapping.clear();
+        mPlacementsByAd.clear();
+        mFilledPlacements.clear();
+        mRestoredExpandStates.clear();
+        mShiftMap.clear();
+        mMainHandler.removeCallbacksAndMessages(null);
+        mPendingSlotRemovals = 0;
+        // Images still loading or shown are handed back to the image loader
+        for (FlurryAdViewHolder adViewHolder : mBoundAdViewHolders) {
+            FlurryNativeAdViewBuilder.releaseAdImages(adViewHolder);
+        }
+        mBoundAdViewHolders.clear();
         mNativeAdFetcher.destroyAds();
+        invalidateAdCount();
     }
 
     /**
@@ -134,23 +346,109 @@ class FlurryBaseAdAdapter {
      * @return the original position of data in the adapter as if no ads are loaded
      */
     int getOriginalPosition(int adjustedPosition, int internalAdapterSize) {
-        if (getNumberOfAds(internalAdapterSize) > 0) {
-            return mPositioner.getOriginalPosition(adjustedPosition,
-                    getNumberOfAds(internalAdapterSize));
-        } else {
+        int numberOfAds = getNumberOfAds(internalAdapterSize);
+        if (numberOfAds <= 0) {
             return adjustedPosition;
+        } else if (mShiftMap.isIdentity()) {
+            return mPositioner.getOriginalPosition(adjustedPosition, numberOfAds);
+        }
+
+        int layoutPosition = mShiftMap.toLayoutPosition(adjustedPosition);
+        int precedingAds;
+        if (layoutPosition != PositionShiftMap.NO_POSITION) {
+            precedingAds = layoutPosition -
+                    mPositioner.getOriginalPosition(layoutPosition, numberOfAds);
+        } else {
+            // Inserted rows are preceded by the same ads as the next laid out row
+            layoutPosition = mShiftMap.nextLayoutPosition(adjustedPosition);
+            precedingAds = layoutPosition -
+                    mPositioner.getOriginalPosition(layoutPosition, numberOfAds);
+            if (isAdLayoutPosition(layoutPosition, numberOfAds)) {
+                // The positioner counts an ad position as preceding itself
+                precedingAds--;
+            }
+        }
+        return adjustedPosition - precedingAds;
+    }
+
+    /**
+     * Gets the adjusted position of an item from the wrapped adapter. This is the inverse of
+     * {@link FlurryBaseAdAdapter#getOriginalPosition(int, int)} and takes O(log n) calls to it.
+     *
+     * @param originalPosition the position of the item in the wrapped adapter
+     * @param internalAdapterSize the size of the adapter without ads
+     * @return the adjusted position of the item after ads have been loaded into the adapter
+     */
+    int getAdjustedPosition(int originalPosition, int internalAdapterSize) {
+        int low = 0;
+        int high = getAdjustedCount(internalAdapterSize);
+        // Original positions never decrease with adjusted positions, so find the first match
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getOriginalPosition(mid, internalAdapterSize) >= originalPosition) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
         }
+        return low;
     }
 
     /**
-     * A base implementation of {@link NativeAdAdapter#getNumberOfAds()}.
+     * A base implementation of {@link NativeAdAdapter#getNumberOfAds()}. The value is cached until
+     * {@link FlurryBaseAdAdapter#invalidateAdCount()} is called or the size of the wrapped adapter
+     * changes.
      *
      * @param internalAdapterSize an extra parameter indicating the size of the adapter without ads
      * @return the number of ads in the adapter
      */
     int getNumberOfAds(int internalAdapterSize) {
-        int numberOfAds = Math.min(sAdPositionMapping.size() + mNativeAdFetcher.getQueuedAdsCount(),
-                mPositioner.getMaxFittableAds(internalAdapterSize));
+        if (mCachedAdCount == INVALID_AD_COUNT ||
+                mCachedInternalAdapterSize != internalAdapterSize) {
+            mCachedAdCount = computeNumberOfAds(internalAdapterSize);
+            mCachedInternalAdapterSize = internalAdapterSize;
+        }
+        return mCachedAdCount;
+    }
+
+    /**
+     * Gets the total number of items in the adapter, i.e. the wrapped adapter's items and ads.
+     *
+     * @param internalAdapterSize the size of the adapter without ads
+     * @return the size of the adapter with ads, or 0 if the wrapped adapter is empty
+     */
+    int getAdjustedCount(int internalAdapterSize) {
+        return internalAdapterSize > 0 ?
+                internalAdapterSize + getNumberOfAds(internalAdapterSize) : 0;
+    }
+
+    /**
+     * Drops the cached number of ads. Should be called whenever the wrapped dataset changes, an ad
+     * is fetched, popped from the queue or a position is skipped.
+     */
+    void invalidateAdCount() {
+        mCachedAdCount = INVALID_AD_COUNT;
+    }
+
+    private int computeNumberOfAds(int internalAdapterSize) {
+        if (mAdPositionMapping == null) {
+            // Destroyed
+            return 0;
+        }
+        // Ads are laid out as if rows inserted and removed after layout did not change
+        int layoutSize = internalAdapterSize + mShiftMap.getLayoutDelta();
+        if (mReservationMode) {
+            // Every reserved slot has a placement, and only placements take up slots
+            return Math.max(0, Math.min(mAdPositionMapping.size(),
+                    mPositioner.getMaxFittableAds(layoutSize) -
+                            mPositioner.getSkippedPositionCount()));
+        }
+        // A carousel slot takes several queued ads
+        int queuedSlotCount = (mNativeAdFetcher.getQueuedAdsCount() + mCarouselSize - 1) /
+                mCarouselSize;
+        int numberOfAds = Math.min(
+                mAdPositionMapping.size() + queuedSlotCount + mPendingSlotRemovals,
+                mPositioner.getMaxFittableAds(layoutSize));
         int numberOfAdsToShow = 0;
         int skippedAdPositionCount = mPositioner.getSkippedPositionCount();
         if (numberOfAds > skippedAdPositionCount) {
@@ -183,6 +481,232 @@ class FlurryBaseAdAdapter {
         }
     }
 
+    /**
+     * Records that an ad view was bound to the ad it already showed, so it was not rebuilt.
+     */
+    void onAdViewReused() {
+        mReusedAdViewCount++;
+    }
+
+    /**
+     * Gets the number of ad view binds that were skipped because the view already showed the ad.
+     *
+     * @return the number of skipped binds
+     */
+    int getReusedAdViewCount() {
+        return mReusedAdViewCount;
+    }
+
+    /**
+     * Records an ad view holder that an ad has been built into, so that its images can be
+     * released under memory pressure.
+     *
+     * @param adViewHolder the bound view holder
+     */
+    void onAdViewBound(@NonNull FlurryAdViewHolder adViewHolder) {
+        mBoundAdViewHolders.add(adViewHolder);
+    }
+
+    /**
+     * Called when the ad built into a view holder still has to load its rating, because the
+     * rating view was not laid out yet. The slot is notified with {@link #PAYLOAD_AD_RATING}
+     * after the current layout pass, which lays the view out.
+     *
+     * @param flurryAdNative the ad built into the view holder
+     */
+    void onAdRatingPending(@NonNull FlurryAdNative flurryAdNative) {
+        AdPlacement placement = findPlacement(flurryAdNative);
+        if (placement != null && mAdapterDataListener instanceof RecyclerAdapterDataListener) {
+            postItemChanged(placement, PAYLOAD_AD_RATING);
+        }
+    }
+
+    /**
+     * Stops tracking an ad view holder that no longer shows an ad of this adapter, e.g. because it
+     * was put in a recycled view pool that other adapters share.
+     *
+     * @param adViewHolder the released view holder
+     */
+    void onAdViewReleased(@NonNull FlurryAdViewHolder adViewHolder) {
+        mBoundAdViewHolders.remove(adViewHolder);
+    }
+
+    /**
+     * Gets the number of ads destroyed in response to memory trim requests, both queued and
+     * placed.
+     *
+     * @return the number of reclaimed ads
+     */
+    int getReclaimedAdCount() {
+        return mReclaimedAdCount;
+    }
+
+    /**
+     * Gets the approximate number of bitmap bytes released from ad views in response to memory
+     * trim requests.
+     *
+     * @return the number of reclaimed bytes
+     */
+    long getReclaimedImageBytes() {
+        return mReclaimedImageBytes;
+    }
+
+    /**
+     * <p>Frees ad resources according to the memory trim level, each level also doing what the
+     * lower levels do. {@link ComponentCallbacks2#TRIM_MEMORY_UI_HIDDEN} on its own only releases
+     * images.</p>
+     * <ul>
+     *     <li>{@link ComponentCallbacks2#TRIM_MEMORY_RUNNING_MODERATE} - keeps at most one queued
+     *          ad and lowers the prefetch target to one until memory recovers.</li>
+     *     <li>{@link ComponentCallbacks2#TRIM_MEMORY_RUNNING_LOW} - destroys the ads of placements
+     *          outside the viewport. The placements get a new ad if they are bound again.</li>
+     *     <li>{@link ComponentCallbacks2#TRIM_MEMORY_UI_HIDDEN} - releases the images of bound ad
+     *          views. The views are rebuilt when the Activity is started again.</li>
+     *     <li>{@link ComponentCallbacks2#TRIM_MEMORY_COMPLETE} - destroys all queued ads and stops
+     *          prefetching until memory recovers.</li>
+     * </ul>
+     *
+     * @param level the trim level passed to {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    void onTrimMemory(int level) {
+        if (mAdPositionMapping == null) {
+            return;
+        }
+
+        // UI_HIDDEN is sent whenever the app goes to the background, not because memory is low
+        boolean isMemoryLow = level != ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN;
+        int trimmedAdCount = 0;
+
+        if (isMemoryLow && level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            int maxQueuedAds = level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE ?
+                    0 : LOW_MEMORY_PREFETCH_TARGET;
+            mNativeAdFetcher.setPrefetchTarget(maxQueuedAds);
+            trimmedAdCount = mNativeAdFetcher.trimQueue(maxQueuedAds);
+            mReclaimedAdCount += trimmedAdCount;
+
+            // Memory is considered recovered once trim requests stop coming in
+            mMainHandler.removeCallbacks(mMemoryRecoveryRunnable);
+            mMainHandler.postDelayed(mMemoryRecoveryRunnable, MEMORY_RECOVERY_TIME_MILLI);
+        }
+
+        if (isMemoryLow && level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mReclaimedAdCount += destroyAdsOutsideViewport();
+        }
+
+        if (mImageLoader instanceof CachingAdImageLoader) {
+            ((CachingAdImageLoader) mImageLoader).trimMemory(level);
+        }
+
+        // Released images are only rebuilt if the Activity is observed
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN && mLifecycleController != null) {
+            for (FlurryAdViewHolder adViewHolder : mBoundAdViewHolders) {
+                mReclaimedImageBytes += FlurryNativeAdViewBuilder.releaseAdImages(adViewHolder);
+            }
+            mAdImagesReleased |= !mBoundAdViewHolders.isEmpty();
+        }
+
+        if (trimmedAdCount > 0) {
+            // Queued ads are counted in the adapter
+            invalidateAdCount();
+            mAdapterDataListener.notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Destroys the ads of all placements outside the viewport, keeping the placements so that
+     * their slots are refilled on demand. Noop if the viewport is not known.
+     *
+     * @return the number of destroyed ads
+     */
+    private int destroyAdsOutsideViewport() {
+        if (mFirstVisiblePosition == PositionShiftMap.NO_POSITION) {
+            return 0;
+        }
+
+        int destroyedCount = 0;
+        for (AdPlacement placement : getFilledPlacements()) {
+            FlurryAdNative flurryAdNative = placement.flurryAdNative;
+            int position = getPlacementPosition(placement);
+            if (flurryAdNative == null || position == PositionShiftMap.NO_POSITION ||
+                    !isFarFromViewport(position, 0)) {
+                continue;
+            }
+
+            flurryAdNative.removeTrackingView();
+            flurryAdNative.destroy();
+            setPlacementAd(placement, null);
+            destroyCarouselAds(placement);
+            mAdapterDataListener.onAdReleased(flurryAdNative);
+            destroyedCount++;
+        }
+        return destroyedCount;
+    }
+
+    private final Runnable mMemoryRecoveryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mNativeAdFetcher.setPrefetchTarget(Integer.MAX_VALUE);
+        }
+    };
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void registerMemoryCallbacks() {
+        if (mMemoryCallbacks == null && mApplicationContext != null &&
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            mMemoryCallbacks = new MemoryCallbacks(this, mApplicationContext);
+            mApplicationContext.registerComponentCallbacks(mMemoryCallbacks);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void unregisterMemoryCallbacks() {
+        if (mMemoryCallbacks != null && mApplicationContext != null) {
+            mApplicationContext.unregisterComponentCallbacks(mMemoryCallbacks);
+            mMemoryCallbacks = null;
+        }
+    }
+
+    /**
+     * Forwards memory callbacks of the application context to an adapter. The application context
+     * outlives the adapter, so the adapter is only held weakly and the callbacks unregister
+     * themselves once it is gone.
+     */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static final class MemoryCallbacks implements ComponentCallbacks2 {
+        private final WeakReference<FlurryBaseAdAdapter> mAdapterReference;
+        private final Context mApplicationContext;
+
+        MemoryCallbacks(@NonNull FlurryBaseAdAdapter adapter, @NonNull Context applicationContext) {
+            mAdapterReference = new WeakReference<>(adapter);
+            mApplicationContext = applicationContext;
+        }
+
+        @Override
+        public void onTrimMemory(int level) {
+            FlurryBaseAdAdapter adapter = getAdapter();
+            if (adapter != null) {
+                adapter.onTrimMemory(level);
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+            onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {}
+
+        @Nullable
+        private FlurryBaseAdAdapter getAdapter() {
+            FlurryBaseAdAdapter adapter = mAdapterReference.get();
+            if (adapter == null) {
+                mApplicationContext.unregisterComponentCallbacks(this);
+            }
+            return adapter;
+        }
+    }
+
     /**
      * Checks if an ad should be shown in the given position. The check is facilitated by
      * {@link FlurryBaseAdAdapter#canShowAd(int, int)} and
@@ -200,7 +724,9 @@ class FlurryBaseAdAdapter {
      * @see FlurryBaseAdAdapter#isAdAvailable(int, int)
      */
     boolean shouldShowAd(int position, int internalAdapterSize) {
-        if (mPositioner.canPlaceAd(position)) {
+        int layoutPosition = mShiftMap.toLayoutPosition(position);
+        if (layoutPosition != PositionShiftMap.NO_POSITION &&
+                mPositioner.canPlaceAd(layoutPosition)) {
             if (isAdAvailable(position, internalAdapterSize)) {
                 return true;
             } else if (!mRetryFailedAdPositions) { // Do not retry position
@@ -208,7 +734,7 @@ class FlurryBaseAdAdapter {
                 for (NativeAdAdapter.NativeAdRenderListener listener : mAdRenderListeners) {
                     listener.onAdRenderFailed(position);
                 }
-                mPositioner.addSkippedPosition(position);
+                skipPosition(position, layoutPosition);
                 if (mAdapterDataListener instanceof RecyclerAdapterDataListener) {
                     ((RecyclerAdapterDataListener)mAdapterDataListener).notifyItemRemoved(position);
                 } else {
@@ -228,12 +754,34 @@ class FlurryBaseAdAdapter {
      */
     @Nullable
     FlurryAdNative getAdForPosition(int position) {
-        if (sAdPositionMapping.get(position) != null) {
-            return sAdPositionMapping.get(position);
+        int layoutPosition = mShiftMap.toLayoutPosition(position);
+        if (layoutPosition == PositionShiftMap.NO_POSITION) {
+            return null;
+        }
+
+        AdPlacement placement = mAdPositionMapping.get(layoutPosition);
+        if (placement != null &&
+                (placement.flurryAdNative != null || placement.pendingCollapse)) {
+            return placement.flurryAdNative;
         } else {
-            FlurryAdNative flurryAdNative = mNativeAdFetcher.popLoadedAd();
+            FlurryAdNative flurryAdNative = popAdForPosition(position);
+            // Popping changes the queue size, even when no usable ad was returned
+            invalidateAdCount();
             if (flurryAdNative != null) {
-                sAdPositionMapping.put(position, flurryAdNative);
+                if (placement != null) {
+                    // Refill a placement whose ad was released, or a placeholder
+                    setPlacementAd(placement, flurryAdNative);
+                    placement.impressed = false;
+                    placement.reservedUntilMillis = 0;
+                    placement.expandState = AdPlacement.EXPAND_STATE_DEFAULT;
+                } else {
+                    placement = new AdPlacement(getAnchorId(position));
+                    setPlacementAd(placement, flurryAdNative);
+                    placement.expandState = takeRestoredExpandState(layoutPosition);
+                    placement.layoutPosition = layoutPosition;
+                    mAdPositionMapping.put(layoutPosition, placement);
+                }
+                takeCarouselAds(placement);
                 return flurryAdNative;
             }
         }
@@ -241,150 +789,1602 @@ class FlurryBaseAdAdapter {
     }
 
     /**
-     * Sets the ad space name to be used for the {@link FlurryNativeAdFetcher} when fetching ads.
+     * Translates an insertion in the wrapped {@link android.support.v7.widget.RecyclerView.Adapter}
+     * and notifies the adapter of the inserted adjusted range. Items inserted before placed ads
+     * push them down instead of taking their positions.
      *
-     * @param adSpaceName the name of the ad space, obtained from the Flurry dev. portal
+     * @param positionStart the original position of the first inserted item
+     * @param itemCount the number of inserted items
+     * @param internalAdapterSize the size of the adapter without ads, after the insertion
      */
-    void setAdSpaceName(String adSpaceName) {
-        mAdSpaceName = adSpaceName;
+    void onWrappedItemRangeInserted(int positionStart, int itemCount, int internalAdapterSize) {
+        RecyclerAdapterDataListener dataListener =
+                (RecyclerAdapterDataListener) mAdapterDataListener;
+        int previousSize = internalAdapterSize - itemCount;
+
+        if (positionStart >= previousSize) {
+            // Appended items extend the layout and may make room for more ads at the end
+            int previousCount = getAdjustedCount(previousSize);
+            invalidateAdCount();
+            dataListener.notifyItemRangeInserted(previousCount,
+                    getAdjustedCount(internalAdapterSize) - previousCount);
+        } else {
+            int adjustedStart = getAdjustedPosition(positionStart, previousSize);
+            mShiftMap.insert(adjustedStart, itemCount);
+            invalidateAdCount();
+            dataListener.notifyItemRangeInserted(adjustedStart, itemCount);
+        }
     }
 
     /**
-     * Adds a new {@link FlurryAdNativeListener} to be notified of native ad state events.
+     * Translates a removal in the wrapped {@link android.support.v7.widget.RecyclerView.Adapter}
+     * and notifies the adapter of the removed adjusted ranges. Ads between removed items stay in
+     * place, so a removal may be split into several ranges.
      *
-     * @param flurryAdNativeListener the listener to add
+     * @param positionStart the original position of the first removed item
+     * @param itemCount the number of removed items
+     * @param internalAdapterSize the size of the adapter without ads, after the removal
      */
-    void addFlurryAdNativeListener(FlurryAdNativeListener flurryAdNativeListener) {
-        mNativeAdFetcher.addFlurryAdNativeListener(flurryAdNativeListener);
-    }
+    void onWrappedItemRangeRemoved(int positionStart, int itemCount, int internalAdapterSize) {
+        RecyclerAdapterDataListener dataListener =
+                (RecyclerAdapterDataListener) mAdapterDataListener;
+        int previousSize = internalAdapterSize + itemCount;
 
-    /**
-     * Sets the {@link FlurryNativeAdFetcher.FetchListener} to be notified for fetch events.
-     * @param fetchListener the listener to set
-     */
-    void setFetchListener(FlurryNativeAdFetcher.FetchListener fetchListener) {
-        mNativeAdFetcher.setFetchListener(fetchListener);
+        if (internalAdapterSize == 0) {
+            int previousCount = getAdjustedCount(previousSize);
+            mShiftMap.clear();
+            invalidateAdCount();
+            dataListener.notifyItemRangeRemoved(0, previousCount);
+            return;
+        }
+
+        List<int[]> ranges = getContentRanges(positionStart, itemCount, previousSize);
+        // Remove from the end so that earlier ranges keep their positions
+        for (int i = ranges.size() - 1; i >= 0; i--) {
+            int[] range = ranges.get(i);
+            mShiftMap.remove(range[0], range[1]);
+            dataListener.notifyItemRangeRemoved(range[0], range[1]);
+        }
+        invalidateAdCount();
     }
 
     /**
-     * Sets the ad targeting settings to use for all fetched ads in this adapter.
+     * Translates a change in the wrapped {@link android.support.v7.widget.RecyclerView.Adapter}
+     * and notifies the adapter of the changed adjusted ranges.
      *
-     * @param targeting the ad targeting settings
+     * @param positionStart the original position of the first changed item
+     * @param itemCount the number of changed items
+     * @param internalAdapterSize the size of the adapter without ads
      */
-    void setAdTargeting(FlurryAdTargeting targeting) {
-        if (mNativeAdFetcher != null) {
-            mNativeAdFetcher.setTargeting(targeting);
+    void onWrappedItemRangeChanged(int positionStart, int itemCount, int internalAdapterSize) {
+        RecyclerAdapterDataListener dataListener =
+                (RecyclerAdapterDataListener) mAdapterDataListener;
+        for (int[] range : getContentRanges(positionStart, itemCount, internalAdapterSize)) {
+            dataListener.notifyItemRangeChanged(range[0], range[1]);
         }
     }
 
     /**
-     * Sets the ad positioner to use to populate and position ads in the adapter.
+     * Translates a move of one item in the wrapped
+     * {@link android.support.v7.widget.RecyclerView.Adapter} and notifies the adapter of the move
+     * between adjusted positions. Ads stay in their slots, so an ad that followed the moved item
+     * is anchored to the item now before it. Other rows and ads are not rebound.
      *
-     * @param positioner the adapter ad positioner to use
+     * @param fromPosition the original position the item moved from
+     * @param toPosition the original position the item moved to
      * @param internalAdapterSize the size of the adapter without ads
      */
-    void setPositioner(@NonNull AdapterAdPositioner positioner, int internalAdapterSize) {
-        mPositioner = positioner;
-
-        int maxFittableAds = mPositioner.getMaxFittableAds(
-                internalAdapterSize
-        );
+    void onWrappedItemMoved(int fromPosition, int toPosition, int internalAdapterSize) {
+        RecyclerAdapterDataListener dataListener =
+                (RecyclerAdapterDataListener) mAdapterDataListener;
+        int adjustedFrom = getAdjustedPosition(fromPosition, internalAdapterSize);
+        // Layout positions of ad slots are not changed by moving content around them
+        int nextLayoutPosition = mShiftMap.toLayoutPosition(adjustedFrom + 1);
+        mShiftMap.remove(adjustedFrom, 1);
+        invalidateAdCount();
+        int adjustedTo = getAdjustedPosition(toPosition, internalAdapterSize - 1);
+        mShiftMap.insert(adjustedTo, 1);
+        invalidateAdCount();
+        dataListener.notifyItemMoved(adjustedFrom, adjustedTo);
 
-        initAdPositionMap(maxFittableAds);
+        AdPlacement placement = mAdPositionMapping != null &&
+                nextLayoutPosition != PositionShiftMap.NO_POSITION ?
+                mAdPositionMapping.get(nextLayoutPosition) : null;
+        if (placement != null && placement.anchorId != AdPlacement.NO_ANCHOR) {
+            // Recounts the ads, caching the adapter size that getAnchorId() maps positions with
+            getNumberOfAds(internalAdapterSize);
+            placement.anchorId = getAnchorId(mShiftMap.toAdapterPosition(nextLayoutPosition));
+        }
     }
 
     /**
-     * Sets whether ads in the adapter should be automatically destroyed when the Activity housing
-     * the adapter is destroyed.
-     * @param autoDestroy <code>true</code> if ads should be automatically destroyed,
-     *                    <code>false</code> otherwise
+     * Translates a move of several items in the wrapped
+     * {@link android.support.v7.widget.RecyclerView.Adapter} into one move per item, so that the
+     * adapter is notified of each move instead of a full change.
+     *
+     * @param fromPosition the original position of the first moved item
+     * @param toPosition the original position the first moved item ends up at
+     * @param itemCount the number of moved items
+     * @param internalAdapterSize the size of the adapter without ads
      */
-    void setAutoDestroy(boolean autoDestroy) {
-        mAutoDestroyAds = autoDestroy;
+    void onWrappedItemRangeMoved(int fromPosition, int toPosition, int itemCount,
+                                 int internalAdapterSize) {
+        for (int i = 0; i < itemCount; i++) {
+            if (fromPosition < toPosition) {
+                // Each item in turn is at the start of the range, and goes to the end of it
+                onWrappedItemMoved(fromPosition, toPosition + itemCount - 1, internalAdapterSize);
+            } else {
+                onWrappedItemMoved(fromPosition + i, toPosition + i, internalAdapterSize);
+            }
+        }
     }
 
     /**
-     * <p>Sets the expanded mode that ads from this adapter should start in.</p>
+     * <p>Handles a change of the whole wrapped dataset. Called for both list widgets.</p>
      *
-     * <p>Value should be one of:</p>
-     * <ul>
-     *     <li>{@link NativeAdAdapter#EXPANDABLE_AD_MODE_OFF} -
-     *          Default mode. Ad expansion toggling is not supported.</li>
-     *     <li>{@link NativeAdAdapter#EXPANDABLE_AD_MODE_EXPANDED} -
-     *          Ads start off in expanded mode and can be toggled.</li>
-     *     <li>{@link NativeAdAdapter#EXPANDABLE_AD_MODE_COLLAPSED} -
-     *          Ads start off in collapsed mode and can be toggled.</li>
-     * </ul>
-     * @param mode the expanded mode to set for all ads in the adapter
+     * <p>If the wrapped adapter has stable IDs, every placed ad is looked up by the ID of the item
+     * it follows and the layout is shifted so that it follows that item again. Ads whose item is
+     * gone are returned to the queue, or destroyed if they logged an impression, and their slots
+     * are refilled like any other. Without stable IDs, placed ads keep their positions.</p>
+     *
+     * <p>Range events keep the shift map current, so anchors are first checked at the positions
+     * it predicts. The wrapped items are only scanned if an anchor is not found there.</p>
+     *
+     * @param internalAdapterSize the size of the adapter without ads, after the change
      */
-    void setExpandableAdMode(@NativeAdAdapter.ExpandableAdMode int mode) {
-        mExpandableAdMode = mode;
+    void onWrappedDataSetChanged(int internalAdapterSize) {
+        if (internalAdapterSize == 0) {
+            mShiftMap.clear();
+        } else if (mAdPositionMapping != null && mAdPositionMapping.size() > 0 &&
+                mAdapterDataListener.hasStableWrappedIds() &&
+                !isAlignedToAnchors(internalAdapterSize)) {
+            alignToAnchors(internalAdapterSize);
+        }
+        invalidateAdCount();
+    }
+
+    /**
+     * <p>Updates the range of rows visible in the list widget. Ads that were placed far outside of
+     * it but never logged an impression are returned to the queue, to be shown at the next ad
+     * position instead.</p>
+     *
+     * <p>Ads that did log an impression are destroyed once they are outside the residency window.
+     * Their placements are refilled from the queue if they are bound again.</p>
+     *
+     * <p>If the next ad slot in the scroll direction has no ad and none is queued, an urgent ad
+     * request is made for it.</p>
+     *
+     * @param firstVisiblePosition the adjusted position of the first visible row
+     * @param lastVisiblePosition the adjusted position of the last visible row
+     */
+    void onViewportChanged(int firstVisiblePosition, int lastVisiblePosition) {
+        if (firstVisiblePosition == mFirstVisiblePosition &&
+                lastVisiblePosition == mLastVisiblePosition) {
+            return;
+        }
+        boolean scrollingTowardsEnd = mFirstVisiblePosition == PositionShiftMap.NO_POSITION ||
+                firstVisiblePosition >= mFirstVisiblePosition;
+        mFirstVisiblePosition = firstVisiblePosition;
+        mLastVisiblePosition = lastVisiblePosition;
+
+        if (mAdPositionMapping != null && firstVisiblePosition >= 0 &&
+                lastVisiblePosition >= firstVisiblePosition) {
+            releaseDistantAds();
+            if (mReservationMode) {
+                postReserveSlots();
+            }
+            requestUpcomingAd(scrollingTowardsEnd);
+            if (mRotationIntervalMillis > 0) {
+                resumeDueRotations();
+            }
+        }
+    }
+
+    /**
+     * Sets how far from the viewport placed ads are kept. Ads that logged an impression are
+     * destroyed beyond this distance, so that memory use does not grow with scroll distance.
+     *
+     * @param screens the number of screens on either side of the viewport
+     */
+    void setResidencyWindow(int screens) {
+        mResidencyWindowScreens = Math.max(screens, 1);
+    }
+
+    /**
+     * <p>Enables reservation mode. Ad slots between the first visible row and one screen below
+     * the viewport are reserved as they come up, with an ad if one is queued. Reserved slots
+     * without an ad are placeholders, filled in place when an ad is fetched and removed if none
+     * arrives in time.</p>
+     *
+     * <p>Fetched ads no longer add slots, so rows do not move when ads arrive.</p>
+     *
+     * @param deadlineMillis how long a placeholder waits for an ad before it is removed
+     */
+    void setReservationMode(long deadlineMillis) {
+        mReservationMode = true;
+        mReservationDeadlineMillis = Math.max(deadlineMillis, 0);
+        invalidateAdCount();
+    }
+
+    /**
+     * <p>Enables timed rotation. Once an ad has logged its impression and has been on screen for
+     * the given interval, the next queued ad is swapped into its slot, keeping the layout variant
+     * of the slot. The slot is notified with {@link #PAYLOAD_AD_ROTATED}, so that its view is
+     * rebuilt in place. Ads that are expanded, or that are off-screen when due, are rotated
+     * later.</p>
+     *
+     * <p>Background refill is paced to the rotation rate. Carousels are not rotated.</p>
+     *
+     * @param rotationIntervalMillis how long an ad is shown after its impression, or 0 to keep
+     *                               ads in their slots
+     */
+    void setRotationInterval(long rotationIntervalMillis) {
+        mRotationIntervalMillis = Math.max(rotationIntervalMillis, 0);
+        mNativeAdFetcher.setRefillInterval(mRotationIntervalMillis);
+    }
+
+    /**
+     * Sets the loader of the image assets of ads, instead of the Flurry SDK.
+     *
+     * @param imageLoader the image loader, or null to let the SDK load images
+     */
+    void setImageLoader(@Nullable AdImageLoader imageLoader) {
+        mImageLoader = imageLoader;
+    }
+
+    /**
+     * @return the loader of the image assets of ads, or null if the SDK loads them
+     */
+    @Nullable
+    AdImageLoader getImageLoader() {
+        return mImageLoader;
+    }
+
+    /**
+     * Sets the ad space name to be used for the {@link FlurryNativeAdFetcher} when fetching ads.
+     *
+     * @param adSpaceName the name of the ad space, obtained from the Flurry dev. portal
+     */
+    void setAdSpaceName(String adSpaceName) {
+        mAdSpaceName = adSpaceName;
+    }
+
+    /**
+     * Adds a new {@link FlurryAdNativeListener} to be notified of native ad state events.
+     *
+     * @param flurryAdNativeListener the listener to add
+     */
+    void addFlurryAdNativeListener(FlurryAdNativeListener flurryAdNativeListener) {
+        mNativeAdFetcher.addFlurryAdNativeListener(flurryAdNativeListener);
+    }
+
+    /**
+     * Sets the {@link FlurryNativeAdFetcher.FetchListener} to be notified for fetch events. The
+     * cached ad count is invalidated before the listener is notified.
+     *
+     * @param fetchListener the listener to set
+     */
+    void setFetchListener(final FlurryNativeAdFetcher.FetchListener fetchListener) {
+        mNativeAdFetcher.setFetchListener(new FlurryNativeAdFetcher.FetchListener() {
+            @Override
+            public void onAdFetched() {
+                invalidateAdCount();
+                if (mReservationMode) {
+                    // Queued ads do not take up slots, so only placeholders change
+                    fillPlaceholders();
+                    return;
+                }
+                if (fetchListener != null) {
+                    fetchListener.onAdFetched();
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets the ad targeting settings to use for all fetched ads in this adapter.
+     *
+     * @param targeting the ad targeting settings
+     */
+    void setAdTargeting(FlurryAdTargeting targeting) {
+        if (mNativeAdFetcher != null) {
+            mNativeAdFetcher.setTargeting(targeting);
+        }
+    }
+
+    /**
+     * Sets the ad positioner to use to populate and position ads in the adapter.
+     *
+     * @param positioner the adapter ad positioner to use
+     * @param internalAdapterSize the size of the adapter without ads
+     */
+    void setPositioner(@NonNull AdapterAdPositioner positioner, int internalAdapterSize) {
+        mPositioner = positioner;
+        mShiftMap.clear();
+
+        int maxFittableAds = mPositioner.getMaxFittableAds(
+                internalAdapterSize
+        );
+
+        initAdPositionMap(maxFittableAds);
+        invalidateAdCount();
+    }
+
+    /**
+     * Sets whether ads in the adapter should be automatically destroyed when the Activity housing
+     * the adapter is destroyed. Can be set at any time before the Activity is destroyed.
+     * @param autoDestroy <code>true</code> if ads should be automatically destroyed,
+     *                    <code>false</code> otherwise
+     */
+    void setAutoDestroy(boolean autoDestroy) {
+        mAutoDestroyAds = autoDestroy;
+    }
+
+    /**
+     * <p>Sets the expanded mode that ads from this adapter should start in.</p>
+     *
+     * <p>Value should be one of:</p>
+     * <ul>
+     *     <li>{@link NativeAdAdapter#EXPANDABLE_AD_MODE_OFF} -
+     *          Default mode. Ad expansion toggling is not supported.</li>
+     *     <li>{@link NativeAdAdapter#EXPANDABLE_AD_MODE_EXPANDED} -
+     *          Ads start off in expanded mode and can be toggled.</li>
+     *     <li>{@link NativeAdAdapter#EXPANDABLE_AD_MODE_COLLAPSED} -
+     *          Ads start off in collapsed mode and can be toggled.</li>
+     * </ul>
+     * @param mode the expanded mode to set for all ads in the adapter
+     */
+    void setExpandableAdMode(@NativeAdAdapter.ExpandableAdMode int mode) {
+        mExpandableAdMode = mode;
     }
 
     /**
      * Gets the expanded mode that ads from this adapter should start in.
      *
-     * @return Value should be one of:
-     *          <ul>
-     *              <li>{@link NativeAdAdapter#EXPANDABLE_AD_MODE_OFF} -
-     *                      Default mode. Ad expansion toggling is not supported.</li>
-     *              <li>{@link NativeAdAdapter#EXPANDABLE_AD_MODE_EXPANDED} -
-     *                      Ads start off in expanded mode and can be toggled.</li>
-     *              <li>{@link NativeAdAdapter#EXPANDABLE_AD_MODE_COLLAPSED} -
-     *                      Ads start off in collapsed mode and can be toggled.</li>
-     *          </ul>
+     * @return Value should be one of:
+     *          <ul>
+     *              <li>{@link NativeAdAdapter#EXPANDABLE_AD_MODE_OFF} -
+     *                      Default mode. Ad expansion toggling is not supported.</li>
+     *              <li>{@link NativeAdAdapter#EXPANDABLE_AD_MODE_EXPANDED} -
+     *                      Ads start off in expanded mode and can be toggled.</li>
+     *              <li>{@link NativeAdAdapter#EXPANDABLE_AD_MODE_COLLAPSED} -
+     *                      Ads start off in collapsed mode and can be toggled.</li>
+     *          </ul>
+     */
+    @NativeAdAdapter.ExpandableAdMode int getExpandableAdMode() {
+        return mExpandableAdMode;
+    }
+
+    /**
+     * Adds a layout variant for ad views. The first view binder added is the default one.
+     *
+     * @param viewBinder the view binder of the layout variant
+     */
+    void addViewBinder(@NonNull NativeAdViewBinder viewBinder) {
+        mViewBinders.add(viewBinder);
+    }
+
+    /**
+     * Checks if every ad layout variant has the views needed to toggle ad expansion.
+     *
+     * @return <code>true</code> if all view binders set a call-to-action and collapse view
+     */
+    boolean canExpandAdViews() {
+        for (NativeAdViewBinder viewBinder : mViewBinders) {
+            if (viewBinder.getCallToActionViewId() <= 0 || viewBinder.getAdCollapseViewId() <= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets how ad positions pick their layout variant. If not set, variants are picked by the
+     * assets of each ad.
+     *
+     * @param viewBinderSelector the selector, or <code>null</code> to pick by assets
+     */
+    void setViewBinderSelector(@Nullable NativeAdViewBinder.ViewBinderSelector viewBinderSelector) {
+        mViewBinderSelector = viewBinderSelector;
+    }
+
+    /**
+     * Sets which ad a position gets when no queued ad has the assets of its layout variant.
+     *
+     * @param assetFallback one of {@link NativeAdAdapter#ASSET_FALLBACK_OLDEST_AD} or
+     *                      {@link NativeAdAdapter#ASSET_FALLBACK_NONE}
+     */
+    void setAssetFallback(@NativeAdAdapter.AssetFallback int assetFallback) {
+        mAssetFallback = assetFallback;
+    }
+
+    /**
+     * Gets the ad layout variants of this adapter, the default one first.
+     *
+     * @return the view binders of the layout variants
+     */
+    List<NativeAdViewBinder> getViewBinders() {
+        return mViewBinders;
+    }
+
+    /**
+     * <p>Picks the layout variant of an ad position. Only valid for positions that
+     * {@link #shouldShowAd(int, int)} returned <code>true</code> for.</p>
+     *
+     * <p>Ads are shown with the view binder chosen by the
+     * {@link NativeAdViewBinder.ViewBinderSelector} if one is set, and otherwise with the first
+     * one whose image views the ad has assets for. Placeholders use the default view binder,
+     * unless the selector picks one for them.</p>
+     *
+     * @param position the adapter position of the ad
+     * @return the index of the view binder in {@link #getViewBinders()}
+     */
+    int selectViewBinder(int position) {
+        if (mViewBinders.size() <= 1) {
+            return 0;
+        }
+
+        FlurryAdNative flurryAdNative = getAdForPosition(position);
+        if (mViewBinderSelector != null) {
+            int index = mViewBinderSelector.selectViewBinder(position, flurryAdNative,
+                    mViewBinders.size());
+            if (index >= 0 && index < mViewBinders.size()) {
+                return index;
+            }
+        }
+
+        return flurryAdNative != null ? selectViewBinder(flurryAdNative) : 0;
+    }
+
+    /**
+     * Picks the first layout variant whose image views an ad has assets for, or the default one.
+     *
+     * @param flurryAdNative the ad to show
+     * @return the index of the view binder in {@link #getViewBinders()}
+     */
+    int selectViewBinder(@NonNull FlurryAdNative flurryAdNative) {
+        for (int i = 0; i < mViewBinders.size(); i++) {
+            if (FlurryNativeAdViewBuilder.hasAssetsFor(flurryAdNative, mViewBinders.get(i))) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Makes each ad slot show up to the given number of ads in a carousel.
+     *
+     * @param carouselSize the number of ads per slot, at least 1
+     */
+    void setCarouselSize(int carouselSize) {
+        mCarouselSize = Math.max(carouselSize, 1);
+    }
+
+    /**
+     * @return <code>true</code> if ad slots are shown as carousels of several ads
+     */
+    boolean isCarouselMode() {
+        return mCarouselSize > 1;
+    }
+
+    /**
+     * Gets the ads shown in the carousel at an ad position, placing them if needed. Only valid for
+     * positions that {@link #shouldShowAd(int, int)} returned <code>true</code> for.
+     *
+     * @param position the adapter position of the carousel
+     * @return the ads of the carousel, empty for a placeholder
+     */
+    @NonNull
+    List<FlurryAdNative> getCarouselAdsForPosition(int position) {
+        FlurryAdNative flurryAdNative = getAdForPosition(position);
+        if (flurryAdNative == null) {
+            return Collections.emptyList();
+        }
+
+        List<FlurryAdNative> flurryAdNatives = new ArrayList<>(mCarouselSize);
+        flurryAdNatives.add(flurryAdNative);
+        AdPlacement placement = mAdPositionMapping.get(mShiftMap.toLayoutPosition(position));
+        if (placement != null && placement.carouselAds != null) {
+            flurryAdNatives.addAll(placement.carouselAds);
+        }
+        return flurryAdNatives;
+    }
+
+    /*
+     Takes the rest of a carousel from the queue, in one batch, for a placement that just got its
+     first ad
+     */
+    private void takeCarouselAds(@NonNull AdPlacement placement) {
+        if (mCarouselSize > 1) {
+            setCarouselAds(placement, mNativeAdFetcher.popLoadedAds(mCarouselSize - 1));
+            invalidateAdCount();
+        }
+    }
+
+    private void destroyCarouselAds(@NonNull AdPlacement placement) {
+        if (placement.carouselAds == null) {
+            return;
+        }
+        for (FlurryAdNative flurryAdNative : placement.carouselAds) {
+            flurryAdNative.removeTrackingView();
+            flurryAdNative.destroy();
+        }
+        setCarouselAds(placement, null);
+    }
+
+    /*
+     Puts the rest of a carousel back in the queue, in order, ahead of ads queued since
+     */
+    private void requeueCarouselAds(@NonNull AdPlacement placement) {
+        if (placement.carouselAds == null) {
+            return;
+        }
+        for (int i = placement.carouselAds.size() - 1; i >= 0; i--) {
+            placement.carouselAds.get(i).removeTrackingView();
+            mNativeAdFetcher.requeueAd(placement.carouselAds.get(i));
+        }
+        setCarouselAds(placement, null);
+    }
+
+    /**
+     * <p>Pops the queued ad that best fits the layout variant the
+     * {@link NativeAdViewBinder.ViewBinderSelector} picks for a position. Ads with exactly the
+     * assets the variant shows come first, then ads that have more.</p>
+     *
+     * <p>Without a selector, the variant is picked by the assets of the ad, so the oldest ad is
+     * popped.</p>
+     *
+     * @param position the adapter position the ad is for
+     * @return the ad, or <code>null</code> if none is available
+     */
+    @Nullable
+    private FlurryAdNative popAdForPosition(int position) {
+        if (mViewBinderSelector == null || mViewBinders.size() <= 1 ||
+                position == PositionShiftMap.NO_POSITION) {
+            return mNativeAdFetcher.popLoadedAd();
+        }
+
+        int index = mViewBinderSelector.selectViewBinder(position, null, mViewBinders.size());
+        if (index < 0 || index >= mViewBinders.size()) {
+            return mNativeAdFetcher.popLoadedAd();
+        }
+
+        FlurryAdNative flurryAdNative = mNativeAdFetcher.popLoadedAd(
+                FlurryNativeAdViewBuilder.getRequiredAssetFlags(mViewBinders.get(index)));
+        if (flurryAdNative == null && mAssetFallback == NativeAdAdapter.ASSET_FALLBACK_OLDEST_AD) {
+            flurryAdNative = mNativeAdFetcher.popLoadedAd();
+        }
+        return flurryAdNative;
+    }
+
+    /**
+     * Checks if a placed ad should be shown expanded, either because the user expanded it or
+     * because ads start off expanded in this adapter.
+     *
+     * @param flurryAdNative the placed ad
+     * @return <code>true</code> if the ad should be shown expanded
+     */
+    boolean isAdExpanded(@NonNull FlurryAdNative flurryAdNative) {
+        AdPlacement placement = findPlacement(flurryAdNative);
+        int expandState = placement != null ?
+                placement.expandState : AdPlacement.EXPAND_STATE_DEFAULT;
+        if (expandState == AdPlacement.EXPAND_STATE_DEFAULT) {
+            return mExpandableAdMode == NativeAdAdapter.EXPANDABLE_AD_MODE_EXPANDED;
+        }
+        return expandState == AdPlacement.EXPAND_STATE_EXPANDED;
+    }
+
+    /**
+     * Saves the expand state the user left placed ads in, by ad position.
+     *
+     * @param outState the Bundle to save the state to
+     */
+    void onSaveInstanceState(@NonNull Bundle outState) {
+        if (mAdPositionMapping == null) {
+            return;
+        }
+
+        SparseIntArray expandStates = new SparseIntArray();
+        for (int i = 0; i < mAdPositionMapping.size(); i++) {
+            AdPlacement placement = mAdPositionMapping.valueAt(i);
+            if (placement.expandState != AdPlacement.EXPAND_STATE_DEFAULT) {
+                expandStates.put(mAdPositionMapping.keyAt(i), placement.expandState);
+            }
+        }
+        // States not applied yet are kept until the next restore
+        for (int i = 0; i < mRestoredExpandStates.size(); i++) {
+            if (expandStates.indexOfKey(mRestoredExpandStates.keyAt(i)) < 0) {
+                expandStates.put(mRestoredExpandStates.keyAt(i), mRestoredExpandStates.valueAt(i));
+            }
+        }
+
+        outState.putIntArray(STATE_EXPANDED_AD_POSITIONS,
+                getPositionsInState(expandStates, AdPlacement.EXPAND_STATE_EXPANDED));
+        outState.putIntArray(STATE_COLLAPSED_AD_POSITIONS,
+                getPositionsInState(expandStates, AdPlacement.EXPAND_STATE_COLLAPSED));
+    }
+
+    /**
+     * Restores the expand states saved by {@link #onSaveInstanceState(Bundle)}. They apply to the
+     * ads placed at the same positions.
+     *
+     * @param savedInstanceState the Bundle the state was saved to, or null
+     */
+    void onRestoreInstanceState(@Nullable Bundle savedInstanceState) {
+        if (savedInstanceState == null) {
+            return;
+        }
+
+        restoreExpandStates(savedInstanceState.getIntArray(STATE_EXPANDED_AD_POSITIONS),
+                AdPlacement.EXPAND_STATE_EXPANDED);
+        restoreExpandStates(savedInstanceState.getIntArray(STATE_COLLAPSED_AD_POSITIONS),
+                AdPlacement.EXPAND_STATE_COLLAPSED);
+    }
+
+    private static int[] getPositionsInState(SparseIntArray expandStates, int expandState) {
+        int count = 0;
+        for (int i = 0; i < expandStates.size(); i++) {
+            if (expandStates.valueAt(i) == expandState) {
+                count++;
+            }
+        }
+        int[] positions = new int[count];
+        for (int i = 0, j = 0; i < expandStates.size(); i++) {
+            if (expandStates.valueAt(i) == expandState) {
+                positions[j++] = expandStates.keyAt(i);
+            }
+        }
+        return positions;
+    }
+
+    private void restoreExpandStates(@Nullable int[] layoutPositions, int expandState) {
+        if (layoutPositions == null) {
+            return;
+        }
+        for (int layoutPosition : layoutPositions) {
+            AdPlacement placement = mAdPositionMapping != null ?
+                    mAdPositionMapping.get(layoutPosition) : null;
+            if (placement != null) {
+                placement.expandState = expandState;
+            } else {
+                mRestoredExpandStates.put(layoutPosition, expandState);
+            }
+        }
+    }
+
+    /*
+     Gets and forgets the restored expand state for a new placement at a layout position
+     */
+    private int takeRestoredExpandState(int layoutPosition) {
+        int expandState = mRestoredExpandStates.get(layoutPosition,
+                AdPlacement.EXPAND_STATE_DEFAULT);
+        mRestoredExpandStates.delete(layoutPosition);
+        return expandState;
+    }
+
+    /**
+     * Checks if this is a position in which the positioning logic allows an ad to be placed.
+     * @param position the adapter position to check
+     * @param internalAdapterSize the size of the adapter without ads
+     * @return <code>true</code> if an ad can be placed in the given position, <code>false</code>
+     * otherwise
+     */
+    boolean canShowAd(int position, int internalAdapterSize) {
+        int layoutPosition = mShiftMap.toLayoutPosition(position);
+        return layoutPosition != PositionShiftMap.NO_POSITION &&
+                mPositioner.canPlaceAd(layoutPosition) &&
+                isAdAvailable(position, internalAdapterSize);
+    }
+
+    /**
+     * Replaces the internal {@link FlurryNativeAdFetcher} object with a new one.
+     *
+     * For testing purposes only.
+     *
+     * TODO: Extract an interface native ad fetcher.
+     *
+     * @param nativeAdFetcher the mock native ad fetcher
+     */
+    void injectMockAdFetcher(FlurryNativeAdFetcher nativeAdFetcher) {
+        mNativeAdFetcher = nativeAdFetcher;
+        mNativeAdFetcher.addFlurryAdNativeListener(mImpressionListener);
+        invalidateAdCount();
+    }
+
+    /**
+     * Checks if an ad is available and read for a given position.
+     * @param position the adapter position to check
+     * @param internalAdapterSize the size of the adapter without ads
+     * @return <code>true</code> if an ad is available for the given position, <code>false</code>
+     * otherwise
+     */
+    @VisibleForTesting
+    protected boolean isAdAvailable(int position, int internalAdapterSize) {
+        int layoutPosition = mShiftMap.toLayoutPosition(position);
+        if (layoutPosition == PositionShiftMap.NO_POSITION) {
+            return false;
+        }
+
+        int adIndex = mPositioner.getAdIndex(layoutPosition);
+        if (adIndex < getNumberOfAds(internalAdapterSize)) {
+            AdPlacement placement = mAdPositionMapping.get(layoutPosition);
+            if (placement != null && placement.pendingCollapse) {
+                // Keep the slot until its removal has been notified
+                return true;
+            } else if (placement == null &&
+                    adIndex >= getNumberOfAds(internalAdapterSize) - mPendingSlotRemovals) {
+                // Queued slot used up by a swap, also kept until its removal has been notified
+                return true;
+            }
+
+            FlurryAdNative flurryAdNative = getAdForPosition(position);
+            if (flurryAdNative != null) {
+                if (flurryAdNative.isExpired()) {
+                    swapExpiredAd(mAdPositionMapping.get(layoutPosition), internalAdapterSize);
+                }
+                return true;
+            } else if (placement != null && mReservationMode) {
+                holdPlaceholder(placement);
+                return true;
+            } else if (placement != null) {
+                // Released placement that could not be refilled. It is still counted as an ad.
+                collapsePlacement(placement);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * <p>Replaces an expired ad with the next ad in the queue, keeping its slot. The slot is
+     * rebound after the current layout pass.</p>
+     *
+     * <p>If no ad is available, the slot is left without an ad and removed after the current
+     * layout pass. Either way, the slot keeps its position until the adapter has been notified.</p>
+     *
+     * <p>Outside reservation mode the replacement may have been counted as a queued slot. That
+     * slot is also kept until its removal is notified after the current layout pass.</p>
+     *
+     * @param placement the placement holding the expired ad
+     * @param internalAdapterSize the size of the adapter without ads
+     */
+    private void swapExpiredAd(@NonNull AdPlacement placement, int internalAdapterSize) {
+        FlurryAdNative expiredAd = placement.flurryAdNative;
+        int numberOfAds = getNumberOfAds(internalAdapterSize);
+        FlurryAdNative replacementAd = popAdForPosition(getPlacementPosition(placement));
+        // Popping changes the queue size, even when no usable ad was returned
+        invalidateAdCount();
+
+        if (expiredAd != null) {
+            // The bound view is rebuilt with the replacement, or cleared
+            expiredAd.removeTrackingView();
+            expiredAd.destroy();
+            mAdapterDataListener.onAdReleased(expiredAd);
+        }
+        // The rest of a carousel was fetched with the expired ad
+        destroyCarouselAds(placement);
+        setPlacementAd(placement, replacementAd);
+        placement.expandState = AdPlacement.EXPAND_STATE_DEFAULT;
+
+        if (replacementAd != null) {
+            takeCarouselAds(placement);
+            postItemChanged(placement);
+        } else {
+            collapsePlacement(placement);
+        }
+
+        for (int i = getNumberOfAds(internalAdapterSize); i < numberOfAds; i++) {
+            postSlotRemoval();
+        }
+    }
+
+    /**
+     * Keeps counting a queued slot that was used up during the current layout pass, and notifies
+     * its removal after that pass. The slot is the last one, so it is searched from the start.
+     */
+    private void postSlotRemoval() {
+        mPendingSlotRemovals++;
+        invalidateAdCount();
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                int internalAdapterSize = mCachedInternalAdapterSize;
+                int numberOfAds = getNumberOfAds(internalAdapterSize);
+                mPendingSlotRemovals--;
+                invalidateAdCount();
+                int vanishedAdIndex = getNumberOfAds(internalAdapterSize);
+                if (vanishedAdIndex == numberOfAds) {
+                    // Ads queued in the meantime keep the slot
+                    return;
+                }
+
+                int vanishedPosition = findAdSlotPosition(vanishedAdIndex, 0,
+                        internalAdapterSize + numberOfAds);
+                if (vanishedPosition != PositionShiftMap.NO_POSITION &&
+                        mAdapterDataListener instanceof RecyclerAdapterDataListener) {
+                    ((RecyclerAdapterDataListener) mAdapterDataListener)
+                            .notifyItemRemoved(vanishedPosition);
+                } else {
+                    mAdapterDataListener.notifyDataSetChanged();
+                }
+            }
+        });
+    }
+
+    /**
+     * Marks a placement without an ad for removal, which happens after the current layout pass.
+     */
+    private void collapsePlacement(@NonNull AdPlacement placement) {
+        setPlacementAd(placement, null);
+        placement.pendingCollapse = true;
+        postCollapse(placement);
+    }
+
+    /**
+     * Notifies the adapter, after the current layout pass, that the ad in a placement changed.
+     */
+    private void postItemChanged(@NonNull AdPlacement placement) {
+        postItemChanged(placement, null);
+    }
+
+    /**
+     * Notifies the adapter, after the current layout pass, that the ad in a placement changed.
+     *
+     * @param payload the payload to pass to the RecyclerView, or null for a full rebind
+     */
+    private void postItemChanged(@NonNull final AdPlacement placement,
+                                 @Nullable final Object payload) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                int position = getPlacementPosition(placement);
+                if (position == PositionShiftMap.NO_POSITION) {
+                    return;
+                }
+
+                if (mAdapterDataListener instanceof RecyclerAdapterDataListener) {
+                    ((RecyclerAdapterDataListener) mAdapterDataListener).notifyItemChanged(
+                            position, payload);
+                } else {
+                    mAdapterDataListener.notifyDataSetChanged();
+                }
+            }
+        });
+    }
+
+    /**
+     * Rotates the ad of a placement one rotation interval from now, unless the placement gets
+     * another ad before.
+     */
+    private void scheduleRotation(@NonNull final AdPlacement placement) {
+        final FlurryAdNative flurryAdNative = placement.flurryAdNative;
+        placement.rotationDue = false;
+        placement.rotateAtMillis = SystemClock.uptimeMillis() + mRotationIntervalMillis;
+        mMainHandler.postAtTime(new Runnable() {
+            @Override
+            public void run() {
+                if (placement.flurryAdNative == flurryAdNative && flurryAdNative != null) {
+                    rotateAd(placement);
+                }
+            }
+        }, placement.rotateAtMillis);
+    }
+
+    /**
+     * <p>Swaps the ad of a placement for the next queued ad with the same layout variant, and
+     * notifies the slot with {@link #PAYLOAD_AD_ROTATED}. If the replacement was counted as a
+     * queued slot, that slot is notified as removed.</p>
+     *
+     * <p>Off-screen placements are marked as due, expanded ads and placements without a fitting
+     * queued ad are tried again after another interval.</p>
+     */
+    private void rotateAd(@NonNull AdPlacement placement) {
+        int position = getPlacementPosition(placement);
+        FlurryAdNative rotatedAd = placement.flurryAdNative;
+        placement.rotateAtMillis = 0;
+        if (position == PositionShiftMap.NO_POSITION || rotatedAd == null ||
+                placement.pendingCollapse || !placement.impressed) {
+            return;
+        } else if (mFirstVisiblePosition != PositionShiftMap.NO_POSITION &&
+                isFarFromViewport(position, 0)) {
+            // Resumed by resumeDueRotations() once back on screen
+            placement.rotationDue = true;
+            return;
+        } else if (placement.expandState == AdPlacement.EXPAND_STATE_EXPANDED) {
+            // Do not pull the ad away while the user is looking into it
+            scheduleRotation(placement);
+            return;
+        }
+
+        int internalAdapterSize = mCachedInternalAdapterSize;
+        int numberOfAds = getNumberOfAds(internalAdapterSize);
+        FlurryAdNative replacementAd = popRotationAd(rotatedAd, position);
+        invalidateAdCount();
+        if (replacementAd == null) {
+            mNativeAdFetcher.requestUrgentAd();
+            scheduleRotation(placement);
+            return;
+        }
+
+        rotatedAd.removeTrackingView();
+        rotatedAd.destroy();
+        mAdapterDataListener.onAdReleased(rotatedAd);
+        setPlacementAd(placement, replacementAd);
+        placement.impressed = false;
+        placement.expandState = AdPlacement.EXPAND_STATE_DEFAULT;
+        int vanishedAdIndex = getNumberOfAds(internalAdapterSize);
+        if (vanishedAdIndex == numberOfAds) {
+            postItemChanged(placement, PAYLOAD_AD_ROTATED);
+            return;
+        }
+
+        // The replacement was counted as a queued slot, which is the last one and never bound
+        int vanishedPosition = findAdSlotPosition(vanishedAdIndex, position + 1,
+                internalAdapterSize + numberOfAds);
+        if (vanishedPosition != PositionShiftMap.NO_POSITION &&
+                mAdapterDataListener instanceof RecyclerAdapterDataListener) {
+            ((RecyclerAdapterDataListener) mAdapterDataListener)
+                    .notifyItemRemoved(vanishedPosition);
+            postItemChanged(placement, PAYLOAD_AD_ROTATED);
+        } else {
+            mAdapterDataListener.notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Finds the adjusted position of the ad slot with the given index, searching forward.
+     *
+     * @param adIndex the index of the slot among all ad slots
+     * @param positionStart the adjusted position to start searching at
+     * @param positionEnd the adjusted position to stop searching before
+     * @return the adjusted position or {@link PositionShiftMap#NO_POSITION} if not found
+     */
+    private int findAdSlotPosition(int adIndex, int positionStart, int positionEnd) {
+        for (int position = positionStart; position < positionEnd; position++) {
+            int layoutPosition = mShiftMap.toLayoutPosition(position);
+            if (layoutPosition == PositionShiftMap.NO_POSITION ||
+                    !mPositioner.canPlaceAd(layoutPosition)) {
+                continue;
+            }
+            int slotIndex = mPositioner.getAdIndex(layoutPosition);
+            if (slotIndex == adIndex) {
+                return position;
+            } else if (slotIndex > adIndex) {
+                break;
+            }
+        }
+        return PositionShiftMap.NO_POSITION;
+    }
+
+    /*
+     Pops the next ad for a rotated slot. Without a selector, the ad must pick the same layout
+     variant as the rotated ad, so that the slot keeps its height.
+     */
+    @Nullable
+    private FlurryAdNative popRotationAd(@NonNull FlurryAdNative rotatedAd, int position) {
+        if (mViewBinderSelector != null || mViewBinders.size() <= 1) {
+            return popAdForPosition(position);
+        }
+
+        FlurryAdNative flurryAdNative = mNativeAdFetcher.popLoadedAd(
+                FlurryNativeAdViewBuilder.getAssetFlags(rotatedAd));
+        if (flurryAdNative != null &&
+                selectViewBinder(flurryAdNative) != selectViewBinder(rotatedAd)) {
+            mNativeAdFetcher.requeueAd(flurryAdNative);
+            return null;
+        }
+        return flurryAdNative;
+    }
+
+    /*
+     Restarts the rotation of due placements that are back on screen, and paces the refill to the
+     number of ads rotated on screen
+     */
+    private void resumeDueRotations() {
+        int visibleAdCount = 0;
+        for (int i = 0; i < mAdPositionMapping.size(); i++) {
+            AdPlacement placement = mAdPositionMapping.valueAt(i);
+            int position = mShiftMap.toAdapterPosition(mAdPositionMapping.keyAt(i));
+            if (position == PositionShiftMap.NO_POSITION || isFarFromViewport(position, 0)) {
+                continue;
+            }
+
+            visibleAdCount++;
+            if (placement.rotationDue && placement.impressed &&
+                    placement.flurryAdNative != null) {
+                scheduleRotation(placement);
+            }
+        }
+        mNativeAdFetcher.setRefillInterval(mRotationIntervalMillis / Math.max(visibleAdCount, 1));
+    }
+
+    /**
+     * Removes a placement and its slot after the current layout pass, and notifies the adapter of
+     * the removed position.
+     */
+    private void postCollapse(@NonNull final AdPlacement placement) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                int position = getPlacementPosition(placement);
+                if (position == PositionShiftMap.NO_POSITION || !placement.pendingCollapse) {
+                    return;
+                }
+
+                int layoutPosition = mShiftMap.toLayoutPosition(position);
+                mAdPositionMapping.remove(layoutPosition);
+                skipPosition(position, layoutPosition);
+                if (mAdapterDataListener instanceof RecyclerAdapterDataListener) {
+                    ((RecyclerAdapterDataListener) mAdapterDataListener).notifyItemRemoved(position);
+                } else {
+                    mAdapterDataListener.notifyDataSetChanged();
+                }
+            }
+        });
+    }
+
+    /**
+     * Keeps a placement without an ad as a placeholder until its deadline, and requests an ad for
+     * it. The deadline starts when the placement is first held.
+     */
+    private void holdPlaceholder(@NonNull final AdPlacement placement) {
+        if (placement.reservedUntilMillis == 0) {
+            placement.reservedUntilMillis =
+                    SystemClock.uptimeMillis() + mReservationDeadlineMillis;
+            postPlaceholderDeadline(placement);
+        }
+        mNativeAdFetcher.requestUrgentAd();
+    }
+
+    /**
+     * Removes a placeholder at its deadline if it is still waiting for an ad.
+     */
+    private void postPlaceholderDeadline(@NonNull final AdPlacement placement) {
+        mMainHandler.postAtTime(new Runnable() {
+            @Override
+            public void run() {
+                if (placement.flurryAdNative == null && placement.reservedUntilMillis != 0 &&
+                        !placement.pendingCollapse &&
+                        getPlacementPosition(placement) != PositionShiftMap.NO_POSITION) {
+                    collapsePlacement(placement);
+                }
+            }
+        }, placement.reservedUntilMillis);
+    }
+
+    /**
+     * Fills placeholders with queued ads, in adapter order, and notifies each filled slot with
+     * {@link #PAYLOAD_AD_FILLED} so that it is rebound in place.
+     */
+    private void fillPlaceholders() {
+        if (mAdPositionMapping == null) {
+            return;
+        }
+
+        for (int i = 0; i < mAdPositionMapping.size(); i++) {
+            AdPlacement placement = mAdPositionMapping.valueAt(i);
+            if (placement.flurryAdNative != null || placement.reservedUntilMillis == 0 ||
+                    placement.pendingCollapse) {
+                continue;
+            }
+
+            FlurryAdNative flurryAdNative = popAdForPosition(
+                    mShiftMap.toAdapterPosition(mAdPositionMapping.keyAt(i)));
+            if (flurryAdNative == null) {
+                if (mNativeAdFetcher.getQueuedAdsCount() == 0) {
+                    break;
+                }
+                // Queued ads lack the assets of this placeholder's layout
+                continue;
+            }
+            setPlacementAd(placement, flurryAdNative);
+            placement.impressed = false;
+            placement.reservedUntilMillis = 0;
+            placement.expandState = AdPlacement.EXPAND_STATE_DEFAULT;
+            takeCarouselAds(placement);
+            postItemChanged(placement, PAYLOAD_AD_FILLED);
+        }
+    }
+
+    /**
+     * Reserves the slots coming up in the viewport after the current layout pass. Noop if already
+     * posted.
+     */
+    private void postReserveSlots() {
+        if (mReservationPosted) {
+            return;
+        }
+        mReservationPosted = true;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mReservationPosted = false;
+                if (mAdPositionMapping != null) {
+                    reserveSlots();
+                }
+            }
+        });
+    }
+
+    /**
+     * Reserves the ad slots between the first visible row and one screen below the viewport that
+     * are not in the adapter yet. Each slot gets a queued ad if there is one, and is a placeholder
+     * otherwise. Slots are reserved in order, so that placements always fill the first slots.
+     */
+    private void reserveSlots() {
+        int internalAdapterSize = mCachedInternalAdapterSize;
+        int layoutSize = internalAdapterSize + mShiftMap.getLayoutDelta();
+        int maxAds = mPositioner.getMaxFittableAds(layoutSize) -
+                mPositioner.getSkippedPositionCount();
+        int screenSize = mLastVisiblePosition - mFirstVisiblePosition + 1;
+        int lookAheadEnd = mLastVisiblePosition + screenSize;
+
+        for (int position = mFirstVisiblePosition; position <= lookAheadEnd; position++) {
+            int numberOfAds = getNumberOfAds(internalAdapterSize);
+            if (numberOfAds >= maxAds || position > getAdjustedCount(internalAdapterSize)) {
+                return;
+            }
+
+            int layoutPosition = mShiftMap.toLayoutPosition(position);
+            if (layoutPosition == PositionShiftMap.NO_POSITION ||
+                    !mPositioner.canPlaceAd(layoutPosition)) {
+                continue;
+            }
+            int adIndex = mPositioner.getAdIndex(layoutPosition);
+            if (adIndex < numberOfAds) {
+                continue;
+            } else if (adIndex > numberOfAds) {
+                return;
+            }
+
+            FlurryAdNative flurryAdNative = popAdForPosition(position);
+            AdPlacement placement = new AdPlacement(AdPlacement.NO_ANCHOR);
+            setPlacementAd(placement, flurryAdNative);
+            placement.expandState = takeRestoredExpandState(layoutPosition);
+            placement.layoutPosition = layoutPosition;
+            mAdPositionMapping.put(layoutPosition, placement);
+            invalidateAdCount();
+            // Only an ad position maps to the item it follows
+            placement.anchorId = getAnchorId(position);
+            if (flurryAdNative == null) {
+                holdPlaceholder(placement);
+            } else {
+                takeCarouselAds(placement);
+            }
+
+            if (mAdapterDataListener instanceof RecyclerAdapterDataListener) {
+                ((RecyclerAdapterDataListener) mAdapterDataListener)
+                        .notifyItemRangeInserted(position, 1);
+            } else {
+                mAdapterDataListener.notifyDataSetChanged();
+            }
+        }
+    }
+
+    /**
+     * Gets the current adjusted position of a placement. Placements move when the wrapped dataset
+     * changes or positions are skipped, so positions must not be kept across layout passes.
+     *
+     * @return the adjusted position or {@link PositionShiftMap#NO_POSITION} if the placement is no
+     * longer in the adapter
      */
-    @NativeAdAdapter.ExpandableAdMode int getExpandableAdMode() {
-        return mExpandableAdMode;
+    private int getPlacementPosition(@NonNull AdPlacement placement) {
+        if (mAdPositionMapping == null) {
+            return PositionShiftMap.NO_POSITION;
+        }
+        if (mAdPositionMapping.get(placement.layoutPosition) != placement) {
+            return PositionShiftMap.NO_POSITION;
+        }
+        return mShiftMap.toAdapterPosition(placement.layoutPosition);
     }
 
     /**
-     * Checks if this is a position in which the positioning logic allows an ad to be placed.
-     * @param position the adapter position to check
-     * @param internalAdapterSize the size of the adapter without ads
-     * @return <code>true</code> if an ad can be placed in the given position, <code>false</code>
-     * otherwise
+     * Skips an ad position that failed to render. Later positions, and ads placed there, move up by
+     * one.
+     *
+     * @param position the adjusted position to skip
+     * @param layoutPosition the layout position of the skipped position
      */
-    boolean canShowAd(int position, int internalAdapterSize) {
-        return mPositioner.canPlaceAd(position) && isAdAvailable(position, internalAdapterSize);
+    private void skipPosition(int position, int layoutPosition) {
+        mPositioner.addSkippedPosition(layoutPosition);
+        mShiftMap.collapse(position);
+
+        SparseArray<AdPlacement> shiftedMapping = new SparseArray<>(mAdPositionMapping.size());
+        for (int i = 0; i < mAdPositionMapping.size(); i++) {
+            int key = mAdPositionMapping.keyAt(i);
+            AdPlacement placement = mAdPositionMapping.valueAt(i);
+            placement.layoutPosition = key > layoutPosition ? key - 1 : key;
+            shiftedMapping.append(placement.layoutPosition, placement);
+        }
+        mAdPositionMapping = shiftedMapping;
+        invalidateAdCount();
     }
 
     /**
-     * Replaces the internal {@link FlurryNativeAdFetcher} object with a new one.
+     * Releases ads of placements far from the viewport. Ads that never logged an impression are
+     * returned to the queue and their placements removed. Ads that did are destroyed once outside
+     * the residency window, but their placements are kept so the slots stay in the adapter and pop
+     * a new ad if they are bound again.
+     */
+    private void releaseDistantAds() {
+        int screenSize = mLastVisiblePosition - mFirstVisiblePosition + 1;
+        int reclaimDistance = RECLAIM_DISTANCE_SCREENS * screenSize;
+        int residencyDistance = mResidencyWindowScreens * screenSize;
+        boolean reclaimed = false;
+
+        for (AdPlacement placement : getFilledPlacements()) {
+            FlurryAdNative flurryAdNative = placement.flurryAdNative;
+            if (flurryAdNative == null || placement.pendingCollapse) {
+                continue;
+            }
+
+            int position = getPlacementPosition(placement);
+            if (position == PositionShiftMap.NO_POSITION) {
+                continue;
+            }
+
+            if (!placement.impressed && isFarFromViewport(position, reclaimDistance)) {
+                // The ad may be shown by another view next, so stop tracking the old one
+                removeRequeuedAdTracking(flurryAdNative);
+                setPlacementAd(placement, null);
+                // In reservation mode slots are only removed when notified, so keep the
+                // placement to be refilled on demand
+                if (!mReservationMode) {
+                    mAdPositionMapping.remove(placement.layoutPosition);
+                }
+                requeueCarouselAds(placement);
+                mNativeAdFetcher.requeueAd(flurryAdNative);
+                mAdapterDataListener.onAdReleased(flurryAdNative);
+                reclaimed = true;
+            } else if (placement.impressed && isFarFromViewport(position, residencyDistance)) {
+                flurryAdNative.removeTrackingView();
+                flurryAdNative.destroy();
+                setPlacementAd(placement, null);
+                destroyCarouselAds(placement);
+                mAdapterDataListener.onAdReleased(flurryAdNative);
+            }
+        }
+
+        if (reclaimed) {
+            invalidateAdCount();
+            if (mReservationMode) {
+                fillPlaceholders();
+            }
+        }
+    }
+
+    /**
+     * Finds the next ad slot within a screen of the viewport in the scroll direction, and requests
+     * an urgent ad for it if it has no ad and the queue is empty. Slots beyond the last one that
+     * fits the wrapped adapter are not considered.
+     */
+    private void requestUpcomingAd(boolean towardsEnd) {
+        if (mNativeAdFetcher.getQueuedAdsCount() > 0) {
+            return;
+        }
+
+        int screenSize = mLastVisiblePosition - mFirstVisiblePosition + 1;
+        int step = towardsEnd ? 1 : -1;
+        int position = towardsEnd ? mLastVisiblePosition + 1 : mFirstVisiblePosition - 1;
+        int layoutSize = mCachedInternalAdapterSize + mShiftMap.getLayoutDelta();
+        for (int i = 0; i < screenSize && position >= 0; i++, position += step) {
+            int layoutPosition = mShiftMap.toLayoutPosition(position);
+            if (layoutPosition == PositionShiftMap.NO_POSITION ||
+                    !mPositioner.canPlaceAd(layoutPosition)) {
+                continue;
+            }
+
+            AdPlacement placement = mAdPositionMapping.get(layoutPosition);
+            if ((placement == null || placement.flurryAdNative == null) &&
+                    mPositioner.getAdIndex(layoutPosition) <
+                            mPositioner.getMaxFittableAds(layoutSize)) {
+                mNativeAdFetcher.requestUrgentAd();
+            }
+            return;
+        }
+    }
+
+    private boolean isFarFromViewport(int position, int distance) {
+        return position < mFirstVisiblePosition - distance ||
+                position > mLastVisiblePosition + distance;
+    }
+
+    /**
+     * Checks if an ad is still shown in one of the placements of this adapter.
+     */
+    boolean isAdPlaced(@NonNull FlurryAdNative flurryAdNative) {
+        return findPlacement(flurryAdNative) != null;
+    }
+
+    /**
+     * Sets the ad a placement shows, keeping {@link #mPlacementsByAd} and
+     * {@link #mFilledPlacements} in sync.
      *
-     * For testing purposes only.
+     * @param flurryAdNative the ad to show, or null if the placement lets go of its ad
+     */
+    private void setPlacementAd(@NonNull AdPlacement placement,
+                                @Nullable FlurryAdNative flurryAdNative) {
+        if (placement.flurryAdNative != null &&
+                mPlacementsByAd.get(placement.flurryAdNative) == placement) {
+            mPlacementsByAd.remove(placement.flurryAdNative);
+        }
+        placement.flurryAdNative = flurryAdNative;
+        if (flurryAdNative != null) {
+            mPlacementsByAd.put(flurryAdNative, placement);
+            mFilledPlacements.add(placement);
+        } else {
+            mFilledPlacements.remove(placement);
+        }
+    }
+
+    /**
+     * Gets the placements that hold an ad, last layout position first, as a copy that can be
+     * changed while iterating.
+     */
+    private List<AdPlacement> getFilledPlacements() {
+        List<AdPlacement> placements = new ArrayList<>(mFilledPlacements);
+        Collections.sort(placements, LAST_PLACEMENT_FIRST);
+        return placements;
+    }
+
+    /**
+     * Sets the further ads of a carousel placement, keeping {@link #mPlacementsByAd} in sync.
      *
-     * TODO: Extract an interface native ad fetcher.
+     * @param carouselAds the ads shown after the first one, or null if the placement lets go of
+     *                    them
+     */
+    private void setCarouselAds(@NonNull AdPlacement placement,
+                                @Nullable List<FlurryAdNative> carouselAds) {
+        if (placement.carouselAds != null) {
+            for (FlurryAdNative flurryAdNative : placement.carouselAds) {
+                if (mPlacementsByAd.get(flurryAdNative) == placement) {
+                    mPlacementsByAd.remove(flurryAdNative);
+                }
+            }
+        }
+        placement.carouselAds = carouselAds;
+        if (carouselAds != null) {
+            for (FlurryAdNative flurryAdNative : carouselAds) {
+                mPlacementsByAd.put(flurryAdNative, placement);
+            }
+        }
+    }
+
+    /**
+     * Finds the placement showing an ad, either as its ad or as a further ad of its carousel.
+     */
+    @Nullable
+    private AdPlacement findPlacement(@NonNull FlurryAdNative flurryAdNative) {
+        return mPlacementsByAd.get(flurryAdNative);
+    }
+
+    /**
+     * Checks if a layout position holds an ad, given the number of ads in the adapter.
+     */
+    private boolean isAdLayoutPosition(int layoutPosition, int numberOfAds) {
+        return mPositioner.canPlaceAd(layoutPosition) &&
+                mPositioner.getAdIndex(layoutPosition) < numberOfAds;
+    }
+
+    /**
+     * Checks if an adjusted position holds an ad, as counted by
+     * {@link FlurryBaseAdAdapter#getOriginalPosition(int, int)}.
+     */
+    private boolean isAdPosition(int position, int internalAdapterSize) {
+        int layoutPosition = mShiftMap.toLayoutPosition(position);
+        return layoutPosition != PositionShiftMap.NO_POSITION &&
+                isAdLayoutPosition(layoutPosition, getNumberOfAds(internalAdapterSize));
+    }
+
+    /**
+     * Splits a range of wrapped items into ranges of adjusted positions that do not contain ads.
      *
-     * @param nativeAdFetcher the mock native ad fetcher
+     * @return a list of <code>{adjustedStart, count}</code> pairs, in ascending order
      */
-    void injectMockAdFetcher(FlurryNativeAdFetcher nativeAdFetcher) {
-        mNativeAdFetcher = nativeAdFetcher;
+    private List<int[]> getContentRanges(int positionStart, int itemCount,
+                                         int internalAdapterSize) {
+        List<int[]> ranges = new ArrayList<>(1);
+        int position = getAdjustedPosition(positionStart, internalAdapterSize);
+        int remaining = itemCount;
+        while (remaining > 0) {
+            if (isAdPosition(position, internalAdapterSize)) {
+                position++;
+                continue;
+            }
+            int rangeStart = position;
+            while (remaining > 0 && !isAdPosition(position, internalAdapterSize)) {
+                position++;
+                remaining--;
+            }
+            ranges.add(new int[] {rangeStart, position - rangeStart});
+        }
+        return ranges;
     }
 
     /**
-     * Checks if an ad is available and read for a given position.
-     * @param position the adapter position to check
-     * @param internalAdapterSize the size of the adapter without ads
-     * @return <code>true</code> if an ad is available for the given position, <code>false</code>
-     * otherwise
+     * Gets the stable ID of the wrapped item preceding an ad position.
      */
-    @VisibleForTesting
-    protected boolean isAdAvailable(int position, int internalAdapterSize) {
-        int adIndex = mPositioner.getAdIndex(position);
-        if (adIndex < getNumberOfAds(internalAdapterSize)) {
-            FlurryAdNative flurryAdNative = getAdForPosition(position);
-            if (flurryAdNative != null) {
-                if (!flurryAdNative.isExpired()) {
-                    return true;
-                } else {
-                    // Remove expired ad. TODO: Check how this affects the layout
-                    sAdPositionMapping.remove(position);
-                    mAdapterDataListener.notifyDataSetChanged();
+    private long getAnchorId(int position) {
+        if (!mAdapterDataListener.hasStableWrappedIds()) {
+            return AdPlacement.NO_ANCHOR;
+        }
+        // An ad position maps to the original position of the item before it
+        int anchorPosition = getOriginalPosition(position, mCachedInternalAdapterSize);
+        if (anchorPosition < 0 || anchorPosition >= mCachedInternalAdapterSize) {
+            return AdPlacement.NO_ANCHOR;
+        }
+        return mAdapterDataListener.getWrappedItemId(anchorPosition);
+    }
+
+    /**
+     * Checks if every placed ad still follows the item it is anchored to. Looks up one stable ID
+     * per placement, at the position that the shift map predicts for its anchor.
+     */
+    private boolean isAlignedToAnchors(int internalAdapterSize) {
+        for (int i = 0; i < mAdPositionMapping.size(); i++) {
+            AdPlacement placement = mAdPositionMapping.valueAt(i);
+            int layoutPosition = mAdPositionMapping.keyAt(i);
+            int position = mShiftMap.toAdapterPosition(layoutPosition);
+            if (position == PositionShiftMap.NO_POSITION) {
+                return false;
+            }
+
+            // Every item before the ad is content, except for the ads before it
+            int anchorPosition = position - mPositioner.getAdIndex(layoutPosition) - 1;
+            if (placement.anchorId == AdPlacement.NO_ANCHOR) {
+                // Only an ad above all items can do without an anchor
+                if (position != 0) {
+                    return false;
                 }
+            } else if (anchorPosition < 0 || anchorPosition >= internalAdapterSize ||
+                    mAdapterDataListener.getWrappedItemId(anchorPosition) != placement.anchorId) {
+                return false;
             }
         }
-        return false;
+        return true;
+    }
+
+    /**
+     * <p>Finds where the items that placed ads are anchored to are in the wrapped adapter, reorders
+     * the placements to follow them and rebuilds the shift map around them.</p>
+     *
+     * <p>Takes one pass over the wrapped items, up to the last anchor, since adapters only look up
+     * stable IDs by position. The rebuilt map has a few segments per placement.</p>
+     */
+    private void alignToAnchors(int internalAdapterSize) {
+        // Sorted by anchor ID, so the wrapped adapter is scanned once with a binary search per item
+        LongSparseArray<AdPlacement> anchoredPlacements =
+                new LongSparseArray<>(mAdPositionMapping.size());
+        for (int i = 0; i < mAdPositionMapping.size(); i++) {
+            AdPlacement placement = mAdPositionMapping.valueAt(i);
+            if (placement.anchorId != AdPlacement.NO_ANCHOR) {
+                anchoredPlacements.put(placement.anchorId, placement);
+            }
+        }
+
+        int[] anchorPositions = new int[anchoredPlacements.size()];
+        Arrays.fill(anchorPositions, ANCHOR_NOT_FOUND);
+        int unresolvedCount = anchorPositions.length;
+        for (int position = 0; position < internalAdapterSize && unresolvedCount > 0; position++) {
+            int index = anchoredPlacements.indexOfKey(
+                    mAdapterDataListener.getWrappedItemId(position));
+            if (index >= 0 && anchorPositions[index] == ANCHOR_NOT_FOUND) {
+                anchorPositions[index] = position;
+                unresolvedCount--;
+            }
+        }
+
+        // Placements keyed by their new anchor position plus one, so an ad on top can use key 0
+        SparseArray<AdPlacement> alignedPlacements = new SparseArray<>(mAdPositionMapping.size());
+        for (int i = 0; i < mAdPositionMapping.size(); i++) {
+            AdPlacement placement = mAdPositionMapping.valueAt(i);
+            int layoutPosition = mAdPositionMapping.keyAt(i);
+            int anchorPosition;
+            if (placement.anchorId == AdPlacement.NO_ANCHOR) {
+                // Only an ad above all items can do without an anchor
+                anchorPosition = mShiftMap.toAdapterPosition(layoutPosition) == 0 ?
+                        -1 : ANCHOR_NOT_FOUND;
+            } else {
+                int index = anchoredPlacements.indexOfKey(placement.anchorId);
+                anchorPosition = anchoredPlacements.valueAt(index) == placement ?
+                        anchorPositions[index] : ANCHOR_NOT_FOUND;
+            }
+
+            if (anchorPosition == ANCHOR_NOT_FOUND ||
+                    alignedPlacements.get(anchorPosition + 1) != null) {
+                releaseUnanchoredPlacement(placement);
+            } else {
+                alignedPlacements.put(anchorPosition + 1, placement);
+            }
+        }
+
+        // Hand out the first layout positions in order, so that ads follow their items even if
+        // those moved past each other, and dropped placements leave no empty slot between ads
+        SparseArray<AdPlacement> mapping = new SparseArray<>(alignedPlacements.size());
+        mShiftMap.clear();
+        for (int i = 0; i < alignedPlacements.size(); i++) {
+            int layoutPosition = mAdPositionMapping.keyAt(i);
+            alignedPlacements.valueAt(i).layoutPosition = layoutPosition;
+            mapping.append(layoutPosition, alignedPlacements.valueAt(i));
+
+            int position = mShiftMap.toAdapterPosition(layoutPosition);
+            // Every item before the ad is content, except for the ads before it
+            int anchorPosition = position - mPositioner.getAdIndex(layoutPosition) - 1;
+            int shift = alignedPlacements.keyAt(i) - 1 - anchorPosition;
+            if (shift > 0) {
+                mShiftMap.insert(position, shift);
+            } else if (shift < 0) {
+                removeContentBefore(position, -shift);
+            }
+        }
+        mAdPositionMapping = mapping;
+    }
+
+    /**
+     * Lets go of the ad of a placement that lost its anchor: it is returned to the queue if it
+     * never logged an impression and destroyed otherwise.
+     */
+    private void releaseUnanchoredPlacement(@NonNull AdPlacement placement) {
+        FlurryAdNative flurryAdNative = placement.flurryAdNative;
+        setPlacementAd(placement, null);
+        placement.pendingCollapse = false;
+        if (flurryAdNative == null) {
+            return;
+        }
+
+        if (placement.impressed) {
+            flurryAdNative.removeTrackingView();
+            flurryAdNative.destroy();
+            destroyCarouselAds(placement);
+        } else {
+            removeRequeuedAdTracking(flurryAdNative);
+            requeueCarouselAds(placement);
+            mNativeAdFetcher.requeueAd(flurryAdNative);
+        }
+        mAdapterDataListener.onAdReleased(flurryAdNative);
+    }
+
+    /**
+     * Stops an ad that is returned to the queue from tracking its view. Views still built with the
+     * ad are marked, so that they track it again if the ad is popped back into them.
+     */
+    private void removeRequeuedAdTracking(@NonNull FlurryAdNative flurryAdNative) {
+        flurryAdNative.removeTrackingView();
+        for (FlurryAdViewHolder adViewHolder : mBoundAdViewHolders) {
+            if (adViewHolder.flurryAdNative == flurryAdNative) {
+                adViewHolder.trackingRemoved = true;
+            }
+        }
+    }
+
+    /**
+     * Records content rows directly before an adjusted position as removed, skipping over ad slots.
+     */
+    private void removeContentBefore(int position, int count) {
+        int remaining = count;
+        int rangeEnd = position;
+        while (remaining > 0 && rangeEnd > 0) {
+            int rangeStart = rangeEnd;
+            while (remaining > 0 && rangeStart > 0 && !isAdSlot(rangeStart - 1)) {
+                rangeStart--;
+                remaining--;
+            }
+            // Removing from the end keeps earlier positions where they are
+            mShiftMap.remove(rangeStart, rangeEnd - rangeStart);
+            rangeEnd = rangeStart;
+            while (rangeEnd > 0 && isAdSlot(rangeEnd - 1)) {
+                rangeEnd--;
+            }
+        }
+    }
+
+    /**
+     * Checks if an adjusted position is an ad slot, whether or not it is counted as an ad.
+     */
+    private boolean isAdSlot(int position) {
+        int layoutPosition = mShiftMap.toLayoutPosition(position);
+        return layoutPosition != PositionShiftMap.NO_POSITION &&
+                mPositioner.canPlaceAd(layoutPosition);
     }
 
     /**
@@ -393,58 +2393,96 @@ class FlurryBaseAdAdapter {
      *                       determined by the positioning logic
      */
     private void initAdPositionMap(int maxFittableAds) {
-        sAdPositionMapping = new SparseArray<>(maxFittableAds);
+        mAdPositionMapping = new SparseArray<>(maxFittableAds);
+        mPlacementsByAd.clear();
+        mFilledPlacements.clear();
     }
 
     /**
-     * Register ActivityLifecycleCallbacks to notify the adapter of Activity lifecycle changes.
-     * This enables the Adapter destroy ads when the Activity has been destroyed.
+     * Observes the lifecycle of the Activity housing the adapter, if possible. Fetching is paused
+     * while the Activity is stopped, and ads are destroyed with it if auto-destroy is set.
      *
-     * @param context the Activity context
+     * @param context the context the adapter was created with
      */
-    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
-    private void registerActivityLifecycleListener(final Context context) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH &&
-                context instanceof Activity) {
-            Application.ActivityLifecycleCallbacks lifecycleCallbacks =
-                    new Application.ActivityLifecycleCallbacks() {
+    private void initLifecycleController(Context context) {
+        if (mLifecycleController != null) {
+            mLifecycleController.unregister();
+            mLifecycleController = null;
+        }
+        if (AdLifecycleController.isSupported(context)) {
+            mLifecycleController = new AdLifecycleController((Activity) context,
+                    mLifecycleListener);
+            mLifecycleController.register();
+        }
+    }
 
-                @Override
-                public void onActivityCreated(Activity activity, Bundle savedInstanceState) {}
+    private final AdLifecycleController.LifecycleListener mLifecycleListener =
+            new AdLifecycleController.LifecycleListener() {
+        @Override
+        public void onStarted() {
+            int expiredAdCount = mNativeAdFetcher.resume();
+            if (expiredAdCount > 0 || mAdImagesReleased) {
+                // Rebuilds ad views whose images were released while in the background
+                mAdImagesReleased = false;
+                invalidateAdCount();
+                mAdapterDataListener.notifyDataSetChanged();
+            }
+        }
 
-                @Override
-                public void onActivityStarted(Activity activity) {}
+        @Override
+        public void onStopped() {
+            mNativeAdFetcher.pause();
+        }
 
-                @Override
-                public void onActivityResumed(Activity activity) {}
+        @Override
+        public void onDestroyed(boolean isFinishing) {
+            // The application context outlives the Activity, even if ads are kept. Registered
+            // again by refreshAds().
+            unregisterMemoryCallbacks();
+            if (isFinishing && mAutoDestroyAds && mAdPositionMapping != null) {
+                destroyAds();
+            }
+        }
+    };
 
-                @Override
-                public void onActivityPaused(Activity activity) {}
+    private final FlurryAdNativeListener mImpressionListener = new StubFlurryAdNativeListener() {
+        @Override
+        public void onImpressionLogged(FlurryAdNative flurryAdNative) {
+            AdPlacement placement = findPlacement(flurryAdNative);
+            if (placement != null) {
+                placement.impressed = true;
+                if (mRotationIntervalMillis > 0 && mCarouselSize == 1) {
+                    scheduleRotation(placement);
+                }
+            }
+        }
 
-                @Override
-                public void onActivityStopped(Activity activity) {}
+        @Override
+        public void onExpanded(FlurryAdNative flurryAdNative) {
+            onExpandStateChanged(flurryAdNative, AdPlacement.EXPAND_STATE_EXPANDED,
+                    PAYLOAD_AD_EXPANDED);
+        }
 
-                @Override
-                public void onActivitySaveInstanceState(Activity activity, Bundle outState) {}
+        @Override
+        public void onCollapsed(FlurryAdNative flurryAdNative) {
+            onExpandStateChanged(flurryAdNative, AdPlacement.EXPAND_STATE_COLLAPSED,
+                    PAYLOAD_AD_COLLAPSED);
+        }
+    };
 
-                @Override
-                @SuppressLint("NewApi")
-                public void onActivityDestroyed(Activity activity) {
-                    if (activity.isFinishing() &&
-                            activity == context) {
-                        destroyAds();
-
-                        ((Activity) context).getApplication()
-                                .unregisterActivityLifecycleCallbacks(this);
-                    }
-                }
-            };
-            /*
-            Monitor for onDestroy callbacks in the Activity and destroy ads when the Activity is
-            also destroyed. Will only work for API 14+.
-            */
-            ((Activity) context).getApplication().registerActivityLifecycleCallbacks(
-                    lifecycleCallbacks);
+    /*
+     Records the expand state of a placed ad. The list adapter updates expanded views itself,
+     since it cannot rebind a single row.
+     */
+    private void onExpandStateChanged(FlurryAdNative flurryAdNative, int expandState,
+                                      Object payload) {
+        AdPlacement placement = findPlacement(flurryAdNative);
+        if (placement == null) {
+            return;
+        }
+        placement.expandState = expandState;
+        if (mAdapterDataListener instanceof RecyclerAdapterDataListener) {
+            postItemChanged(placement, payload);
         }
     }
 
@@ -454,6 +2492,25 @@ class FlurryBaseAdAdapter {
      */
     interface ListAdapterDataListener {
         void notifyDataSetChanged();
+
+        /**
+         * @return <code>true</code> if the wrapped adapter has stable item IDs
+         */
+        boolean hasStableWrappedIds();
+
+        /**
+         * @param originalPosition the position of the item in the wrapped adapter
+         * @return the ID of the item in the wrapped adapter
+         */
+        long getWrappedItemId(int originalPosition);
+
+        /**
+         * Called when a placement lets go of its ad, which was destroyed or returned to the queue,
+         * e.g. when it was reclaimed, rotated or expired. Views may still show it until rebound.
+         *
+         * @param flurryAdNative the released ad
+         */
+        void onAdReleased(@NonNull FlurryAdNative flurryAdNative);
     }
 
     /**
@@ -462,6 +2519,18 @@ class FlurryBaseAdAdapter {
      * should have changed.
      */
     interface RecyclerAdapterDataListener extends ListAdapterDataListener {
+        void notifyItemChanged(int position);
+
+        void notifyItemChanged(int position, Object payload);
+
         void notifyItemRemoved(int position);
+
+        void notifyItemMoved(int fromPosition, int toPosition);
+
+        void notifyItemRangeInserted(int positionStart, int itemCount);
+
+        void notifyItemRangeRemoved(int positionStart, int itemCount);
+
+        void notifyItemRangeChanged(int positionStart, int itemCount);
     }
 }
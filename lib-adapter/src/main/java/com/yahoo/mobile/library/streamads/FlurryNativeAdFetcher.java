@@ -18,24 +18,30 @@ package com.yahoo.mobile.library.streamads;
 
 import android.content.Context;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 
-import com.flurry.android.FlurryAgent;
 import com.flurry.android.ads.FlurryAdErrorType;
 import com.flurry.android.ads.FlurryAdNative;
 import com.flurry.android.ads.FlurryAdNativeListener;
 import com.flurry.android.ads.FlurryAdTargeting;
 
 import java.lang.ref.WeakReference;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 /**
- * Fetches ads sequentially and fills a memory cache queue. Ensures that there is always ads
- * available in cache.
+ * <p>Fetches ads sequentially and fills a memory cache queue. Ensures that there is always ads
+ * available in cache.</p>
+ *
+ * <p>Besides this background refill, one urgent request can be in flight for an ad that is
+ * about to be shown. See {@link FlurryNativeAdFetcher#requestUrgentAd()}.</p>
  */
 class FlurryNativeAdFetcher {
     private final static String TAG = FlurryNativeAdFetcher.class.getName();
@@ -57,29 +63,75 @@ class FlurryNativeAdFetcher {
     private final static int RETRY_TIME_MILLI = 2000;
     private final Handler RETRY_FETCH_HANDLER;
     private final Runnable RETRY_FETCH_RUNNABLE;
-    private final ArrayDeque<FlurryAdNative> AD_QUEUE;
+    /**
+     * Checks again whether the session has started, in case the app does not report it.
+     */
+    private final Runnable SESSION_POLL_RUNNABLE;
+    /**
+     * Starts the next background request once the refill interval has passed.
+     */
+    private final Runnable PACED_REFILL_RUNNABLE;
+    private final AdQueue AD_QUEUE;
 
     private String mAdSpaceName;
     private int mFetchFailCount;
     private int mFetchSucceedCount;
+    /**
+     * A background request is in flight, or its retry is scheduled.
+     */
     private boolean mIsCurrentlyFetching;
+    private boolean mIsRetryPending;
+    private boolean mIsPaused;
+    private boolean mHasStartedFetching;
+    /**
+     * Incremented whenever queued and in-flight ads are destroyed. Callbacks from requests of an
+     * earlier generation are discarded.
+     */
+    private int mGeneration;
+    @Nullable private MessageQueue.IdleHandler mFirstFetchIdleHandler;
+    /**
+     * Number of ads to keep queued. Lowered under memory pressure.
+     */
+    private int mPrefetchTarget = PREFETCHED_ADS_SIZE;
+    /**
+     * Minimum time between background requests while ads are still queued, or 0 to refill as soon
+     * as an ad is popped.
+     */
+    private long mRefillIntervalMillis;
+    private long mLastRequestMillis;
 
     private WeakReference<Context> mContextReference;
     private List<FlurryAdNativeListener> mExternalListeners;
     // Holding on to this object to prevent garbage collection before request is complete.
     private FlurryAdNative mCurrentFlurryAdNative;
+    @Nullable private FlurryAdNative mUrgentFlurryAdNative;
     private FlurryAdTargeting mFlurryAdTargeting;
     private FetchListener mFetchListener;
 
     FlurryNativeAdFetcher(@NonNull Context context) {
         RETRY_FETCH_HANDLER = new Handler();
         RETRY_FETCH_RUNNABLE = new Runnable() {
+            @Override
+            public void run() {
+                mIsRetryPending = false;
+                replenishAdQueue();
+            }
+        };
+        SESSION_POLL_RUNNABLE = new Runnable() {
+            @Override
+            public void run() {
+                if (mAdSpaceName != null) {
+                    prefetchAds(mAdSpaceName);
+                }
+            }
+        };
+        PACED_REFILL_RUNNABLE = new Runnable() {
             @Override
             public void run() {
                 replenishAdQueue();
             }
         };
-        AD_QUEUE = new ArrayDeque<>(PREFETCHED_ADS_SIZE);
+        AD_QUEUE = new AdQueue();
         mExternalListeners = new ArrayList<>();
         mContextReference = new WeakReference<>(context);
     }
@@ -127,26 +179,210 @@ class FlurryNativeAdFetcher {
     }
 
     /**
-     * Starts prefetching ads using a given Flurry ad space name. Noop if the Flurry session is not
-     * started. Ad queuing will not start until this method has been called.
+     * <p>Starts prefetching ads using a given Flurry ad space name. Ad queuing will not start until
+     * this method has been called.</p>
+     *
+     * <p>If the Flurry session is not started yet, fetching starts as soon as the app reports it
+     * through {@link StreamAds#notifySessionStarted()}, or when polling finds it active.</p>
+     *
+     * <p>The first fetch waits until the main thread is idle, so that it does not compete with
+     * rendering the first frames of the app.</p>
      *
      * @param adSpaceName the Flurry ad space name
      */
     void prefetchAds(@NonNull String adSpaceName) {
         mAdSpaceName = adSpaceName;
 
-        if (!FlurryAgent.isSessionActive()) {
-            Log.w(TAG, "Cannot fetch ads. Session is not yet active");
-
-            RETRY_FETCH_HANDLER.postDelayed(RETRY_FETCH_RUNNABLE, RETRY_TIME_MILLI);
+        if (mIsPaused) {
+            // Fetching starts when resumed
+            return;
+        }
 
-            Log.w(TAG, "Will retry fetch ads in " + RETRY_TIME_MILLI);
+        RETRY_FETCH_HANDLER.removeCallbacks(SESSION_POLL_RUNNABLE);
+        if (!isSessionActive()) {
+            Log.w(TAG, "Cannot fetch ads. Session is not yet active");
+            waitForSession();
             return;
         }
+        StreamAds.removeSessionListener(mSessionListener);
 
         if (!mIsCurrentlyFetching) {
+            if (mHasStartedFetching) {
+                replenishAdQueue();
+            } else {
+                replenishWhenIdle();
+            }
+        }
+    }
+
+    /*
+     Starts the first fetch once the main thread has no pending messages, i.e. after the frames
+     queued during startup have been drawn.
+     */
+    private void replenishWhenIdle() {
+        if (mFirstFetchIdleHandler != null) {
+            return;
+        }
+        if (Looper.myLooper() == null) {
             replenishAdQueue();
+            return;
         }
+
+        mFirstFetchIdleHandler = new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                mFirstFetchIdleHandler = null;
+                if (!mIsCurrentlyFetching) {
+                    replenishAdQueue();
+                }
+                // One-shot
+                return false;
+            }
+        };
+        Looper.myQueue().addIdleHandler(mFirstFetchIdleHandler);
+    }
+
+    /*
+     Prefetches again when the app reports the next session as started, or when polling finds an
+     active session.
+     */
+    private void waitForSession() {
+        StreamAds.addSessionListener(mSessionListener);
+        // Fallback for apps that do not report the session
+        RETRY_FETCH_HANDLER.removeCallbacks(SESSION_POLL_RUNNABLE);
+        RETRY_FETCH_HANDLER.postDelayed(SESSION_POLL_RUNNABLE, RETRY_TIME_MILLI);
+
+        Log.w(TAG, "Will fetch ads when the session starts, or check again in " +
+                RETRY_TIME_MILLI);
+    }
+
+    private final StreamAds.SessionListener mSessionListener = new StreamAds.SessionListener() {
+        @Override
+        public void onSessionStarted() {
+            if (mAdSpaceName != null) {
+                prefetchAds(mAdSpaceName);
+            }
+        }
+    };
+
+    /**
+     * Stops fetching new ads and cancels pending retries, e.g. while the app is in the background.
+     * A request that is already in flight still completes and its ad is queued.
+     */
+    void pause() {
+        mIsPaused = true;
+        if (mIsRetryPending) {
+            // Nothing is in flight, so resuming starts a new request
+            mIsRetryPending = false;
+            mIsCurrentlyFetching = false;
+        }
+        RETRY_FETCH_HANDLER.removeCallbacks(RETRY_FETCH_RUNNABLE);
+        RETRY_FETCH_HANDLER.removeCallbacks(SESSION_POLL_RUNNABLE);
+        RETRY_FETCH_HANDLER.removeCallbacks(PACED_REFILL_RUNNABLE);
+    }
+
+    /**
+     * Resumes fetching after {@link FlurryNativeAdFetcher#pause()}. Queued ads that expired in the
+     * meantime are destroyed first, and the queue is then replenished. Noop if not paused.
+     *
+     * @return the number of expired ads that were removed from the queue
+     */
+    int resume() {
+        if (!mIsPaused) {
+            return 0;
+        }
+        mIsPaused = false;
+
+        int removedCount = 0;
+        Iterator<FlurryAdNative> iterator = AD_QUEUE.iterator();
+        while (iterator.hasNext()) {
+            FlurryAdNative adNative = iterator.next();
+            if (!isAdUsable(adNative)) {
+                iterator.remove();
+                adNative.destroy();
+                removedCount++;
+            }
+        }
+
+        if (mAdSpaceName != null) {
+            prefetchAds(mAdSpaceName);
+        }
+        return removedCount;
+    }
+
+    /**
+     * Sets how many ads to keep queued, up to the default of {@value #PREFETCHED_ADS_SIZE}. Raising
+     * the target replenishes the queue, lowering it does not drop queued ads.
+     *
+     * @param prefetchTarget the number of ads to keep queued
+     * @see FlurryNativeAdFetcher#trimQueue(int)
+     */
+    void setPrefetchTarget(int prefetchTarget) {
+        int previousTarget = mPrefetchTarget;
+        mPrefetchTarget = Math.max(0, Math.min(prefetchTarget, PREFETCHED_ADS_SIZE));
+        if (mPrefetchTarget > previousTarget && mAdSpaceName != null) {
+            prefetchAds(mAdSpaceName);
+        }
+    }
+
+    /**
+     * <p>Paces background refill, so that ads are fetched about as fast as they are shown instead
+     * of all at once. While ads are still queued, a new background request starts no sooner than
+     * the given interval after the previous one. An empty queue is refilled right away.</p>
+     *
+     * <p>Urgent requests are not paced.</p>
+     *
+     * @param refillIntervalMillis the minimum time between background requests, or 0 to refill
+     *                             as soon as an ad is popped
+     */
+    void setRefillInterval(long refillIntervalMillis) {
+        mRefillIntervalMillis = Math.max(refillIntervalMillis, 0);
+    }
+
+    /**
+     * Destroys queued ads until at most the given number are left. The oldest ads are destroyed
+     * first since they are closest to expiring.
+     *
+     * @param maxQueuedAds the number of ads to keep
+     * @return the number of destroyed ads
+     */
+    int trimQueue(int maxQueuedAds) {
+        int removedCount = 0;
+        while (AD_QUEUE.size() > Math.max(maxQueuedAds, 0)) {
+            AD_QUEUE.pollFirst().destroy();
+            removedCount++;
+        }
+        return removedCount;
+    }
+
+    /**
+     * <p>Requests an ad that is needed soon, e.g. for the next ad slot coming on screen while the
+     * queue is empty. Unlike background refill, the urgent request does not wait for a scheduled
+     * retry or for the main thread to be idle, and it does not count against the prefetch
+     * target.</p>
+     *
+     * <p>One urgent request can run next to a background request. Background refill does not
+     * start new requests until the urgent request completes. Noop if an ad is queued, an urgent
+     * request is in flight, or fetching is paused, not started or over its limits.</p>
+     */
+    void requestUrgentAd() {
+        if (mIsPaused || mAdSpaceName == null || !AD_QUEUE.isEmpty() ||
+                mUrgentFlurryAdNative != null || !canFetch() || !isSessionActive()) {
+            return;
+        }
+
+        if (mFirstFetchIdleHandler != null) {
+            Looper.myQueue().removeIdleHandler(mFirstFetchIdleHandler);
+            mFirstFetchIdleHandler = null;
+        }
+        if (mIsRetryPending) {
+            // The urgent request replaces the retry. Background refill resumes after it.
+            RETRY_FETCH_HANDLER.removeCallbacks(RETRY_FETCH_RUNNABLE);
+            mIsRetryPending = false;
+            mIsCurrentlyFetching = false;
+        }
+
+        mUrgentFlurryAdNative = startRequest(true);
     }
 
     /**
@@ -166,6 +402,62 @@ class FlurryNativeAdFetcher {
         }
     }
 
+    /**
+     * Gets and removes up to the given number of ads from the queue in one batch. Unusable ads
+     * are destroyed and skipped. This will also replenish the queue.
+     *
+     * @param maxCount the maximum number of ads to return
+     * @return the valid, useable {@link FlurryAdNative} objects, oldest first
+     */
+    @NonNull
+    List<FlurryAdNative> popLoadedAds(int maxCount) {
+        List<FlurryAdNative> adNatives = new ArrayList<>(Math.max(maxCount, 0));
+        while (adNatives.size() < maxCount && !AD_QUEUE.isEmpty()) {
+            FlurryAdNative adNative = AD_QUEUE.pollFirst();
+            if (isAdUsable(adNative)) {
+                adNatives.add(adNative);
+            } else if (adNative != null) {
+                adNative.destroy();
+            }
+        }
+        replenishAdQueue();
+        return adNatives;
+    }
+
+    /**
+     * Gets and removes the oldest queued ad that has the given assets, preferring ads without
+     * other optional assets. Unusable ads are destroyed and skipped. This will also replenish the
+     * queue.
+     *
+     * @param assetFlags the assets the ad needs, see
+     *                   {@link FlurryNativeAdViewBuilder#getRequiredAssetFlags(NativeAdViewBinder)}
+     * @return a valid, useable {@link FlurryAdNative} object or null if none with the assets is
+     * available
+     */
+    @Nullable
+    FlurryAdNative popLoadedAd(int assetFlags) {
+        FlurryAdNative adNative;
+        while ((adNative = AD_QUEUE.pollFirst(assetFlags)) != null && !isAdUsable(adNative)) {
+            adNative.destroy();
+        }
+        replenishAdQueue();
+        return adNative;
+    }
+
+    /**
+     * Puts back an ad that was popped but never shown, so that it is the next ad to be popped.
+     * Unusable ads are destroyed instead.
+     *
+     * @param adNative the ad to put back in the queue
+     */
+    void requeueAd(@NonNull FlurryAdNative adNative) {
+        if (isAdUsable(adNative)) {
+            AD_QUEUE.addFirst(adNative);
+        } else {
+            adNative.destroy();
+        }
+    }
+
     /**
      * Gets the number of currently queued ads (not the total number of fetched ads).
      * @return the number of queued ads
@@ -175,14 +467,23 @@ class FlurryNativeAdFetcher {
     }
 
     /**
-     * Destroys all queued ads and removes them from memory
+     * Destroys all queued ads and removes them from memory. Requests still in flight are
+     * abandoned, and their callbacks are ignored when they arrive.
      */
     void destroyAds() {
+        mGeneration++;
         mFetchFailCount = 0;
         mIsCurrentlyFetching = false;
 
+        mIsRetryPending = false;
+
         if (mCurrentFlurryAdNative != null) {
             mCurrentFlurryAdNative.destroy();
+            mCurrentFlurryAdNative = null;
+        }
+        if (mUrgentFlurryAdNative != null) {
+            mUrgentFlurryAdNative.destroy();
+            mUrgentFlurryAdNative = null;
         }
 
         for (FlurryAdNative adNative : AD_QUEUE) {
@@ -190,53 +491,238 @@ class FlurryNativeAdFetcher {
         }
 
         AD_QUEUE.clear();
-        RETRY_FETCH_HANDLER.removeMessages(0);
+        RETRY_FETCH_HANDLER.removeCallbacks(RETRY_FETCH_RUNNABLE);
+        RETRY_FETCH_HANDLER.removeCallbacks(SESSION_POLL_RUNNABLE);
+        RETRY_FETCH_HANDLER.removeCallbacks(PACED_REFILL_RUNNABLE);
+        StreamAds.removeSessionListener(mSessionListener);
+        if (mFirstFetchIdleHandler != null) {
+            Looper.myQueue().removeIdleHandler(mFirstFetchIdleHandler);
+            mFirstFetchIdleHandler = null;
+        }
     }
 
     private void replenishAdQueue() {
-        if (AD_QUEUE.size() < PREFETCHED_ADS_SIZE &&
-                mFetchFailCount < MAX_FETCH_ATTEMPT &&
-                mFetchSucceedCount < MAX_ADS_TO_FETCH) {
-            mIsCurrentlyFetching = true;
+        if (isBackgroundRequestPending()) {
+            // One background request at a time. Its completion or retry replenishes again.
+            return;
+        }
 
-            Context context = mContextReference.get();
-            mCurrentFlurryAdNative = new FlurryAdNative(context, mAdSpaceName);
-            if (mFlurryAdTargeting != null) {
-                mCurrentFlurryAdNative.setTargeting(mFlurryAdTargeting);
+        // Background refill yields to an urgent request in flight
+        if (!mIsPaused &&
+                mUrgentFlurryAdNative == null &&
+                AD_QUEUE.size() < mPrefetchTarget &&
+                canFetch()) {
+            long pacedUntilMillis = mLastRequestMillis + mRefillIntervalMillis;
+            if (!AD_QUEUE.isEmpty() && SystemClock.uptimeMillis() < pacedUntilMillis) {
+                // Queued ads cover the slots until then
+                mIsCurrentlyFetching = false;
+                RETRY_FETCH_HANDLER.removeCallbacks(PACED_REFILL_RUNNABLE);
+                RETRY_FETCH_HANDLER.postAtTime(PACED_REFILL_RUNNABLE, pacedUntilMillis);
+                return;
+            } else if (!isSessionActive()) {
+                // The session ended since fetching started. Resumes with the next one.
+                mIsCurrentlyFetching = false;
+                waitForSession();
+                return;
             }
-            mCurrentFlurryAdNative.setListener(internalListener);
-            mCurrentFlurryAdNative.fetchAd();
+            RETRY_FETCH_HANDLER.removeCallbacks(PACED_REFILL_RUNNABLE);
+            mLastRequestMillis = SystemClock.uptimeMillis();
+            mIsCurrentlyFetching = true;
+            mCurrentFlurryAdNative = startRequest(false);
         } else {
             mIsCurrentlyFetching = false;
         }
     }
 
+    /*
+     Whether a background request is in flight or waiting to be retried
+     */
+    private boolean isBackgroundRequestPending() {
+        return mCurrentFlurryAdNative != null || mIsRetryPending;
+    }
+
+    private boolean canFetch() {
+        return mFetchFailCount < MAX_FETCH_ATTEMPT && mFetchSucceedCount < MAX_ADS_TO_FETCH;
+    }
+
+    private FlurryAdNative startRequest(boolean urgent) {
+        mHasStartedFetching = true;
+
+        FlurryAdNative flurryAdNative = newFlurryAdNative(mContextReference.get(), mAdSpaceName);
+        if (mFlurryAdTargeting != null) {
+            flurryAdNative.setTargeting(mFlurryAdTargeting);
+        }
+        flurryAdNative.setListener(new RequestListener(mGeneration, urgent));
+        flurryAdNative.fetchAd();
+        return flurryAdNative;
+    }
+
+    /**
+     * Creates the ad object for a request. Replaced by tests to return mock ads.
+     */
+    @VisibleForTesting
+    FlurryAdNative newFlurryAdNative(Context context, String adSpaceName) {
+        return new FlurryAdNative(context, adSpaceName);
+    }
+
+    /**
+     * Checks if the Flurry session is active. Replaced by tests, which have no session.
+     */
+    @VisibleForTesting
+    boolean isSessionActive() {
+        return StreamAds.isSessionActive();
+    }
+
+    private void scheduleRetry() {
+        mIsCurrentlyFetching = true;
+        mIsRetryPending = true;
+        RETRY_FETCH_HANDLER.postDelayed(RETRY_FETCH_RUNNABLE, RETRY_TIME_MILLI);
+    }
+
+    /*
+     Queues a fetched ad and notifies listeners, or destroys the ad if it cannot be shown.
+     */
+    private void queueFetchedAd(FlurryAdNative flurryAdNative) {
+        if (isAdUsable(flurryAdNative)) {
+            AD_QUEUE.addLast(flurryAdNative);
+            mFetchFailCount = 0;
+            mFetchSucceedCount += 1;
+
+            /*
+             Inform the fetch listener that an ad has been fetched so it can get the
+             ad from FlurryNativeAdFetcher#popLoadedAd() whenever it wants.
+             */
+            if (mFetchListener != null) {
+                mFetchListener.onAdFetched();
+            }
+
+            for (FlurryAdNativeListener listener : mExternalListeners) {
+                listener.onFetched(flurryAdNative);
+            }
+        } else {
+            flurryAdNative.destroy();
+        }
+    }
+
+    private void notifyFetchError(FlurryAdNative flurryAdNative,
+                                  FlurryAdErrorType flurryAdErrorType, int errorCode) {
+        for (FlurryAdNativeListener listener : mExternalListeners) {
+            listener.onError(flurryAdNative, flurryAdErrorType, errorCode);
+        }
+
+        Log.w(TAG, "onError. Error code: " + errorCode);
+    }
+
     private boolean isAdUsable(FlurryAdNative nativeAd) {
         return nativeAd != null && nativeAd.isReady() && !nativeAd.isExpired();
     }
 
-    FlurryAdNativeListener internalListener = new FlurryAdNativeListener() {
+    /**
+     * <p>Listener set on each requested ad. Forwards callbacks to {@link #internalListener}, unless
+     * the fetch result arrives after the ads of its generation were destroyed. Such ads are
+     * destroyed as well, so a refresh neither leaks them nor retries on their behalf.</p>
+     *
+     * <p>Fetch results of urgent requests are handled here, since they must not drive the
+     * background refill.</p>
+     */
+    private final class RequestListener implements FlurryAdNativeListener {
+        private final int mRequestGeneration;
+        private final boolean mUrgent;
+
+        RequestListener(int requestGeneration, boolean urgent) {
+            mRequestGeneration = requestGeneration;
+            mUrgent = urgent;
+        }
+
+        private boolean isStale() {
+            return mRequestGeneration != mGeneration;
+        }
+
         @Override
         public void onFetched(FlurryAdNative flurryAdNative) {
-            if (isAdUsable(flurryAdNative)) {
-                AD_QUEUE.addLast(flurryAdNative);
-                mFetchFailCount = 0;
-                mFetchSucceedCount += 1;
-
-                /*
-                 Inform the fetch listener that an ad has been fetched so it can get the
-                 ad from FlurryNativeAdFetcher#popLoadedAd() whenever it wants.
-                 */
-                if (mFetchListener != null) {
-                    mFetchListener.onAdFetched();
+            if (isStale()) {
+                flurryAdNative.destroy();
+                return;
+            }
+            if (mUrgent) {
+                mUrgentFlurryAdNative = null;
+                queueFetchedAd(flurryAdNative);
+                // Resume the background refill that yielded to this request
+                if (!mIsCurrentlyFetching) {
+                    replenishAdQueue();
                 }
+                return;
+            }
+            mCurrentFlurryAdNative = null;
+            internalListener.onFetched(flurryAdNative);
+        }
 
-                for (FlurryAdNativeListener listener : mExternalListeners) {
-                    listener.onFetched(flurryAdNative);
+        @Override
+        public void onError(FlurryAdNative flurryAdNative, FlurryAdErrorType flurryAdErrorType,
+                            int errorCode) {
+            if (isStale()) {
+                if (flurryAdErrorType == FlurryAdErrorType.FETCH) {
+                    flurryAdNative.destroy();
                 }
-            } else {
-                flurryAdNative.destroy();
+                return;
+            }
+            if (flurryAdErrorType == FlurryAdErrorType.FETCH) {
+                if (mUrgent) {
+                    mUrgentFlurryAdNative = null;
+                    mFetchFailCount++;
+                    flurryAdNative.destroy();
+                    // Urgent requests are not retried, background refill retries after a delay
+                    if (!mIsCurrentlyFetching && !mIsPaused) {
+                        scheduleRetry();
+                    }
+                    notifyFetchError(flurryAdNative, flurryAdErrorType, errorCode);
+                    return;
+                }
+                mCurrentFlurryAdNative = null;
             }
+            internalListener.onError(flurryAdNative, flurryAdErrorType, errorCode);
+        }
+
+        @Override
+        public void onShowFullscreen(FlurryAdNative flurryAdNative) {
+            internalListener.onShowFullscreen(flurryAdNative);
+        }
+
+        @Override
+        public void onCloseFullscreen(FlurryAdNative flurryAdNative) {
+            internalListener.onCloseFullscreen(flurryAdNative);
+        }
+
+        @Override
+        public void onAppExit(FlurryAdNative flurryAdNative) {
+            internalListener.onAppExit(flurryAdNative);
+        }
+
+        @Override
+        public void onClicked(FlurryAdNative flurryAdNative) {
+            internalListener.onClicked(flurryAdNative);
+        }
+
+        @Override
+        public void onImpressionLogged(FlurryAdNative flurryAdNative) {
+            internalListener.onImpressionLogged(flurryAdNative);
+        }
+
+        @Override
+        public void onExpanded(FlurryAdNative flurryAdNative) {
+            internalListener.onExpanded(flurryAdNative);
+        }
+
+        @Override
+        public void onCollapsed(FlurryAdNative flurryAdNative) {
+            internalListener.onCollapsed(flurryAdNative);
+        }
+    }
+
+    FlurryAdNativeListener internalListener = new FlurryAdNativeListener() {
+        @Override
+        public void onFetched(FlurryAdNative flurryAdNative) {
+            queueFetchedAd(flurryAdNative);
 
             // Replenish immediately
             replenishAdQueue();
@@ -299,13 +785,13 @@ class FlurryNativeAdFetcher {
                 mFetchFailCount++;
                 flurryAdNative.destroy();
             }
-            // Retry after some delay
-            RETRY_FETCH_HANDLER.postDelayed(RETRY_FETCH_RUNNABLE, RETRY_TIME_MILLI);
-            for (FlurryAdNativeListener listener : mExternalListeners) {
-                listener.onError(flurryAdNative, flurryAdErrorType, errorCode);
+            // Retry after some delay, unless paused. Resuming retries immediately.
+            if (!mIsPaused) {
+                scheduleRetry();
+            } else {
+                mIsCurrentlyFetching = false;
             }
-
-            Log.w(TAG, "onError. Error code: " + errorCode);
+            notifyFetchError(flurryAdNative, flurryAdErrorType, errorCode);
         }
     };
 
@@ -16,9 +16,16 @@
 
 package com.yahoo.mobile.library.streamads;
 
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.view.View;
+import android.widget.ImageView;
 
 import com.flurry.android.ads.FlurryAdNative;
+import com.flurry.android.ads.FlurryAdNativeAsset;
 
 /**
  * Utility class that handles rendering Flurry native ads.
@@ -38,23 +45,40 @@ final class FlurryNativeAdViewBuilder {
     private static final String AD_ASSET_SEC_HQ_IMAGE = "secHqImage";
     private static final String AD_ASSET_SEC_IMAGE = "secImage";
 
+    /**
+     * Flags for the optional assets of an ad that layout variants may depend on.
+     */
+    static final int ASSET_FLAG_IMAGE = 1;
+    static final int ASSET_FLAG_RATING = 1 << 1;
+    static final int ASSET_FLAG_COMBINATIONS = 1 << 2;
+
     private static final int SEC_BRANDING_LOGO_WIDTH = 20;
     private static final int SEC_RATING_IMAGE_WIDTH = 77;
     private static final int SEC_IMAGE_WIDTH = 82;
     private static final int SEC_IMAGE_HEIGHT = 82;
+    private static final int SEC_HQ_IMAGE_WIDTH = 1200;
     private static final int SEC_HQ_IMAGE_HEIGHT = 627;
 
     /**
      * Renders a Flurry native ad unto given views.
      * @param flurryAdNative the {@link FlurryAdNative} object
      * @param viewHolder a view holder containing the views
+     * @param imageLoader the loader of image assets, or null to let the SDK load them
      */
     static void buildAdIntoViews(@NonNull FlurryAdNative flurryAdNative,
-                                 @NonNull FlurryAdViewHolder viewHolder) {
+                                 @NonNull FlurryAdViewHolder viewHolder,
+                                 @Nullable AdImageLoader imageLoader) {
         viewHolder.flurryAdNative = flurryAdNative;
 
-        // Clear previous values
+        // Clear previous values, cancelling image loads of the previous loader
         clearAdHolder(viewHolder);
+        viewHolder.imageLoader = imageLoader;
+        viewHolder.imagesReleased = false;
+        viewHolder.trackingRemoved = false;
+        // Image sizes are picked by view width, so views not laid out yet need another bind
+        viewHolder.fullyBound = isLaidOut(viewHolder.brandingLogoImageView) &&
+                isLaidOut(viewHolder.appStarRatingImageView) &&
+                isLaidOut(viewHolder.adImageView);
 
         // Null views will be handled by the SDK
         flurryAdNative.getAsset(AD_ASSET_SUMMARY).loadAssetIntoView(viewHolder.descriptionTextView);
@@ -71,45 +95,38 @@ final class FlurryNativeAdViewBuilder {
             } else {
                 brandingAssetToLoad = AD_ASSET_SEC_BRANDING_LOGO;
             }
-            flurryAdNative.getAsset(brandingAssetToLoad).loadAssetIntoView(
-                    viewHolder.brandingLogoImageView);
+            loadImageAsset(flurryAdNative.getAsset(brandingAssetToLoad),
+                    viewHolder.brandingLogoImageView, imageLoader,
+                    viewHolder.brandingLogoImageView.getHeight());
         }
 
-
-        boolean shouldShowRating = flurryAdNative.getAsset(AD_ASSET_SHOW_RATING) != null ?
-                Boolean.valueOf(flurryAdNative.getAsset(AD_ASSET_SHOW_RATING).getValue()) : false;
-
-        // If ImageView is too large for smallest app rating image, use larger app rating image
-        if (viewHolder.appStarRatingImageView != null &&
-                viewHolder.appStarRatingImageView.getWidth() > 0 && shouldShowRating) {
-            String starRatingAssetToLoad;
-            if (viewHolder.appStarRatingImageView.getWidth() > SEC_RATING_IMAGE_WIDTH) {
-                starRatingAssetToLoad = AD_ASSET_SEC_HQ_RATING_IMAGE;
-            } else {
-                starRatingAssetToLoad = AD_ASSET_SEC_RATING_IMAGE;
-            }
-
-            if (flurryAdNative.getAsset(starRatingAssetToLoad) != null) {
-                flurryAdNative.getAsset(starRatingAssetToLoad).loadAssetIntoView(
-                        viewHolder.appStarRatingImageView);
-            }
-        }
+        bindRating(viewHolder);
 
         // If ImageView is too large for smallest ad image, use larger ad image
         if (viewHolder.adImageView != null && viewHolder.adImageView.getWidth() > 0) {
             String adImageAssetToLoad;
             int imageHeight;
-            if (viewHolder.adImageView.getWidth() > SEC_IMAGE_WIDTH) {
+            int imageWidth = viewHolder.adImageView.getWidth();
+            if (imageWidth > SEC_IMAGE_WIDTH) {
                 adImageAssetToLoad = AD_ASSET_SEC_HQ_IMAGE;
                 imageHeight = SEC_HQ_IMAGE_HEIGHT;
             } else {
                 adImageAssetToLoad = AD_ASSET_SEC_IMAGE;
                 imageHeight = SEC_IMAGE_HEIGHT;
             }
+            if (imageLoader != null) {
+                /*
+                The image loader scales images down to the view bounds, so fit the height to the
+                width instead of the full image height, which would keep the image at full size.
+                */
+                imageHeight = imageWidth > SEC_IMAGE_WIDTH ?
+                        imageWidth * SEC_HQ_IMAGE_HEIGHT / SEC_HQ_IMAGE_WIDTH :
+                        Math.min(imageWidth, SEC_IMAGE_HEIGHT);
+            }
 
             if (flurryAdNative.getAsset(adImageAssetToLoad) != null) {
-                flurryAdNative.getAsset(adImageAssetToLoad).loadAssetIntoView(
-                        viewHolder.adImageView);
+                loadImageAsset(flurryAdNative.getAsset(adImageAssetToLoad),
+                        viewHolder.adImageView, imageLoader, imageHeight);
                 // Prevent flickering row height from dynamic image
                 viewHolder.adImageView.getLayoutParams().height = imageHeight;
             } else {
@@ -122,7 +139,265 @@ final class FlurryNativeAdViewBuilder {
         }
     }
 
-    private static void clearAdHolder(@NonNull FlurryAdViewHolder viewHolder) {
+    /**
+     * Loads the app rating image of the ad built into a view holder, if the ad shows a rating.
+     * The image size is picked by the width of the rating view, so it is skipped while the view
+     * is not laid out.
+     *
+     * @param viewHolder a view holder the ad has been built into
+     */
+    static void bindRating(@NonNull FlurryAdViewHolder viewHolder) {
+        FlurryAdNative flurryAdNative = viewHolder.flurryAdNative;
+        // If ImageView is too large for smallest app rating image, use larger app rating image
+        if (flurryAdNative == null || viewHolder.appStarRatingImageView == null ||
+                viewHolder.appStarRatingImageView.getWidth() <= 0 ||
+                !shouldShowRating(flurryAdNative)) {
+            return;
+        }
+
+        String starRatingAssetToLoad;
+        if (viewHolder.appStarRatingImageView.getWidth() > SEC_RATING_IMAGE_WIDTH) {
+            starRatingAssetToLoad = AD_ASSET_SEC_HQ_RATING_IMAGE;
+        } else {
+            starRatingAssetToLoad = AD_ASSET_SEC_RATING_IMAGE;
+        }
+        loadImageAsset(flurryAdNative.getAsset(starRatingAssetToLoad),
+                viewHolder.appStarRatingImageView, viewHolder.imageLoader,
+                viewHolder.appStarRatingImageView.getHeight());
+    }
+
+    /**
+     * Checks if the ad built into a view holder shows a rating that was skipped because the
+     * rating view was not laid out yet.
+     *
+     * @param viewHolder a view holder the ad has been built into
+     * @return <code>true</code> if the rating still has to be loaded
+     */
+    static boolean isRatingPending(@NonNull FlurryAdViewHolder viewHolder) {
+        return viewHolder.flurryAdNative != null && viewHolder.appStarRatingImageView != null &&
+                viewHolder.appStarRatingImageView.getWidth() <= 0 &&
+                shouldShowRating(viewHolder.flurryAdNative);
+    }
+
+    private static boolean shouldShowRating(@NonNull FlurryAdNative flurryAdNative) {
+        return flurryAdNative.getAsset(AD_ASSET_SHOW_RATING) != null &&
+                Boolean.valueOf(flurryAdNative.getAsset(AD_ASSET_SHOW_RATING).getValue());
+    }
+
+    /*
+     Loads an image asset through the image loader, by its URL. The SDK loads it if there is no
+     image loader.
+     */
+    private static void loadImageAsset(@Nullable FlurryAdNativeAsset asset,
+                                       @NonNull ImageView imageView,
+                                       @Nullable AdImageLoader imageLoader, int targetHeight) {
+        if (asset == null) {
+            return;
+        }
+
+        String url = imageLoader != null ? asset.getValue() : null;
+        if (url == null || url.isEmpty()) {
+            asset.loadAssetIntoView(imageView);
+            return;
+        }
+        imageLoader.loadImage(url, imageView, imageView.getWidth(), targetHeight);
+    }
+
+    /**
+     * Checks if an ad has assets for the image views of a layout variant, so that the variant
+     * does not show empty image views for it.
+     *
+     * @param flurryAdNative the {@link FlurryAdNative} object
+     * @param viewBinder the view binder of the layout variant
+     * @return <code>true</code> if the ad can fill the image views the view binder binds
+     */
+    static boolean hasAssetsFor(@NonNull FlurryAdNative flurryAdNative,
+                                @NonNull NativeAdViewBinder viewBinder) {
+        int requiredAssetFlags = getRequiredAssetFlags(viewBinder);
+        return (getAssetFlags(flurryAdNative) & requiredAssetFlags) == requiredAssetFlags;
+    }
+
+    /**
+     * Gets the optional assets an ad has.
+     *
+     * @param flurryAdNative the {@link FlurryAdNative} object
+     * @return a combination of the <code>ASSET_FLAG_*</code> flags
+     */
+    static int getAssetFlags(@NonNull FlurryAdNative flurryAdNative) {
+        int assetFlags = 0;
+        if (flurryAdNative.getAsset(AD_ASSET_SEC_HQ_IMAGE) != null ||
+                flurryAdNative.getAsset(AD_ASSET_SEC_IMAGE) != null) {
+            assetFlags |= ASSET_FLAG_IMAGE;
+        }
+        if (shouldShowRating(flurryAdNative)) {
+            assetFlags |= ASSET_FLAG_RATING;
+        }
+        return assetFlags;
+    }
+
+    /**
+     * Gets the optional assets a layout variant shows, i.e. the ones it has views for.
+     *
+     * @param viewBinder the view binder of the layout variant
+     * @return a combination of the <code>ASSET_FLAG_*</code> flags
+     */
+    static int getRequiredAssetFlags(@NonNull NativeAdViewBinder viewBinder) {
+        int assetFlags = 0;
+        if (viewBinder.getAdImageId() > 0) {
+            assetFlags |= ASSET_FLAG_IMAGE;
+        }
+        if (viewBinder.getAppStarRatingImageId() > 0) {
+            assetFlags |= ASSET_FLAG_RATING;
+        }
+        return assetFlags;
+    }
+
+    /**
+     * Shows an ad view expanded or collapsed, and sets the views the SDK tracks accordingly. If
+     * expansion toggling is off, the whole ad view is tracked.
+     *
+     * @param viewHolder a view holder the ad has been built into
+     * @param expandableAdMode the expandable ad mode of the adapter
+     * @param expanded <code>true</code> if the ad should be shown expanded
+     */
+    static void bindExpandState(@NonNull FlurryAdViewHolder viewHolder,
+                                @NativeAdAdapter.ExpandableAdMode int expandableAdMode,
+                                boolean expanded) {
+        if (viewHolder.flurryAdNative == null) {
+            return;
+        }
+
+        viewHolder.trackingRemoved = false;
+        if (expandableAdMode == NativeAdAdapter.EXPANDABLE_AD_MODE_OFF) {
+            viewHolder.flurryAdNative.setTrackingView(viewHolder.parentView);
+        } else if (expanded) {
+            expandAdView(viewHolder);
+        } else {
+            collapseAdView(viewHolder);
+        }
+    }
+
+    /**
+     * Shows the expanded state of an expandable ad, and lets the SDK track the collapse view.
+     * @param adViewHolder a view holder containing the views
+     */
+    static void expandAdView(FlurryAdViewHolder adViewHolder) {
+        if (adViewHolder.callToActionView != null) {
+            adViewHolder.callToActionView.setVisibility(View.GONE);
+        }
+        if (adViewHolder.adCollapseView != null) {
+            adViewHolder.adCollapseView.setVisibility(View.VISIBLE);
+        }
+        if (adViewHolder.adImageView != null) {
+            adViewHolder.adImageView.setVisibility(View.VISIBLE);
+        }
+
+        if (adViewHolder.flurryAdNative != null) {
+            adViewHolder.flurryAdNative.setCollapsableTrackingView(adViewHolder.parentView,
+                    adViewHolder.adCollapseView);
+        }
+    }
+
+    /**
+     * Shows the collapsed state of an expandable ad, and lets the SDK track the call-to-action view.
+     * @param adViewHolder a view holder containing the views
+     */
+    static void collapseAdView(FlurryAdViewHolder adViewHolder) {
+        if (adViewHolder.callToActionView != null) {
+            adViewHolder.callToActionView.setVisibility(View.VISIBLE);
+        }
+        if (adViewHolder.adCollapseView != null) {
+            adViewHolder.adCollapseView.setVisibility(View.GONE);
+        }
+        if (adViewHolder.adImageView != null) {
+            adViewHolder.adImageView.setVisibility(View.GONE);
+        }
+
+        if (adViewHolder.flurryAdNative != null) {
+            adViewHolder.flurryAdNative.setExpandableTrackingView(adViewHolder.parentView,
+                    adViewHolder.callToActionView);
+        }
+    }
+
+    /**
+     * Removes the images from ad views so that their bitmaps can be garbage collected. The views
+     * have to be rebuilt before they are shown again.
+     *
+     * @param viewHolder a view holder containing the views
+     * @return the approximate number of bytes held by the removed bitmaps
+     */
+    static long releaseAdImages(@NonNull FlurryAdViewHolder viewHolder) {
+        viewHolder.fullyBound = false;
+        viewHolder.imagesReleased = true;
+        long byteCount = releaseImage(viewHolder.brandingLogoImageView) +
+                releaseImage(viewHolder.appStarRatingImageView) +
+                releaseImage(viewHolder.adImageView);
+        cancelImageLoads(viewHolder);
+        return byteCount;
+    }
+
+    /*
+     Cancels images still loading into the views, so that they do not show up in views that were
+     cleared or show another ad. The views must be cleared first, since the image loader may then
+     reuse the images they showed.
+     */
+    private static void cancelImageLoads(@NonNull FlurryAdViewHolder viewHolder) {
+        AdImageLoader imageLoader = viewHolder.imageLoader;
+        if (imageLoader == null) {
+            return;
+        }
+        if (viewHolder.brandingLogoImageView != null) {
+            imageLoader.cancelLoad(viewHolder.brandingLogoImageView);
+        }
+        if (viewHolder.appStarRatingImageView != null) {
+            imageLoader.cancelLoad(viewHolder.appStarRatingImageView);
+        }
+        if (viewHolder.adImageView != null) {
+            imageLoader.cancelLoad(viewHolder.adImageView);
+        }
+    }
+
+    /**
+     * Checks if an ad view holder already shows all assets of an ad, so that binding the same ad
+     * again can be skipped.
+     *
+     * @param flurryAdNative the ad to bind
+     * @param viewHolder a view holder containing the views
+     * @return <code>true</code> if the views need no update
+     */
+    static boolean isAdBound(@NonNull FlurryAdNative flurryAdNative,
+                             @NonNull FlurryAdViewHolder viewHolder) {
+        return viewHolder.flurryAdNative == flurryAdNative && viewHolder.fullyBound;
+    }
+
+    private static boolean isLaidOut(View view) {
+        return view == null || view.getWidth() > 0;
+    }
+
+    private static long releaseImage(ImageView imageView) {
+        if (imageView == null) {
+            return 0;
+        }
+
+        long byteCount = 0;
+        Drawable drawable = imageView.getDrawable();
+        if (drawable instanceof BitmapDrawable) {
+            Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+            if (bitmap != null) {
+                // getByteCount() is API 12+
+                byteCount = (long) bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        }
+        imageView.setImageDrawable(null);
+        return byteCount;
+    }
+
+    /**
+     * Clears the content of ad views, e.g. for a slot that no longer has an ad to show.
+     * @param viewHolder a view holder containing the views
+     */
+    static void clearAdHolder(@NonNull FlurryAdViewHolder viewHolder) {
+        viewHolder.fullyBound = false;
         if (viewHolder.descriptionTextView != null) {
             viewHolder.descriptionTextView.setText(null);
         }
@@ -146,5 +421,6 @@ final class FlurryNativeAdViewBuilder {
         if (viewHolder.adImageView != null) {
             viewHolder.adImageView.setImageDrawable(null);
         }
+        cancelImageLoads(viewHolder);
     }
 }
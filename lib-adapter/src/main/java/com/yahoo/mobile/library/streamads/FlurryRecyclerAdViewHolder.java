@@ -25,13 +25,32 @@ import android.view.View;
  */
 class FlurryRecyclerAdViewHolder extends RecyclerView.ViewHolder {
     private FlurryAdViewHolder mNativeAdViewHolder;
+    private NativeAdViewBinder mViewBinder;
 
     FlurryRecyclerAdViewHolder(View parentView, NativeAdViewBinder viewBinder) {
         super(parentView);
         mNativeAdViewHolder = FlurryAdViewHolder.newInstance(parentView, viewBinder, null);
+        mViewBinder = viewBinder;
     }
 
     FlurryAdViewHolder getNativeAdViewHolder() {
         return mNativeAdViewHolder;
     }
+
+    /**
+     * Looks up the ad views again if this holder was created with a view binder that binds other
+     * views of the same layout, e.g. by another adapter sharing the recycled view pool.
+     *
+     * @param viewBinder the view binder the holder is about to be bound with
+     */
+    void setViewBinder(NativeAdViewBinder viewBinder) {
+        if (!mViewBinder.bindsSameViews(viewBinder)) {
+            if (mNativeAdViewHolder.flurryAdNative != null) {
+                mNativeAdViewHolder.flurryAdNative.removeTrackingView();
+            }
+            FlurryNativeAdViewBuilder.clearAdHolder(mNativeAdViewHolder);
+            mNativeAdViewHolder = FlurryAdViewHolder.newInstance(itemView, viewBinder, null);
+            mViewBinder = viewBinder;
+        }
+    }
 }
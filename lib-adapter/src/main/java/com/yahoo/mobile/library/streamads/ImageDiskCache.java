@@ -0,0 +1,251 @@
+/*
+ * Copyright 2015 Yahoo Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.mobile.library.streamads;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * <p>Size-bounded disk cache of downloaded ad images, in front of their URLs. Images missing
+ * from the cache are downloaded into it, and the least recently used ones are deleted once the
+ * cache grows over its size.</p>
+ *
+ * <p>Safe to use from several threads. Downloads run in parallel, only adding a downloaded file
+ * to the cache is serialized.</p>
+ */
+final class ImageDiskCache {
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final int CONNECT_TIMEOUT_MILLI = 10000;
+    private static final int READ_TIMEOUT_MILLI = 10000;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    /*
+    Total size of the cached files, or -1 until the directory has been scanned. Scanned lazily, so
+    that creating the cache does not touch the disk.
+     */
+    private long mSize = -1;
+
+    ImageDiskCache(@NonNull File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = Math.max(maxBytes, 0);
+    }
+
+    /**
+     * Gets the cached file of an image, marking it as recently used.
+     *
+     * @param url the URL of the image
+     * @return the cached file, or null if the image is not cached
+     */
+    @Nullable
+    synchronized File get(@NonNull String url) {
+        ensureScanned();
+        File file = getFile(url);
+        if (!file.isFile()) {
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * Gets the cached file of an image, downloading it first if it is not cached. Blocks while
+     * downloading, so must not be called on the main thread.
+     *
+     * @param url the URL of the image
+     * @return the cached file
+     * @throws IOException if the image could not be downloaded or written to disk
+     */
+    @NonNull
+    File getOrDownload(@NonNull String url) throws IOException {
+        File file = get(url);
+        if (file != null) {
+            return file;
+        }
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLI);
+            connection.setReadTimeout(READ_TIMEOUT_MILLI);
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected response " + connection.getResponseCode() +
+                        " for " + url);
+            }
+            InputStream inputStream = connection.getInputStream();
+            try {
+                return put(url, inputStream);
+            } finally {
+                inputStream.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Writes an image into the cache, replacing any cached file for the same URL, and deletes the
+     * least recently used images if the cache is over its size. The stream is read before the
+     * cache is locked.
+     *
+     * @param url the URL of the image
+     * @param inputStream the content of the image
+     * @return the cached file
+     * @throws IOException if the image could not be written to disk
+     */
+    @NonNull
+    File put(@NonNull String url, @NonNull InputStream inputStream) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs() && !mDirectory.isDirectory()) {
+            throw new IOException("Cannot create " + mDirectory);
+        }
+
+        File tempFile = File.createTempFile(getKey(url), TEMP_FILE_SUFFIX, mDirectory);
+        OutputStream outputStream = new FileOutputStream(tempFile);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, count);
+            }
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        } finally {
+            outputStream.close();
+        }
+
+        synchronized (this) {
+            ensureScanned();
+            File file = getFile(url);
+            long replacedSize = file.length();
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+                throw new IOException("Cannot write " + file);
+            }
+            mSize += file.length() - replacedSize;
+            trimToSize();
+            return file;
+        }
+    }
+
+    /**
+     * @return the total size of the cached images, in bytes
+     */
+    synchronized long getSize() {
+        ensureScanned();
+        return mSize;
+    }
+
+    /*
+     Deletes the least recently used files until the cache fits its size
+     */
+    private void trimToSize() {
+        if (mSize <= mMaxBytes) {
+            return;
+        }
+
+        File[] files = listCachedFiles();
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length && mSize > mMaxBytes; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                mSize -= length;
+            }
+        }
+    }
+
+    /*
+     Sums up the cached files on first use. Temp files left by a download that was killed are
+     deleted.
+     */
+    private void ensureScanned() {
+        if (mSize >= 0) {
+            return;
+        }
+
+        mSize = 0;
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_FILE_SUFFIX)) {
+                file.delete();
+            } else if (file.isFile()) {
+                mSize += file.length();
+            }
+        }
+    }
+
+    private File[] listCachedFiles() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+
+        int count = 0;
+        for (File file : files) {
+            // Temp files of downloads in progress are not counted yet
+            if (file.isFile() && !file.getName().endsWith(TEMP_FILE_SUFFIX)) {
+                files[count++] = file;
+            }
+        }
+        return Arrays.copyOf(files, count);
+    }
+
+    private File getFile(@NonNull String url) {
+        return new File(mDirectory, getKey(url));
+    }
+
+    /*
+     File names are hashes of the URLs, which may contain characters that are not allowed in
+     file names
+     */
+    private static String getKey(@NonNull String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(url.getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            // MD5 and UTF-8 are always available
+            return Integer.toHexString(url.hashCode());
+        }
+    }
+}
@@ -48,12 +48,28 @@ public interface NativeAdAdapter {
     public @interface ExpandableAdMode {}
 
     /**
-     * Refreshes the ads in the adapter
+     * A position whose layout variant shows assets that no queued ad has gets the oldest queued
+     * ad instead.
+     */
+    public static final int ASSET_FALLBACK_OLDEST_AD = 0;
+    /**
+     * A position whose layout variant shows assets that no queued ad has waits for an ad that
+     * has them.
+     */
+    public static final int ASSET_FALLBACK_NONE = 1;
+
+    @IntDef({ASSET_FALLBACK_OLDEST_AD, ASSET_FALLBACK_NONE})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface AssetFallback {}
+
+    /**
+     * Refreshes the ads in the adapter. Noop once the ads were destroyed.
      */
     void refreshAds();
 
     /**
-     * Destroys all ads in the adapter
+     * Destroys all ads in the adapter. This is final: the adapter shows no more ads and cannot be
+     * refreshed, so create a new adapter to show ads again.
      */
     void destroyAds();
 
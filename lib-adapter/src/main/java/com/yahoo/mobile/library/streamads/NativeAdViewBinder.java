@@ -18,6 +18,9 @@ package com.yahoo.mobile.library.streamads;
 
 import android.support.annotation.IdRes;
 import android.support.annotation.LayoutRes;
+import android.support.annotation.Nullable;
+
+import com.flurry.android.ads.FlurryAdNative;
 
 public class NativeAdViewBinder {
     private int mAdLayoutId;
@@ -70,6 +73,58 @@ public class NativeAdViewBinder {
         return mAdCollapseViewId;
     }
 
+    /**
+     * Checks if another view binder binds the same views of the same layout, so that ad views
+     * built with either can be shown with the other.
+     *
+     * @param viewBinder the view binder to compare with
+     * @return <code>true</code> if both view binders use the same layout and view IDs
+     */
+    boolean bindsSameViews(NativeAdViewBinder viewBinder) {
+        return viewBinder == this || (mAdLayoutId == viewBinder.mAdLayoutId &&
+                mHeadlineTextId == viewBinder.mHeadlineTextId &&
+                mDescriptionTextId == viewBinder.mDescriptionTextId &&
+                mSourceTextId == viewBinder.mSourceTextId &&
+                mBrandingLogoImageId == viewBinder.mBrandingLogoImageId &&
+                mAppStarRatingImageId == viewBinder.mAppStarRatingImageId &&
+                mAdImageId == viewBinder.mAdImageId &&
+                mCallToActionViewId == viewBinder.mCallToActionViewId &&
+                mAdCollapseViewId == viewBinder.mAdCollapseViewId);
+    }
+
+    /**
+     * <p>Picks the layout variant an ad position is built with, when an adapter has more than one
+     * {@link NativeAdViewBinder}. Each variant has its own view type, so ad views are only
+     * recycled into positions using the same layout.</p>
+     *
+     * <p>If no selector is set, or the selector returns {@link #SELECT_BY_ASSETS}, the first view
+     * binder whose image views the ad has assets for is used.</p>
+     *
+     * <p>The selector is first asked before an ad is picked for a position. The adapter then
+     * picks the queued ad that best fits the assets of the returned view binder.</p>
+     */
+    public interface ViewBinderSelector {
+        /**
+         * Returned to pick the view binder by the assets of the ad.
+         */
+        int SELECT_BY_ASSETS = -1;
+
+        /**
+         * Picks the view binder for an ad position. Should return the same view binder for the
+         * same ad and position for as long as the ad is shown there.
+         *
+         * @param position the adapter position of the ad
+         * @param flurryAdNative the ad to show, or <code>null</code> if no ad has been picked
+         *                       for the position yet
+         * @param viewBinderCount the number of view binders of the adapter. The view binder
+         *                        passed when creating the adapter has index 0, and added variants
+         *                        follow in the order they were added.
+         * @return the index of the view binder to use, or {@link #SELECT_BY_ASSETS}
+         */
+        int selectViewBinder(int position, @Nullable FlurryAdNative flurryAdNative,
+                             int viewBinderCount);
+    }
+
     public final static class ViewBinderBuilder {
         NativeAdViewBinder mNativeAdViewBinder;
 
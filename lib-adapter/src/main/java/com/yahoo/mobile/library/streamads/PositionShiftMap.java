@@ -0,0 +1,276 @@
+/*
+ * Copyright 2015 Yahoo Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.mobile.library.streamads;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Maps adjusted adapter positions to the layout positions that the
+ * {@link com.yahoo.mobile.library.streamads.positioning.AdapterAdPositioner} placed ads in.</p>
+ *
+ * <p>Rows inserted into the wrapped adapter after ads were placed have no layout position, and
+ * rows removed from it leave a gap in the layout. Placed ads therefore keep their layout position
+ * and move along with the content around them.</p>
+ *
+ * <p>The map is a list of segments sorted by adapter position. Lookups are a binary search over
+ * the segments; edits shift the segments after the edit, so they take time linear in the number
+ * of segments. There are at most two segments per edit since the map was last rebuilt, which is
+ * far fewer than rows.</p>
+ */
+final class PositionShiftMap {
+    static final int NO_POSITION = -1;
+
+    private final List<Segment> mSegments;
+    /**
+     * Number of removed rows minus number of inserted rows, i.e. the layout size minus the adapter
+     * size.
+     */
+    private int mLayoutDelta;
+
+    PositionShiftMap() {
+        mSegments = new ArrayList<>(4);
+        clear();
+    }
+
+    /**
+     * Resets the map so that every adapter position is its own layout position.
+     */
+    void clear() {
+        mSegments.clear();
+        mSegments.add(new Segment(0, 0, false));
+        mLayoutDelta = 0;
+    }
+
+    boolean isIdentity() {
+        return mSegments.size() == 1 && mSegments.get(0).offset == 0;
+    }
+
+    /**
+     * Gets the difference between the number of rows the positioner laid out and the number of
+     * rows in the adapter.
+     *
+     * @return the number of removed rows minus the number of inserted rows
+     */
+    int getLayoutDelta() {
+        return mLayoutDelta;
+    }
+
+    /**
+     * Gets the layout position of a row in the adapter.
+     *
+     * @param position the adjusted adapter position
+     * @return the layout position or {@link #NO_POSITION} if the row was inserted after layout
+     */
+    int toLayoutPosition(int position) {
+        Segment segment = mSegments.get(indexOf(position));
+        return segment.inserted ? NO_POSITION : position + segment.offset;
+    }
+
+    /**
+     * Gets the layout position of a row in the adapter or, for inserted rows, of the first laid
+     * out row after it.
+     *
+     * @param position the adjusted adapter position
+     * @return the layout position of the row or of the next laid out row
+     */
+    int nextLayoutPosition(int position) {
+        int index = indexOf(position);
+        Segment segment = mSegments.get(index);
+        if (segment.inserted) {
+            // An inserted segment is always followed by a laid out one
+            Segment next = mSegments.get(index + 1);
+            return next.start + next.offset;
+        }
+        return position + segment.offset;
+    }
+
+    /**
+     * Gets the adapter position of a laid out row.
+     *
+     * @param layoutPosition the layout position
+     * @return the adjusted adapter position or {@link #NO_POSITION} if the row has been removed
+     */
+    int toAdapterPosition(int layoutPosition) {
+        // Find the last segment whose first layout position is <= layoutPosition
+        int low = 0;
+        int high = mSegments.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (layoutStartOf(mid) <= layoutPosition) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        Segment segment = mSegments.get(low);
+        int position = layoutPosition - segment.offset;
+        if (segment.inserted || position < segment.start ||
+                (low + 1 < mSegments.size() && position >= mSegments.get(low + 1).start)) {
+            return NO_POSITION;
+        }
+        return position;
+    }
+
+    /**
+     * Records rows inserted into the adapter. The inserted rows get no layout position and all rows
+     * after them keep theirs.
+     *
+     * @param position the adjusted position of the first inserted row
+     * @param count the number of inserted rows
+     */
+    void insert(int position, int count) {
+        if (count <= 0) {
+            return;
+        }
+        int index = split(position);
+        mSegments.add(index, new Segment(position, 0, true));
+        for (int i = index + 1; i < mSegments.size(); i++) {
+            Segment segment = mSegments.get(i);
+            segment.start += count;
+            if (!segment.inserted) {
+                segment.offset -= count;
+            }
+        }
+        mLayoutDelta -= count;
+
+        mergeWithPrevious(index + 1);
+        mergeWithPrevious(index);
+    }
+
+    /**
+     * Records rows removed from the adapter. Laid out rows that are removed leave a gap in the
+     * layout positions.
+     *
+     * @param position the adjusted position of the first removed row
+     * @param count the number of removed rows
+     */
+    void remove(int position, int count) {
+        if (count <= 0) {
+            return;
+        }
+        int endIndex = split(position + count);
+        int startIndex = split(position);
+        // Splitting at the start might have moved the end index by one
+        if (mSegments.get(endIndex).start != position + count) {
+            endIndex++;
+        }
+        mSegments.subList(startIndex, endIndex).clear();
+
+        for (int i = startIndex; i < mSegments.size(); i++) {
+            Segment segment = mSegments.get(i);
+            segment.start -= count;
+            if (!segment.inserted) {
+                segment.offset += count;
+            }
+        }
+        mLayoutDelta += count;
+
+        mergeWithPrevious(startIndex);
+    }
+
+    /**
+     * Records a laid out row that was removed from both the adapter and the layout, e.g. an ad
+     * position skipped by the positioner.
+     *
+     * @param position the adjusted position of the collapsed row
+     */
+    void collapse(int position) {
+        int index = indexOf(position);
+        for (int i = index + 1; i < mSegments.size(); i++) {
+            mSegments.get(i).start--;
+        }
+        // Drop the containing segment if the collapsed row was all it had
+        if (index + 1 < mSegments.size() &&
+                mSegments.get(index + 1).start == mSegments.get(index).start) {
+            mSegments.remove(index);
+            mergeWithPrevious(index);
+        }
+    }
+
+    private int layoutStartOf(int index) {
+        Segment segment = mSegments.get(index);
+        if (segment.inserted) {
+            return layoutStartOf(index + 1);
+        }
+        return segment.start + segment.offset;
+    }
+
+    /*
+     Binary search for the segment containing an adapter position.
+     */
+    private int indexOf(int position) {
+        int low = 0;
+        int high = mSegments.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (mSegments.get(mid).start <= position) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /*
+     Makes sure a segment starts at the given position and returns its index.
+     */
+    private int split(int position) {
+        int index = indexOf(position);
+        Segment segment = mSegments.get(index);
+        if (segment.start == position) {
+            return index;
+        }
+        mSegments.add(index + 1, new Segment(position, segment.offset, segment.inserted));
+        return index + 1;
+    }
+
+    private void mergeWithPrevious(int index) {
+        if (index <= 0 || index >= mSegments.size()) {
+            return;
+        }
+        Segment previous = mSegments.get(index - 1);
+        Segment segment = mSegments.get(index);
+        if (previous.inserted == segment.inserted &&
+                (segment.inserted || previous.offset == segment.offset)) {
+            mSegments.remove(index);
+        }
+    }
+
+    private static final class Segment {
+        /**
+         * First adjusted adapter position of this segment. The segment ends where the next begins.
+         */
+        int start;
+        /**
+         * Difference between layout position and adapter position of rows in this segment.
+         */
+        int offset;
+        /**
+         * Whether rows in this segment were inserted after layout and have no layout position.
+         */
+        boolean inserted;
+
+        Segment(int start, int offset, boolean inserted) {
+            this.start = start;
+            this.offset = offset;
+            this.inserted = inserted;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2015 Yahoo Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.mobile.library.streamads;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.support.annotation.IntRange;
+import android.support.annotation.MainThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import com.flurry.android.FlurryAgent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Library-wide entry points that are not tied to a single ad adapter.
+ */
+public final class StreamAds {
+    private static final List<SessionListener> sSessionListeners = new ArrayList<>();
+    /**
+     * Fetchers started by {@link #warmUp(Context, String, int)}, by ad space name, until an adapter
+     * adopts them.
+     */
+    private static final Map<String, FlurryNativeAdFetcher> sWarmFetchers = new HashMap<>();
+    /**
+     * Memory callbacks of the application context, registered while there are warmed up fetchers.
+     */
+    @Nullable private static ComponentCallbacks2 sMemoryCallbacks;
+    @Nullable private static Context sApplicationContext;
+
+    // Private to prevent instantiation
+    private StreamAds() {}
+
+    /**
+     * <p>Notifies the library that a Flurry session has started, so that ad adapters waiting for
+     * it fetch ads right away. Call this from your
+     * <code>FlurryAgentListener#onSessionStarted()</code>:</p>
+     *
+     * <pre>
+     * FlurryAgent.setFlurryAgentListener(new FlurryAgentListener() {
+     *     public void onSessionStarted() {
+     *         StreamAds.notifySessionStarted();
+     *     }
+     * });
+     * </pre>
+     *
+     * <p>Without this, ad adapters check every 2 seconds whether the session has started. Ads are
+     * only fetched while the Flurry SDK reports an active session, so fetching stops when a
+     * session ends and picks up again with the next one.</p>
+     */
+    @MainThread
+    public static void notifySessionStarted() {
+        List<SessionListener> listeners = new ArrayList<>(sSessionListeners);
+        sSessionListeners.clear();
+        for (SessionListener listener : listeners) {
+            listener.onSessionStarted();
+        }
+    }
+
+    /**
+     * <p>Starts fetching ads for an ad space before any ad adapter exists, e.g. from
+     * <code>Application#onCreate()</code> or a splash screen. The first ad adapter built for the
+     * same ad space takes over the fetched ads and any request in flight, so the first screen of
+     * the stream can show ads as soon as it is laid out.</p>
+     *
+     * <p>Calling this again for the same ad space before an adapter is built only changes the
+     * number of ads to fetch.</p>
+     *
+     * <p>Fetched ads are kept until an adapter takes them over. Call
+     * {@link #cancelWarmUp(String)} if no adapter will be built for the ad space. They are also
+     * destroyed when the system reports that memory is running low.</p>
+     *
+     * @param context the {@link Context} to use. Only its Application context is kept.
+     * @param adSpaceName the Flurry ad space name that the ad adapter will use
+     * @param count the number of ads to have ready, up to the number of ads an adapter queues
+     */
+    @MainThread
+    public static void warmUp(@NonNull Context context, @NonNull String adSpaceName,
+                              @IntRange(from = 1) int count) {
+        FlurryNativeAdFetcher fetcher = sWarmFetchers.get(adSpaceName);
+        warmUp(fetcher != null ? fetcher :
+                new FlurryNativeAdFetcher(context.getApplicationContext()), adSpaceName, count);
+        registerMemoryCallbacks(context.getApplicationContext());
+    }
+
+    /**
+     * Stops fetching ads for an ad space warmed up by {@link #warmUp(Context, String, int)}, and
+     * destroys the ads fetched so far. Noop if an adapter already took them over.
+     *
+     * @param adSpaceName the Flurry ad space name passed to {@link #warmUp(Context, String, int)}
+     */
+    @MainThread
+    public static void cancelWarmUp(@NonNull String adSpaceName) {
+        FlurryNativeAdFetcher fetcher = adoptWarmFetcher(adSpaceName);
+        if (fetcher != null) {
+            fetcher.destroyAds();
+        }
+    }
+
+    /**
+     * Warms up an ad space with a given fetcher. Used by tests to warm up with a test fetcher.
+     */
+    @VisibleForTesting
+    static void warmUp(@NonNull FlurryNativeAdFetcher fetcher, @NonNull String adSpaceName,
+                       int count) {
+        sWarmFetchers.put(adSpaceName, fetcher);
+        fetcher.setPrefetchTarget(count);
+        fetcher.prefetchAds(adSpaceName);
+    }
+
+    /**
+     * Hands over the fetcher warmed up for an ad space, if any. Each warmed up fetcher is only
+     * handed over once.
+     *
+     * @param adSpaceName the Flurry ad space name
+     * @return the warmed up fetcher or null if {@link #warmUp(Context, String, int)} was not
+     * called for the ad space
+     */
+    @Nullable
+    static FlurryNativeAdFetcher adoptWarmFetcher(@NonNull String adSpaceName) {
+        FlurryNativeAdFetcher fetcher = sWarmFetchers.remove(adSpaceName);
+        if (sWarmFetchers.isEmpty()) {
+            unregisterMemoryCallbacks();
+        }
+        return fetcher;
+    }
+
+    /**
+     * Destroys all warmed up fetchers no adapter took over yet when memory is running low. Their
+     * ads would otherwise be held until the app process ends.
+     *
+     * @param level the trim level passed to {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    static void onTrimMemory(int level) {
+        // UI_HIDDEN is sent whenever the app goes to the background, not because memory is low
+        if (level == ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN ||
+                level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return;
+        }
+
+        List<FlurryNativeAdFetcher> fetchers = new ArrayList<>(sWarmFetchers.values());
+        sWarmFetchers.clear();
+        unregisterMemoryCallbacks();
+        for (FlurryNativeAdFetcher fetcher : fetchers) {
+            fetcher.destroyAds();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static void registerMemoryCallbacks(@NonNull Context applicationContext) {
+        if (sMemoryCallbacks == null &&
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            sMemoryCallbacks = new MemoryCallbacks();
+            sApplicationContext = applicationContext;
+            applicationContext.registerComponentCallbacks(sMemoryCallbacks);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static void unregisterMemoryCallbacks() {
+        if (sMemoryCallbacks != null && sApplicationContext != null) {
+            sApplicationContext.unregisterComponentCallbacks(sMemoryCallbacks);
+        }
+        sMemoryCallbacks = null;
+        sApplicationContext = null;
+    }
+
+    /**
+     * Checks if ads can be fetched, i.e. if the Flurry SDK reports an active session.
+     * {@link #notifySessionStarted()} only wakes up fetchers waiting for a session.
+     */
+    static boolean isSessionActive() {
+        return FlurryAgent.isSessionActive();
+    }
+
+    /**
+     * Adds a listener to be notified once when the app reports the next session as started.
+     */
+    static void addSessionListener(@NonNull SessionListener listener) {
+        if (!sSessionListeners.contains(listener)) {
+            sSessionListeners.add(listener);
+        }
+    }
+
+    static void removeSessionListener(@NonNull SessionListener listener) {
+        sSessionListeners.remove(listener);
+    }
+
+    /**
+     * Forwards memory callbacks of the application context to the warmed up fetchers.
+     */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static final class MemoryCallbacks implements ComponentCallbacks2 {
+        @Override
+        public void onTrimMemory(int level) {
+            StreamAds.onTrimMemory(level);
+        }
+
+        @Override
+        public void onLowMemory() {
+            StreamAds.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {}
+    }
+
+    /**
+     * Callback interface for components waiting for the Flurry session to start.
+     */
+    interface SessionListener {
+        void onSessionStarted();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015 Yahoo Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.mobile.library.streamads.positioning;
+
+import android.support.annotation.IntRange;
+
+/**
+ * <p>{@link AdapterAdPositioner} for grids that spaces ads in rows of content instead of items.
+ * Ads are placed after full rows only, so with ads taking up whole rows, as
+ * {@link com.yahoo.mobile.library.streamads.FlurryAdRecyclerAdapter} does for grid layouts, no
+ * row is left partly empty before an ad.</p>
+ *
+ * <p>Assumes content items take up one span each. Ad positions are computed from the span count
+ * in constant time, like {@link LinearIntervalAdPositioner}.</p>
+ */
+public class GridIntervalAdPositioner extends LinearIntervalAdPositioner {
+    private final int mSpanCount;
+
+    /**
+     * Initializes the positioner.
+     *
+     * @param spanCount the number of columns of the grid
+     * @param startingRow the number of content rows before the first ad
+     * @param repeatRows the number of content rows between ads
+     */
+    public GridIntervalAdPositioner(@IntRange(from = 1) int spanCount,
+                                    @IntRange(from = 0) int startingRow,
+                                    @IntRange(from = 1) int repeatRows) {
+        super(startingRow * Math.max(spanCount, 1));
+        mSpanCount = Math.max(spanCount, 1);
+        setRepeatAfterRows(repeatRows);
+    }
+
+    /**
+     * Initializes the positioner without a repeat interval.
+     *
+     * @param spanCount the number of columns of the grid
+     * @param startingRow the number of content rows before the first ad
+     */
+    public GridIntervalAdPositioner(@IntRange(from = 1) int spanCount,
+                                    @IntRange(from = 0) int startingRow) {
+        super(startingRow * Math.max(spanCount, 1));
+        mSpanCount = Math.max(spanCount, 1);
+    }
+
+    /**
+     * Sets the number of content rows between ads. A single column grid needs at least 2 rows
+     * between ads, as {@link LinearIntervalAdPositioner} does.
+     *
+     * @param repeatRows the number of content rows between ads
+     */
+    public void setRepeatAfterRows(@IntRange(from = 1) int repeatRows) {
+        setRepeatAfterInterval(repeatRows * mSpanCount);
+    }
+
+    public int getSpanCount() {
+        return mSpanCount;
+    }
+}
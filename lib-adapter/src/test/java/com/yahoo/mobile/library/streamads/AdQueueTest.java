@@ -0,0 +1,149 @@
+/*
+ * Copyright 2015 Yahoo Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.mobile.library.streamads;
+
+import com.flurry.android.ads.FlurryAdNative;
+import com.flurry.android.ads.FlurryAdNativeAsset;
+
+import junit.framework.TestCase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Iterator;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class AdQueueTest extends TestCase {
+    private final static int IMAGE = FlurryNativeAdViewBuilder.ASSET_FLAG_IMAGE;
+    private final static int RATING = FlurryNativeAdViewBuilder.ASSET_FLAG_RATING;
+
+    private AdQueue mAdQueue;
+
+    @Before
+    public void setUp() throws Exception {
+        mAdQueue = new AdQueue();
+    }
+
+    @Test
+    public void testPollFirst_exactAssetsPreferred() throws Exception {
+        FlurryAdNative imageAndRatingAd = createAd(IMAGE | RATING);
+        FlurryAdNative imageAd = createAd(IMAGE);
+        mAdQueue.addLast(imageAndRatingAd);
+        mAdQueue.addLast(imageAd);
+
+        // The older ad also has a rating, so it is left for a layout that shows one
+        assertSame(imageAd, mAdQueue.pollFirst(IMAGE));
+        assertSame(imageAndRatingAd, mAdQueue.pollFirst(IMAGE));
+        assertTrue(mAdQueue.isEmpty());
+    }
+
+    @Test
+    public void testPollFirst_oldestSupersetFallback() throws Exception {
+        FlurryAdNative textAd = createAd(0);
+        FlurryAdNative imageAndRatingAd = createAd(IMAGE | RATING);
+        FlurryAdNative imageAd = createAd(IMAGE);
+        mAdQueue.addLast(textAd);
+        mAdQueue.addLast(imageAndRatingAd);
+        mAdQueue.addLast(imageAd);
+
+        // No ad has only a rating, so the oldest ad that has one among others is polled
+        assertSame(imageAndRatingAd, mAdQueue.pollFirst(RATING));
+        assertEquals(2, mAdQueue.size());
+    }
+
+    @Test
+    public void testPollFirst_noAdWithAssets() throws Exception {
+        FlurryAdNative textAd = createAd(0);
+        FlurryAdNative imageAd = createAd(IMAGE);
+        mAdQueue.addLast(textAd);
+        mAdQueue.addLast(imageAd);
+
+        // Left queued, so that ASSET_FALLBACK_NONE waits and ASSET_FALLBACK_OLDEST_AD polls again
+        assertNull(mAdQueue.pollFirst(RATING));
+        assertEquals(2, mAdQueue.size());
+        assertSame(textAd, mAdQueue.pollFirst());
+        assertSame(imageAd, mAdQueue.pollFirst());
+        assertNull(mAdQueue.pollFirst());
+    }
+
+    @Test
+    public void testAddFirst() throws Exception {
+        FlurryAdNative textAd = createAd(0);
+        FlurryAdNative imageAd = createAd(IMAGE);
+        FlurryAdNative requeuedImageAd = createAd(IMAGE);
+        mAdQueue.addLast(textAd);
+        mAdQueue.addLast(imageAd);
+
+        // A requeued ad goes ahead of older ads, in its own bucket and across buckets
+        mAdQueue.addFirst(requeuedImageAd);
+
+        assertSame(requeuedImageAd, mAdQueue.pollFirst());
+        assertSame(textAd, mAdQueue.pollFirst());
+        mAdQueue.addFirst(requeuedImageAd);
+        assertSame(requeuedImageAd, mAdQueue.pollFirst(IMAGE));
+        assertSame(imageAd, mAdQueue.pollFirst(IMAGE));
+    }
+
+    @Test
+    public void testIterator_remove() throws Exception {
+        FlurryAdNative textAd = createAd(0);
+        FlurryAdNative imageAd = createAd(IMAGE);
+        FlurryAdNative ratingAd = createAd(RATING);
+        mAdQueue.addLast(textAd);
+        mAdQueue.addLast(imageAd);
+        mAdQueue.addLast(ratingAd);
+
+        Iterator<FlurryAdNative> iterator = mAdQueue.iterator();
+        int count = 0;
+        while (iterator.hasNext()) {
+            if (iterator.next() == imageAd) {
+                iterator.remove();
+            }
+            count++;
+        }
+
+        assertEquals(3, count);
+        assertEquals(2, mAdQueue.size());
+        assertNull(mAdQueue.pollFirst(IMAGE));
+        assertSame(textAd, mAdQueue.pollFirst());
+        assertSame(ratingAd, mAdQueue.pollFirst());
+        assertTrue(mAdQueue.isEmpty());
+    }
+
+    /*
+     Mocks an ad with the optional assets of the given asset flags
+     */
+    private static FlurryAdNative createAd(int assetFlags) {
+        FlurryAdNative flurryAdNative = mock(FlurryAdNative.class);
+        if ((assetFlags & IMAGE) != 0) {
+            doReturn(mock(FlurryAdNativeAsset.class)).when(flurryAdNative).getAsset("secImage");
+        }
+        if ((assetFlags & RATING) != 0) {
+            FlurryAdNativeAsset ratingAsset = mock(FlurryAdNativeAsset.class);
+            doReturn("true").when(ratingAsset).getValue();
+            doReturn(ratingAsset).when(flurryAdNative).getAsset("showRating");
+        }
+        return flurryAdNative;
+    }
+}
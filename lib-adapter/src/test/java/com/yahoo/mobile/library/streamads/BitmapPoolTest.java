@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 Yahoo Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.mobile.library.streamads;
+
+import android.graphics.Bitmap;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class BitmapPoolTest extends TestCase {
+    @Test
+    public void testGet_bestFit() throws Exception {
+        BitmapPool bitmapPool = new BitmapPool(1000);
+        Bitmap largeBitmap = createBitmap(400);
+        Bitmap smallBitmap = createBitmap(100);
+        Bitmap mediumBitmap = createBitmap(200);
+        bitmapPool.put(largeBitmap);
+        bitmapPool.put(smallBitmap);
+        bitmapPool.put(mediumBitmap);
+
+        // The smallest bitmap that is large enough, not the oldest one
+        assertSame(mediumBitmap, bitmapPool.get(150));
+        assertSame(largeBitmap, bitmapPool.get(150));
+        assertNull(bitmapPool.get(150));
+        assertSame(smallBitmap, bitmapPool.get(100));
+    }
+
+    @Test
+    public void testPut_overMaxBytes() throws Exception {
+        BitmapPool bitmapPool = new BitmapPool(500);
+        Bitmap oldestBitmap = createBitmap(200);
+        Bitmap bitmap = createBitmap(250);
+        bitmapPool.put(oldestBitmap);
+        bitmapPool.put(bitmap);
+        // Larger than the whole pool, so it is not kept
+        bitmapPool.put(createBitmap(600));
+        assertSame(bitmap, bitmapPool.get(250));
+
+        bitmapPool.put(bitmap);
+        bitmapPool.put(createBitmap(200));
+        // The oldest bitmap was dropped to make room
+        assertFalse(bitmapPool.remove(oldestBitmap));
+        assertTrue(bitmapPool.remove(bitmap));
+    }
+
+    @Test
+    public void testPut_immutableBitmap() throws Exception {
+        BitmapPool bitmapPool = new BitmapPool(1000);
+        Bitmap bitmap = createBitmap(100);
+        doReturn(false).when(bitmap).isMutable();
+
+        bitmapPool.put(bitmap);
+        assertNull(bitmapPool.get(0));
+    }
+
+    static Bitmap createBitmap(int allocationByteCount) {
+        Bitmap bitmap = mock(Bitmap.class);
+        doReturn(true).when(bitmap).isMutable();
+        doReturn(allocationByteCount).when(bitmap).getAllocationByteCount();
+        return bitmap;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015 Yahoo Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.mobile.library.streamads;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import junit.framework.TestCase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowBitmapFactory;
+
+import java.io.File;
+
+/**
+ * Tests how ad images are sized down to the bounds of their views, and decoded into pooled
+ * bitmaps.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21,
+        shadows = CachingAdImageLoaderTest.ShadowPoolingBitmapFactory.class)
+public class CachingAdImageLoaderTest extends TestCase {
+    private static final float DELTA = 0.0001f;
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowPoolingBitmapFactory.sRejectsInBitmap = false;
+    }
+
+    @Test
+    public void testGetSampleSize() throws Exception {
+        // 1200x627 HQ image into a 320px wide view
+        assertEquals(2, CachingAdImageLoader.getSampleSize(1200, 627, 320, 167));
+        assertEquals(1, CachingAdImageLoader.getSampleSize(1200, 627, 1080, 564));
+        // Keeps covering the larger target dimension
+        assertEquals(1, CachingAdImageLoader.getSampleSize(1200, 627, 320, 627));
+        assertEquals(8, CachingAdImageLoader.getSampleSize(1200, 627, 100, 0));
+        assertEquals(1, CachingAdImageLoader.getSampleSize(1200, 627, 0, 0));
+        // Never scales up
+        assertEquals(1, CachingAdImageLoader.getSampleSize(82, 82, 200, 200));
+    }
+
+    @Test
+    public void testGetScale() throws Exception {
+        assertEquals(0.5f, CachingAdImageLoader.getScale(600, 314, 300, 157), DELTA);
+        // Covers both dimensions
+        assertEquals(0.5f, CachingAdImageLoader.getScale(600, 314, 300, 100), DELTA);
+        assertEquals(0.25f, CachingAdImageLoader.getScale(600, 314, 150, 0), DELTA);
+        assertEquals(1f, CachingAdImageLoader.getScale(600, 314, 0, 0), DELTA);
+        // Never scales up
+        assertEquals(1f, CachingAdImageLoader.getScale(82, 82, 200, 200), DELTA);
+    }
+
+    @Test
+    public void testDecodeBitmap_reusesPooledBitmap() throws Exception {
+        File file = File.createTempFile("ad", ".png");
+        file.deleteOnExit();
+        BitmapPool bitmapPool = new BitmapPool(1000000);
+        // Large enough for the 100x100 images decoded by Robolectric
+        Bitmap pooledBitmap = BitmapPoolTest.createBitmap(200 * 200 * BitmapPool.BYTES_PER_PIXEL);
+        bitmapPool.put(pooledBitmap);
+
+        assertSame(pooledBitmap, CachingAdImageLoader.decodeBitmap(file, 0, 0, bitmapPool));
+        assertNull(bitmapPool.get(0));
+
+        // Falls back to a new bitmap if the image cannot be decoded into the pooled one
+        ShadowPoolingBitmapFactory.sRejectsInBitmap = true;
+        bitmapPool.put(pooledBitmap);
+        Bitmap bitmap = CachingAdImageLoader.decodeBitmap(file, 0, 0, bitmapPool);
+        assertNotNull(bitmap);
+        assertNotSame(pooledBitmap, bitmap);
+    }
+
+    /**
+     * Decodes into <code>BitmapFactory.Options#inBitmap</code> like the platform does, which
+     * Robolectric ignores.
+     */
+    @Implements(BitmapFactory.class)
+    public static class ShadowPoolingBitmapFactory {
+        static boolean sRejectsInBitmap;
+
+        @Implementation
+        public static Bitmap decodeFile(String pathName, BitmapFactory.Options options) {
+            if (options != null && options.inBitmap != null) {
+                if (sRejectsInBitmap) {
+                    throw new IllegalArgumentException("Problem decoding into existing bitmap");
+                }
+                return options.inBitmap;
+            }
+            return ShadowBitmapFactory.decodeFile(pathName, options);
+        }
+    }
+}
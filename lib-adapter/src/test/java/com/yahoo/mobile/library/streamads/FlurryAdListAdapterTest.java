@@ -17,7 +17,13 @@
 package com.yahoo.mobile.library.streamads;
 
 import android.app.Activity;
+import android.view.View;
+import android.widget.AbsListView;
 import android.widget.ArrayAdapter;
+import android.widget.FrameLayout;
+
+import com.flurry.android.ads.FlurryAdNative;
+import com.flurry.android.ads.FlurryAdNativeAsset;
 
 import junit.framework.TestCase;
 
@@ -28,11 +34,14 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.robolectric.Robolectric;
 import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
 
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 
 import com.yahoo.mobile.library.streamads.positioning.AdapterAdPositioner;
 import com.yahoo.mobile.library.streamads.positioning.LinearIntervalAdPositioner;
@@ -46,6 +55,7 @@ public class FlurryAdListAdapterTest extends TestCase {
 
     private final static int WRAPPED_ADAPTER_SIZE = 50;
     private final static int MOCK_AD_COUNT = 10;
+    private final static int AD_POSITION = 3;
 
     @Mock
     FlurryNativeAdFetcher mMockNativeAdFetcher;
@@ -103,6 +113,8 @@ public class FlurryAdListAdapterTest extends TestCase {
         assertEquals(mWrappedAdapter.getCount(), mAdListAdapter.getCount());
 
         doReturn(MOCK_AD_COUNT).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        // Ad count is cached, so simulate the fetch event that would have invalidated it
+        mAdListAdapter.notifyDataSetChanged();
 
         assertEquals(WRAPPED_ADAPTER_SIZE + MOCK_AD_COUNT, mAdListAdapter.getCount());
     }
@@ -126,6 +138,31 @@ public class FlurryAdListAdapterTest extends TestCase {
         assertEquals(2, mAdListAdapter.getViewTypeCount());
     }
 
+    @Test
+    public void testGetViewTypeCount_layoutVariants() throws Exception {
+        Activity activity = Robolectric.buildActivity(Activity.class).create().get();
+        NativeAdViewBinder imageViewBinder = new NativeAdViewBinder.ViewBinderBuilder()
+                .setAdLayoutId(android.R.layout.activity_list_item)
+                .setHeadlineTextId(android.R.id.text1)
+                .setAdImageId(android.R.id.icon)
+                .build();
+        NativeAdViewBinder textViewBinder = new NativeAdViewBinder.ViewBinderBuilder()
+                .setAdLayoutId(android.R.layout.simple_list_item_1)
+                .setHeadlineTextId(android.R.id.text1)
+                .build();
+
+        FlurryAdListAdapter adListAdapter = FlurryAdListAdapter
+                .from(activity, mWrappedAdapter, imageViewBinder, "FAKE_AD_SPACE")
+                .addViewBinder(textViewBinder)
+                .buildWithMockAdFetcher(mMockNativeAdFetcher);
+
+        // One view type per ad layout variant, after the wrapped adapter's
+        assertEquals(3, adListAdapter.getViewTypeCount());
+        for (int i = 0; i < adListAdapter.getCount(); i++) {
+            assertEquals(0, adListAdapter.getItemViewType(i));
+        }
+    }
+
     @Test
     public void testGetOriginalPosition() throws Exception {
         for (int i = 0; i < mWrappedAdapter.getCount(); i++) {
@@ -133,6 +170,7 @@ public class FlurryAdListAdapterTest extends TestCase {
         }
 
         doReturn(MOCK_AD_COUNT).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        mAdListAdapter.notifyDataSetChanged();
 
         assertEquals(4, mAdListAdapter.getOriginalPosition(5));
         assertEquals(14, mAdListAdapter.getOriginalPosition(17));
@@ -146,15 +184,59 @@ public class FlurryAdListAdapterTest extends TestCase {
         assertEquals(0, mAdListAdapter.getNumberOfAds());
 
         doReturn(MOCK_AD_COUNT).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        mAdListAdapter.notifyDataSetChanged();
 
         assertEquals(MOCK_AD_COUNT, mAdListAdapter.getNumberOfAds());
 
         doReturn(MOCK_AD_COUNT * 20).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        mAdListAdapter.notifyDataSetChanged();
 
         int maxFittableAds = mAdPositioner.getMaxFittableAds(mWrappedAdapter.getCount());
         assertEquals(maxFittableAds, mAdListAdapter.getNumberOfAds());
     }
 
+    @Test
+    public void testWrapRecyclerListener_dropsScrappedAdRow() throws Exception {
+        AbsListView.RecyclerListener ownListener = mock(AbsListView.RecyclerListener.class);
+        AbsListView.RecyclerListener recyclerListener =
+                mAdListAdapter.wrapRecyclerListener(ownListener);
+        FlurryAdNative flurryAdNative = createAd();
+        View adView = getAdView(flurryAdNative);
+        assertTrue(mAdListAdapter.mAdViewHolders.containsKey(flurryAdNative));
+
+        recyclerListener.onMovedToScrapHeap(adView);
+
+        assertTrue(mAdListAdapter.mAdViewHolders.isEmpty());
+        verify(ownListener).onMovedToScrapHeap(adView);
+    }
+
+    @Test
+    public void testOnAdReleased_dropsAdRow() throws Exception {
+        FlurryAdNative flurryAdNative = createAd();
+        getAdView(flurryAdNative);
+
+        mAdListAdapter.onAdReleased(flurryAdNative);
+
+        assertTrue(mAdListAdapter.mAdViewHolders.isEmpty());
+    }
+
+    /**
+     * Places an ad at the first ad position and gets its row.
+     */
+    private View getAdView(FlurryAdNative flurryAdNative) {
+        doReturn(1).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        doReturn(flurryAdNative).when(mMockNativeAdFetcher).popLoadedAd();
+        mAdListAdapter.notifyDataSetChanged();
+        return mAdListAdapter.getView(AD_POSITION, null,
+                new FrameLayout(RuntimeEnvironment.application));
+    }
+
+    private static FlurryAdNative createAd() {
+        FlurryAdNative flurryAdNative = mock(FlurryAdNative.class);
+        doReturn(mock(FlurryAdNativeAsset.class)).when(flurryAdNative).getAsset(anyString());
+        return flurryAdNative;
+    }
+
     public void testSetRetryFailedAdPositions() throws Exception {
 
     }
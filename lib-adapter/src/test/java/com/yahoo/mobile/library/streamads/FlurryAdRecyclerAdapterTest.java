@@ -0,0 +1,391 @@
+/*
+ * Copyright 2015 Yahoo Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.mobile.library.streamads;
+
+import android.app.Activity;
+import android.content.Context;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.StaggeredGridLayoutManager;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import com.flurry.android.ads.FlurryAdNative;
+import com.flurry.android.ads.FlurryAdNativeAsset;
+
+import junit.framework.TestCase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class FlurryAdRecyclerAdapterTest extends TestCase {
+    private final static int WRAPPED_ADAPTER_SIZE = 20;
+    private final static int AD_POSITION = 3;
+
+    private Activity mActivity;
+    private FlurryAdRecyclerAdapter mAdRecyclerAdapter;
+    private TestWrappedAdapter mWrappedAdapter;
+    private NativeAdViewBinder mViewBinder;
+    private ViewGroup mParent;
+
+    @Mock
+    FlurryNativeAdFetcher mMockNativeAdFetcher;
+
+    @Before
+    public void setUp() throws Exception {
+        mActivity = Robolectric.buildActivity(Activity.class).create().get();
+        MockitoAnnotations.initMocks(this);
+
+        mWrappedAdapter = new TestWrappedAdapter(mActivity);
+        mParent = new FrameLayout(mActivity);
+
+        mViewBinder = new NativeAdViewBinder.ViewBinderBuilder()
+                .setAdLayoutId(android.R.layout.simple_list_item_2)
+                .setHeadlineTextId(android.R.id.text1)
+                .setDescriptionTextId(android.R.id.text2)
+                .build();
+
+        // Using the default positioner(3,3)
+        mAdRecyclerAdapter = FlurryAdRecyclerAdapter
+                .from(mActivity, mWrappedAdapter, mViewBinder, "FAKE_AD_SPACE")
+                .buildWithMockAdFetcher(mMockNativeAdFetcher);
+
+        // Mock default FlurryNativeAdFetcher behaviour
+        doNothing().when(mMockNativeAdFetcher).prefetchAds(anyString());
+    }
+
+    @Test
+    public void testOnBindViewHolder_filledPayload() throws Exception {
+        FlurryAdNative flurryAdNative = createAd();
+        // The placeholder view was bound without an ad
+        FlurryRecyclerAdViewHolder holder = createAdViewHolder(flurryAdNative);
+
+        mAdRecyclerAdapter.onBindViewHolder(holder, AD_POSITION,
+                payloads(FlurryBaseAdAdapter.PAYLOAD_AD_FILLED));
+
+        assertSame(flurryAdNative, holder.getNativeAdViewHolder().flurryAdNative);
+        verify(flurryAdNative).setTrackingView(holder.itemView);
+        assertTrue(mWrappedAdapter.mBoundPositions.isEmpty());
+    }
+
+    @Test
+    public void testOnBindViewHolder_expandedPayload() throws Exception {
+        FlurryAdNative flurryAdNative = createAd();
+        FlurryRecyclerAdViewHolder holder = createAdViewHolder(flurryAdNative);
+        mAdRecyclerAdapter.onBindViewHolder(holder, AD_POSITION);
+        clearInvocations(flurryAdNative);
+
+        mAdRecyclerAdapter.onBindViewHolder(holder, AD_POSITION,
+                payloads(FlurryBaseAdAdapter.PAYLOAD_AD_EXPANDED));
+
+        verify(flurryAdNative).setCollapsableTrackingView(holder.itemView, null);
+        assertNotRebuilt(flurryAdNative);
+    }
+
+    @Test
+    public void testOnBindViewHolder_collapsedPayload() throws Exception {
+        FlurryAdNative flurryAdNative = createAd();
+        FlurryRecyclerAdViewHolder holder = createAdViewHolder(flurryAdNative);
+        mAdRecyclerAdapter.onBindViewHolder(holder, AD_POSITION);
+        clearInvocations(flurryAdNative);
+
+        mAdRecyclerAdapter.onBindViewHolder(holder, AD_POSITION,
+                payloads(FlurryBaseAdAdapter.PAYLOAD_AD_COLLAPSED));
+
+        verify(flurryAdNative).setExpandableTrackingView(holder.itemView, null);
+        assertNotRebuilt(flurryAdNative);
+    }
+
+    @Test
+    public void testOnBindViewHolder_rotatedPayload() throws Exception {
+        FlurryAdNative rotatedAd = createAd();
+        FlurryAdNative nextAd = createAd();
+        FlurryRecyclerAdViewHolder holder = createAdViewHolder(nextAd);
+        // The view still shows the ad that was rotated out of the slot
+        FlurryNativeAdViewBuilder.buildAdIntoViews(rotatedAd, holder.getNativeAdViewHolder(),
+                null);
+
+        mAdRecyclerAdapter.onBindViewHolder(holder, AD_POSITION,
+                payloads(FlurryBaseAdAdapter.PAYLOAD_AD_ROTATED));
+
+        // The next ad is built into the same view
+        assertSame(nextAd, holder.getNativeAdViewHolder().flurryAdNative);
+        verify(nextAd).setTrackingView(holder.itemView);
+        assertTrue(mWrappedAdapter.mBoundPositions.isEmpty());
+    }
+
+    @Test
+    public void testOnBindViewHolder_ratingPayload() throws Exception {
+        FlurryAdNative flurryAdNative = createRatedAd();
+        FlurryRecyclerAdViewHolder holder = createAdViewHolder(flurryAdNative);
+        ImageView ratingView = new ImageView(mActivity);
+        holder.getNativeAdViewHolder().appStarRatingImageView = ratingView;
+        mAdRecyclerAdapter.onBindViewHolder(holder, AD_POSITION);
+        FlurryAdNativeAsset ratingAsset = flurryAdNative.getAsset("secHqRatingImg");
+        // Laid out after the row was built
+        ratingView.layout(0, 0, 100, 20);
+        clearInvocations(flurryAdNative, ratingAsset);
+
+        mAdRecyclerAdapter.onBindViewHolder(holder, AD_POSITION,
+                payloads(FlurryBaseAdAdapter.PAYLOAD_AD_RATING));
+
+        verify(flurryAdNative).getAsset("secHqRatingImg");
+        verify(ratingAsset).loadAssetIntoView(ratingView);
+        verify(flurryAdNative, never()).getAsset("headline");
+        verify(flurryAdNative, never()).setTrackingView(any(View.class));
+        assertTrue(mWrappedAdapter.mBoundPositions.isEmpty());
+    }
+
+    @Test
+    public void testOnBindViewHolder_notifiesPendingRating() throws Exception {
+        FlurryAdNative flurryAdNative = createRatedAd();
+        FlurryRecyclerAdViewHolder holder = createAdViewHolder(flurryAdNative);
+        // The rating view is not laid out yet
+        holder.getNativeAdViewHolder().appStarRatingImageView = new ImageView(mActivity);
+        final List<Object> payloads = new ArrayList<>();
+        mAdRecyclerAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onItemRangeChanged(int positionStart, int itemCount, Object payload) {
+                if (positionStart == AD_POSITION) {
+                    payloads.add(payload);
+                }
+            }
+        });
+
+        mAdRecyclerAdapter.onBindViewHolder(holder, AD_POSITION);
+        ShadowLooper.runUiThreadTasks();
+
+        assertEquals(payloads(FlurryBaseAdAdapter.PAYLOAD_AD_RATING), payloads);
+    }
+
+    @Test
+    public void testOnViewRecycled_clearsAdView() throws Exception {
+        FlurryAdNative flurryAdNative = createAd();
+        FlurryRecyclerAdViewHolder holder = createAdViewHolder(flurryAdNative);
+        mAdRecyclerAdapter.onBindViewHolder(holder, AD_POSITION);
+        FlurryAdViewHolder adViewHolder = holder.getNativeAdViewHolder();
+        adViewHolder.headlineTextView.setText("Headline");
+
+        mAdRecyclerAdapter.onViewRecycled(holder);
+
+        verify(flurryAdNative).removeTrackingView();
+        assertNull(adViewHolder.flurryAdNative);
+        assertEquals(0, adViewHolder.headlineTextView.getText().length());
+    }
+
+    @Test
+    public void testOnViewAttachedToWindow_tracksDetachedView() throws Exception {
+        FlurryAdNative flurryAdNative = createAd();
+        FlurryRecyclerAdViewHolder holder = createAdViewHolder(flurryAdNative);
+        mAdRecyclerAdapter.onBindViewHolder(holder, AD_POSITION);
+
+        mAdRecyclerAdapter.onViewDetachedFromWindow(holder);
+        verify(flurryAdNative).removeTrackingView();
+        clearInvocations(flurryAdNative);
+
+        mAdRecyclerAdapter.onViewAttachedToWindow(holder);
+
+        // Tracked again, but its images were kept, so the view is not rebuilt
+        verify(flurryAdNative).setTrackingView(holder.itemView);
+        verify(flurryAdNative, never()).getAsset(anyString());
+    }
+
+    @Test
+    public void testOnViewAttachedToWindow_rebuildsReleasedView() throws Exception {
+        FlurryAdNative flurryAdNative = createAd();
+        FlurryRecyclerAdViewHolder holder = createAdViewHolder(flurryAdNative);
+        mAdRecyclerAdapter.onBindViewHolder(holder, AD_POSITION);
+        mAdRecyclerAdapter.onViewDetachedFromWindow(holder);
+        // Released under memory pressure while detached
+        FlurryNativeAdViewBuilder.releaseAdImages(holder.getNativeAdViewHolder());
+        clearInvocations(flurryAdNative);
+
+        mAdRecyclerAdapter.onViewAttachedToWindow(holder);
+
+        verify(flurryAdNative, atLeastOnce()).getAsset(anyString());
+        verify(flurryAdNative).setTrackingView(holder.itemView);
+        assertFalse(holder.getNativeAdViewHolder().imagesReleased);
+    }
+
+    @Test
+    public void testOnCreateViewHolder_adFullSpan() throws Exception {
+        doReturn(1).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        doReturn(createAd()).when(mMockNativeAdFetcher).popLoadedAd();
+        int viewType = mAdRecyclerAdapter.getItemViewType(AD_POSITION);
+
+        RecyclerView.ViewHolder holder = mAdRecyclerAdapter.createViewHolder(
+                createStaggeredGrid(), viewType);
+
+        assertTrue(holder instanceof FlurryRecyclerAdViewHolder);
+        assertFullSpan(holder);
+    }
+
+    @Test
+    public void testOnCreateViewHolder_carouselFullSpan() throws Exception {
+        FlurryAdRecyclerAdapter carouselAdapter = FlurryAdRecyclerAdapter
+                .from(mActivity, mWrappedAdapter, mViewBinder, "FAKE_AD_SPACE")
+                .setAdCarousel(2, 100)
+                .buildWithMockAdFetcher(mMockNativeAdFetcher);
+        doReturn(2).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        doReturn(createAd()).when(mMockNativeAdFetcher).popLoadedAd();
+        int viewType = carouselAdapter.getItemViewType(AD_POSITION);
+
+        RecyclerView.ViewHolder holder = carouselAdapter.createViewHolder(
+                createStaggeredGrid(), viewType);
+
+        assertTrue(holder instanceof FlurryAdCarouselViewHolder);
+        assertFullSpan(holder);
+        assertEquals(100, holder.itemView.getLayoutParams().height);
+    }
+
+    @Test
+    public void testOnBindViewHolder_carouselReusesCardViews() throws Exception {
+        FlurryAdRecyclerAdapter carouselAdapter = FlurryAdRecyclerAdapter
+                .from(mActivity, mWrappedAdapter, mViewBinder, "FAKE_AD_SPACE")
+                .setAdCarousel(2, 100)
+                .buildWithMockAdFetcher(mMockNativeAdFetcher);
+        doReturn(1).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        doReturn(createAd()).when(mMockNativeAdFetcher).popLoadedAd();
+        int viewType = carouselAdapter.getItemViewType(AD_POSITION);
+        FlurryAdCarouselViewHolder holder = (FlurryAdCarouselViewHolder)
+                carouselAdapter.createViewHolder(mParent, viewType);
+        carouselAdapter.onBindViewHolder(holder, AD_POSITION);
+        layOut(holder.carouselView);
+        View cardView = holder.carouselView.getChildAt(0);
+        assertNotNull(cardView);
+
+        // Recycled while it was the only carousel with a card adapter, then rebound
+        carouselAdapter.onViewRecycled(holder);
+        carouselAdapter.onBindViewHolder(holder, AD_POSITION);
+        layOut(holder.carouselView);
+
+        // The card view went through the card pool instead of being inflated again
+        assertSame(cardView, holder.carouselView.getChildAt(0));
+    }
+
+    /**
+     * Places an ad at the first ad slot and creates a view holder for it, which is not bound yet.
+     */
+    private FlurryRecyclerAdViewHolder createAdViewHolder(FlurryAdNative flurryAdNative) {
+        doReturn(1).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        doReturn(flurryAdNative).when(mMockNativeAdFetcher).popLoadedAd();
+        int viewType = mAdRecyclerAdapter.getItemViewType(AD_POSITION);
+        doReturn(0).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        return (FlurryRecyclerAdViewHolder) mAdRecyclerAdapter.createViewHolder(mParent, viewType);
+    }
+
+    /**
+     * Checks that the ad view was neither rebuilt nor bound by the wrapped adapter.
+     */
+    private void assertNotRebuilt(FlurryAdNative flurryAdNative) {
+        verify(flurryAdNative, never()).getAsset(anyString());
+        verify(flurryAdNative, never()).setTrackingView(any(View.class));
+        assertTrue(mWrappedAdapter.mBoundPositions.isEmpty());
+    }
+
+    private static void layOut(View view) {
+        view.measure(View.MeasureSpec.makeMeasureSpec(400, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(100, View.MeasureSpec.EXACTLY));
+        view.layout(0, 0, 400, 100);
+    }
+
+    private RecyclerView createStaggeredGrid() {
+        RecyclerView recyclerView = new RecyclerView(mActivity);
+        recyclerView.setLayoutManager(
+                new StaggeredGridLayoutManager(2, StaggeredGridLayoutManager.VERTICAL));
+        return recyclerView;
+    }
+
+    private static void assertFullSpan(RecyclerView.ViewHolder holder) {
+        ViewGroup.LayoutParams layoutParams = holder.itemView.getLayoutParams();
+        assertTrue(layoutParams instanceof StaggeredGridLayoutManager.LayoutParams);
+        assertTrue(((StaggeredGridLayoutManager.LayoutParams) layoutParams).isFullSpan());
+    }
+
+    private static List<Object> payloads(Object payload) {
+        return Collections.singletonList(payload);
+    }
+
+    private static FlurryAdNative createAd() {
+        FlurryAdNative flurryAdNative = mock(FlurryAdNative.class);
+        doReturn(mock(FlurryAdNativeAsset.class)).when(flurryAdNative).getAsset(anyString());
+        return flurryAdNative;
+    }
+
+    /**
+     * Creates an ad that shows an app rating.
+     */
+    private static FlurryAdNative createRatedAd() {
+        FlurryAdNative flurryAdNative = createAd();
+        FlurryAdNativeAsset showRatingAsset = mock(FlurryAdNativeAsset.class);
+        doReturn("true").when(showRatingAsset).getValue();
+        doReturn(showRatingAsset).when(flurryAdNative).getAsset("showRating");
+        return flurryAdNative;
+    }
+
+    /**
+     * Wrapped adapter of text rows, which records the positions it binds.
+     */
+    private static class TestWrappedAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
+        final List<Integer> mBoundPositions = new ArrayList<>();
+        private final Context mContext;
+
+        TestWrappedAdapter(Context context) {
+            mContext = context;
+        }
+
+        @Override
+        public RecyclerView.ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            return new RecyclerView.ViewHolder(new TextView(mContext)) {};
+        }
+
+        @Override
+        public void onBindViewHolder(RecyclerView.ViewHolder holder, int position) {
+            mBoundPositions.add(position);
+        }
+
+        @Override
+        public int getItemCount() {
+            return WRAPPED_ADAPTER_SIZE;
+        }
+    }
+}
@@ -1,8 +1,13 @@
 package com.yahoo.mobile.library.streamads;
 
 import android.app.Activity;
+import android.app.Application;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.os.Bundle;
 
+import com.flurry.android.ads.FlurryAdNative;
+import com.flurry.android.ads.FlurryAdNativeListener;
 import com.yahoo.mobile.library.streamads.positioning.LinearIntervalAdPositioner;
 
 import junit.framework.TestCase;
@@ -10,44 +15,63 @@ import junit.framework.TestCase;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.robolectric.Robolectric;
 import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.util.ActivityController;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
-// TODO: Cannot mock FlurryNativeAdFetcher#popLoadedAd(), so testing is VERY limited
 @RunWith(RobolectricGradleTestRunner.class)
 @Config(constants = BuildConfig.class, sdk = 21)
 public class FlurryBaseAdAdapterTest extends TestCase {
 
     private final static int MOCK_AD_COUNT = 5;
     private final static int WRAPPED_ADAPTER_SIZE = 20;
+    private final static long RESERVATION_DEADLINE_MILLIS = 60000;
+    private final static long ROTATION_INTERVAL_MILLIS = 30000;
 
     private FlurryBaseAdAdapter mFlurryBaseAdAdapter;
+    private ActivityController<Activity> mActivityController;
+    private Activity mActivity;
 
     @Mock
     FlurryNativeAdFetcher mMockNativeAdFetcher;
     MockAdapterImpl mMockAdapter;
+    @Mock
+    MockRecyclerAdapter mMockRecyclerAdapter;
     /*
-     Cannot be mocked by Mockito because 'final' and cannot be mocked externally because of
-     Java 7 [0] and an issue in Robolectric [1].
-
-     See FlurryAdListAdapterTest#initMocks(Context).
-
-
-     [0] https://www.java.net/print/885714
-     [1] https://github.com/robolectric/robolectric-gradle-plugin/issues/144
+     FlurryAdNative is final, so it is mocked through the inline mock maker of mockito-inline.
      */
-    // FlurryAdNative mMockFlurryAdNative;
+    @Mock
+    FlurryAdNative mMockFlurryAdNative;
 
     @Before
     public void setUp() throws Exception {
-        Activity activity = Robolectric.buildActivity(Activity.class).create().get();
+        mActivityController = Robolectric.buildActivity(Activity.class).create();
+        Activity activity = mActivityController.get();
+        mActivity = activity;
         initMocks(activity);
 
         // Using the default configuration for the base ad adapter (positioner(3,3))
@@ -57,18 +81,23 @@ public class FlurryBaseAdAdapterTest extends TestCase {
 
         // Mock default FlurryNativeAdFetcher behaviour
         doNothing().when(mMockNativeAdFetcher).prefetchAds(anyString());
-        // doReturn(mMockFlurryAdNative).when(mMockNativeAdFetcher).popLoadedAd();
     }
 
     @SuppressWarnings("unused")
     private void initMocks(Context context) {
         MockitoAnnotations.initMocks(this);
         mMockAdapter = new MockAdapterImpl();
-        /*
-         TODO: Fails with java.lang.VerifyError when compiling. Option is to use
-         -XX:-UseSplitVerifier. See http://stackoverflow.com/q/15253173/779983
-         */
-        // mMockFlurryAdNative = new FlurryAdNative(context, "FAKE_AD_SPACE");
+    }
+
+    /**
+     * Creates a base adapter that notifies a RecyclerView adapter, which gets targeted
+     * notifications.
+     */
+    private FlurryBaseAdAdapter createRecyclerBaseAdAdapter() {
+        FlurryBaseAdAdapter baseAdAdapter = new FlurryBaseAdAdapter(mMockRecyclerAdapter);
+        baseAdAdapter.initAdFetcher(mActivity);
+        baseAdAdapter.injectMockAdFetcher(mMockNativeAdFetcher);
+        return baseAdAdapter;
     }
 
     @Test
@@ -77,6 +106,8 @@ public class FlurryBaseAdAdapterTest extends TestCase {
         assertEquals(15, mFlurryBaseAdAdapter.getOriginalPosition(15, WRAPPED_ADAPTER_SIZE));
 
         doReturn(MOCK_AD_COUNT).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        // Ad count is cached, so simulate the fetch event that would have invalidated it
+        mFlurryBaseAdAdapter.invalidateAdCount();
 
         assertEquals(4, mFlurryBaseAdAdapter.getOriginalPosition(5, WRAPPED_ADAPTER_SIZE));
         assertEquals(11, mFlurryBaseAdAdapter.getOriginalPosition(15, WRAPPED_ADAPTER_SIZE));
@@ -87,10 +118,24 @@ public class FlurryBaseAdAdapterTest extends TestCase {
         assertEquals(0, mFlurryBaseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE));
 
         doReturn(MOCK_AD_COUNT).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        mFlurryBaseAdAdapter.invalidateAdCount();
 
         assertEquals(MOCK_AD_COUNT, mFlurryBaseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE));
     }
 
+    @Test
+    public void testGetNumberOfAds_cached() throws Exception {
+        assertEquals(0, mFlurryBaseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE));
+
+        doReturn(MOCK_AD_COUNT).when(mMockNativeAdFetcher).getQueuedAdsCount();
+
+        // No invalidating event, so the cached value is returned
+        assertEquals(0, mFlurryBaseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE));
+        // Size change of the wrapped adapter always recomputes
+        assertEquals(MOCK_AD_COUNT,
+                mFlurryBaseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE + 1));
+    }
+
     @Test
     public void testSetPositioner() throws Exception {
         mFlurryBaseAdAdapter.setPositioner(new LinearIntervalAdPositioner(3, 20),
@@ -106,9 +151,543 @@ public class FlurryBaseAdAdapterTest extends TestCase {
         assertEquals(MOCK_AD_COUNT, mFlurryBaseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE));
     }
 
+    @Test
+    public void testLifecycle_stopPausesFetcher() throws Exception {
+        mActivityController.start().resume();
+        verify(mMockNativeAdFetcher, never()).pause();
+
+        mActivityController.pause().stop();
+        verify(mMockNativeAdFetcher).pause();
+
+        // Resumed on every start, the first one included
+        mActivityController.start();
+        verify(mMockNativeAdFetcher, times(2)).resume();
+    }
+
+    @Test
+    public void testLifecycleController_unregisteredOnActivityDestroy() throws Exception {
+        Activity activity = mock(Activity.class);
+        Application application = mock(Application.class);
+        doReturn(application).when(activity).getApplication();
+        AdLifecycleController.LifecycleListener listener =
+                mock(AdLifecycleController.LifecycleListener.class);
+        AdLifecycleController lifecycleController = new AdLifecycleController(activity, listener);
+        lifecycleController.register();
+        lifecycleController.register();
+        verify(application, times(1)).registerActivityLifecycleCallbacks(lifecycleController);
+
+        // Other activities are ignored
+        lifecycleController.onActivityDestroyed(mActivity);
+        verify(application, never()).unregisterActivityLifecycleCallbacks(lifecycleController);
+
+        lifecycleController.onActivityDestroyed(activity);
+        verify(application).unregisterActivityLifecycleCallbacks(lifecycleController);
+        verify(listener).onDestroyed(false);
+    }
+
+    @Test
+    public void testReleaseDistantAds_unimpressedAdRequeued() throws Exception {
+        doReturn(1).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        when(mMockNativeAdFetcher.popLoadedAd()).thenReturn(mMockFlurryAdNative);
+        assertTrue(mFlurryBaseAdAdapter.isAdAvailable(3, WRAPPED_ADAPTER_SIZE));
+        mFlurryBaseAdAdapter.onViewportChanged(0, 4);
+
+        // Two screens past the ad, it goes back to the queue, which counts it instead
+        mFlurryBaseAdAdapter.onViewportChanged(15, 19);
+
+        verify(mMockFlurryAdNative).removeTrackingView();
+        verify(mMockNativeAdFetcher).requeueAd(mMockFlurryAdNative);
+        verify(mMockFlurryAdNative, never()).destroy();
+        assertEquals(1, mFlurryBaseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE));
+        // The slot pops the ad again when it is bound next
+        assertSame(mMockFlurryAdNative, mFlurryBaseAdAdapter.getAdForPosition(3));
+        verify(mMockNativeAdFetcher, times(2)).popLoadedAd();
+    }
+
+    @Test
+    public void testReleaseDistantAds_impressedAdDestroyed() throws Exception {
+        FlurryAdNative residentAd = mock(FlurryAdNative.class);
+        doReturn(2).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        when(mMockNativeAdFetcher.popLoadedAd()).thenReturn(mMockFlurryAdNative, residentAd);
+        assertTrue(mFlurryBaseAdAdapter.isAdAvailable(3, WRAPPED_ADAPTER_SIZE));
+        assertTrue(mFlurryBaseAdAdapter.isAdAvailable(7, WRAPPED_ADAPTER_SIZE));
+        doReturn(0).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        mFlurryBaseAdAdapter.invalidateAdCount();
+        FlurryAdNativeListener impressionListener = getImpressionListener();
+        getImpressionListener().onImpressionLogged(mMockFlurryAdNative);
+        impressionListener.onImpressionLogged(residentAd);
+
+        // A one row screen keeps ads within three rows of it
+        mFlurryBaseAdAdapter.onViewportChanged(10, 10);
+
+        verify(mMockFlurryAdNative).removeTrackingView();
+        verify(mMockFlurryAdNative).destroy();
+        verify(residentAd, never()).destroy();
+        verify(mMockNativeAdFetcher, never()).requeueAd(any(FlurryAdNative.class));
+        // Both slots stay in the adapter, only the distant one lost its ad
+        assertEquals(2, mFlurryBaseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE));
+        assertSame(residentAd, mFlurryBaseAdAdapter.getAdForPosition(7));
+    }
+
+    /**
+     * Gets the listener that the adapter created last added to the mock fetcher, which marks its
+     * placements as impressed.
+     */
+    private FlurryAdNativeListener getImpressionListener() {
+        ArgumentCaptor<FlurryAdNativeListener> adListenerCaptor =
+                ArgumentCaptor.forClass(FlurryAdNativeListener.class);
+        verify(mMockNativeAdFetcher, atLeastOnce()).addFlurryAdNativeListener(
+                adListenerCaptor.capture());
+        return adListenerCaptor.getValue();
+    }
+
+    @Test
+    public void testOnTrimMemory() throws Exception {
+        doReturn(MOCK_AD_COUNT - 1).when(mMockNativeAdFetcher).trimQueue(1);
+
+        mFlurryBaseAdAdapter.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+
+        verify(mMockNativeAdFetcher).setPrefetchTarget(1);
+        assertEquals(MOCK_AD_COUNT - 1, mFlurryBaseAdAdapter.getReclaimedAdCount());
+    }
+
+    @Test
+    public void testOnTrimMemory_uiHidden() throws Exception {
+        mFlurryBaseAdAdapter.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+
+        // Going to the background is not memory pressure, so the queue is kept
+        verify(mMockNativeAdFetcher, never()).trimQueue(anyInt());
+        assertEquals(0, mFlurryBaseAdAdapter.getReclaimedAdCount());
+    }
+
+    @Test
+    public void testMemoryCallbacks_unregisteredOnActivityDestroy() throws Exception {
+        RuntimeEnvironment.application.onTrimMemory(
+                ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        verify(mMockNativeAdFetcher).setPrefetchTarget(1);
+
+        // Not finishing, so ads are kept, but the application context must let go of the adapter
+        mActivityController.destroy();
+        RuntimeEnvironment.application.onTrimMemory(
+                ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+
+        verify(mMockNativeAdFetcher, times(1)).setPrefetchTarget(1);
+        verify(mMockNativeAdFetcher, times(1)).trimQueue(anyInt());
+    }
+
+    @Test
+    public void testRefreshAds_afterDestroyAds() throws Exception {
+        doReturn(MOCK_AD_COUNT).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        mFlurryBaseAdAdapter.destroyAds();
+
+        mFlurryBaseAdAdapter.refreshAds();
+
+        // Destroying is final, so no ads are fetched or shown again
+        verify(mMockNativeAdFetcher, never()).prefetchAds(anyString());
+        assertEquals(0, mFlurryBaseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE));
+        RuntimeEnvironment.application.onTrimMemory(
+                ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        verify(mMockNativeAdFetcher, never()).setPrefetchTarget(anyInt());
+    }
+
+    @Test
+    public void testOnViewportChanged_requestsUpcomingAd() throws Exception {
+        mFlurryBaseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE);
+
+        // The first ad slot (3) is next when scrolling down
+        mFlurryBaseAdAdapter.onViewportChanged(0, 2);
+
+        verify(mMockNativeAdFetcher).requestUrgentAd();
+    }
+
+    @Test
+    public void testOnViewportChanged_queuedAd() throws Exception {
+        mFlurryBaseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE);
+        doReturn(1).when(mMockNativeAdFetcher).getQueuedAdsCount();
+
+        mFlurryBaseAdAdapter.onViewportChanged(0, 2);
+
+        verify(mMockNativeAdFetcher, never()).requestUrgentAd();
+    }
+
+    @Test
+    public void testSaveRestoreExpandStates() throws Exception {
+        Bundle savedState = new Bundle();
+        mFlurryBaseAdAdapter.onSaveInstanceState(savedState);
+        assertEquals(0, savedState.getIntArray(
+                FlurryBaseAdAdapter.STATE_EXPANDED_AD_POSITIONS).length);
+
+        // States restored for ads not placed yet are saved again with the next state
+        Bundle restoredState = new Bundle();
+        restoredState.putIntArray(FlurryBaseAdAdapter.STATE_EXPANDED_AD_POSITIONS,
+                new int[] {3, 11});
+        mFlurryBaseAdAdapter.onRestoreInstanceState(restoredState);
+
+        Bundle outState = new Bundle();
+        mFlurryBaseAdAdapter.onSaveInstanceState(outState);
+        int[] expandedPositions = outState.getIntArray(
+                FlurryBaseAdAdapter.STATE_EXPANDED_AD_POSITIONS);
+        assertEquals(2, expandedPositions.length);
+        assertEquals(3, expandedPositions[0]);
+        assertEquals(11, expandedPositions[1]);
+        assertEquals(0, outState.getIntArray(
+                FlurryBaseAdAdapter.STATE_COLLAPSED_AD_POSITIONS).length);
+    }
+
+    @Test
+    public void testIsAdExpanded_placedAd() throws Exception {
+        doReturn(1).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        doReturn(mMockFlurryAdNative).when(mMockNativeAdFetcher).popLoadedAd();
+        assertTrue(mFlurryBaseAdAdapter.isAdAvailable(3, WRAPPED_ADAPTER_SIZE));
+        doReturn(0).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        assertFalse(mFlurryBaseAdAdapter.isAdExpanded(mMockFlurryAdNative));
+
+        getImpressionListener().onExpanded(mMockFlurryAdNative);
+        assertTrue(mFlurryBaseAdAdapter.isAdExpanded(mMockFlurryAdNative));
+
+        // A reclaimed ad no longer has the state of its former placement
+        mFlurryBaseAdAdapter.onViewportChanged(15, 19);
+        verify(mMockNativeAdFetcher).requeueAd(mMockFlurryAdNative);
+        assertFalse(mFlurryBaseAdAdapter.isAdExpanded(mMockFlurryAdNative));
+    }
+
+    @Test
+    public void testIsAdPlaced_carouselAds() throws Exception {
+        mFlurryBaseAdAdapter.setCarouselSize(2);
+        FlurryAdNative carouselAd = mock(FlurryAdNative.class);
+        FlurryAdNative replacementAd = mock(FlurryAdNative.class);
+        doReturn(1).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        when(mMockNativeAdFetcher.popLoadedAd()).thenReturn(mMockFlurryAdNative, replacementAd);
+        doReturn(Collections.singletonList(carouselAd))
+                .when(mMockNativeAdFetcher).popLoadedAds(1);
+        assertTrue(mFlurryBaseAdAdapter.isAdAvailable(3, WRAPPED_ADAPTER_SIZE));
+        assertTrue(mFlurryBaseAdAdapter.isAdPlaced(mMockFlurryAdNative));
+        assertTrue(mFlurryBaseAdAdapter.isAdPlaced(carouselAd));
+
+        // The rest of an expired carousel is destroyed with it
+        doReturn(Collections.emptyList()).when(mMockNativeAdFetcher).popLoadedAds(1);
+        doReturn(true).when(mMockFlurryAdNative).isExpired();
+        assertTrue(mFlurryBaseAdAdapter.isAdAvailable(3, WRAPPED_ADAPTER_SIZE));
+
+        verify(carouselAd).destroy();
+        assertFalse(mFlurryBaseAdAdapter.isAdPlaced(mMockFlurryAdNative));
+        assertFalse(mFlurryBaseAdAdapter.isAdPlaced(carouselAd));
+        assertTrue(mFlurryBaseAdAdapter.isAdPlaced(replacementAd));
+    }
+
+    @Test
+    public void testIsAdAvailable_expiredAdSwappedInPlace() throws Exception {
+        FlurryBaseAdAdapter baseAdAdapter = createRecyclerBaseAdAdapter();
+        FlurryAdNative replacementAd = mock(FlurryAdNative.class);
+        doReturn(1).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        when(mMockNativeAdFetcher.popLoadedAd()).thenReturn(mMockFlurryAdNative, replacementAd);
+        assertTrue(baseAdAdapter.isAdAvailable(3, WRAPPED_ADAPTER_SIZE));
+
+        doReturn(true).when(mMockFlurryAdNative).isExpired();
+        ShadowLooper.pauseMainLooper();
+        assertTrue(baseAdAdapter.isAdAvailable(3, WRAPPED_ADAPTER_SIZE));
+        // Nothing is notified during the layout pass
+        verify(mMockRecyclerAdapter, never()).notifyItemChanged(anyInt(), any());
+
+        ShadowLooper.runUiThreadTasks();
+
+        InOrder inOrder = inOrder(mMockFlurryAdNative);
+        inOrder.verify(mMockFlurryAdNative).removeTrackingView();
+        inOrder.verify(mMockFlurryAdNative).destroy();
+        verify(mMockRecyclerAdapter).notifyItemChanged(3, null);
+        verify(mMockRecyclerAdapter, never()).notifyDataSetChanged();
+        assertSame(replacementAd, baseAdAdapter.getAdForPosition(3));
+    }
+
+    @Test
+    public void testIsAdAvailable_expiredAdSwappedForQueuedSlot() throws Exception {
+        FlurryBaseAdAdapter baseAdAdapter = createRecyclerBaseAdAdapter();
+        FlurryAdNative replacementAd = mock(FlurryAdNative.class);
+        doReturn(2).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        when(mMockNativeAdFetcher.popLoadedAd()).thenReturn(mMockFlurryAdNative, replacementAd);
+        assertTrue(baseAdAdapter.isAdAvailable(3, WRAPPED_ADAPTER_SIZE));
+        doReturn(1).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        // The placed ad and the queued slot at 7
+        assertEquals(2, baseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE));
+
+        doReturn(true).when(mMockFlurryAdNative).isExpired();
+        // The replacement is the last queued ad
+        doReturn(0).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        ShadowLooper.pauseMainLooper();
+        assertTrue(baseAdAdapter.isAdAvailable(3, WRAPPED_ADAPTER_SIZE));
+        // The item count stays the same during the layout pass
+        assertEquals(2, baseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE));
+        assertTrue(baseAdAdapter.isAdAvailable(7, WRAPPED_ADAPTER_SIZE));
+        verify(mMockRecyclerAdapter, never()).notifyItemRemoved(anyInt());
+
+        ShadowLooper.runUiThreadTasks();
+
+        verify(mMockRecyclerAdapter).notifyItemChanged(3, null);
+        verify(mMockRecyclerAdapter).notifyItemRemoved(7);
+        verify(mMockRecyclerAdapter, never()).notifyDataSetChanged();
+        assertEquals(1, baseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE));
+        assertSame(replacementAd, baseAdAdapter.getAdForPosition(3));
+    }
+
+    @Test
+    public void testIsAdAvailable_expiredAdCollapsed() throws Exception {
+        FlurryBaseAdAdapter baseAdAdapter = createRecyclerBaseAdAdapter();
+        doReturn(1).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        when(mMockNativeAdFetcher.popLoadedAd()).thenReturn(mMockFlurryAdNative, null);
+        assertTrue(baseAdAdapter.isAdAvailable(3, WRAPPED_ADAPTER_SIZE));
+
+        doReturn(0).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        doReturn(true).when(mMockFlurryAdNative).isExpired();
+        ShadowLooper.pauseMainLooper();
+        // The slot stays until its removal is notified
+        assertTrue(baseAdAdapter.isAdAvailable(3, WRAPPED_ADAPTER_SIZE));
+        assertEquals(1, baseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE));
+
+        // Items inserted above before the removal runs move the slot down
+        baseAdAdapter.onWrappedItemRangeInserted(0, 2, WRAPPED_ADAPTER_SIZE + 2);
+        ShadowLooper.runUiThreadTasks();
+
+        verify(mMockFlurryAdNative).destroy();
+        verify(mMockRecyclerAdapter).notifyItemRemoved(5);
+        verify(mMockRecyclerAdapter, never()).notifyItemRemoved(3);
+        verify(mMockRecyclerAdapter, never()).notifyDataSetChanged();
+        assertEquals(0, baseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE + 2));
+    }
+
+    @Test
+    public void testRotation_queuedSlotRemoved() throws Exception {
+        FlurryBaseAdAdapter baseAdAdapter = createRecyclerBaseAdAdapter();
+        baseAdAdapter.setRotationInterval(ROTATION_INTERVAL_MILLIS);
+        FlurryAdNative replacementAd = mock(FlurryAdNative.class);
+        doReturn(2).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        when(mMockNativeAdFetcher.popLoadedAd()).thenReturn(mMockFlurryAdNative, replacementAd);
+        assertTrue(baseAdAdapter.isAdAvailable(3, WRAPPED_ADAPTER_SIZE));
+        doReturn(1).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        baseAdAdapter.invalidateAdCount();
+        // The placed ad and the queued slot at 7
+        assertEquals(2, baseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE));
+
+        ShadowLooper.pauseMainLooper();
+        getImpressionListener().onImpressionLogged(mMockFlurryAdNative);
+        doReturn(0).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        ShadowLooper.idleMainLooper(ROTATION_INTERVAL_MILLIS);
+        ShadowLooper.runUiThreadTasks();
+
+        // Only the queued slot goes away, and the rotated slot keeps its view
+        verify(mMockFlurryAdNative).destroy();
+        verify(mMockRecyclerAdapter).notifyItemRemoved(7);
+        verify(mMockRecyclerAdapter).notifyItemChanged(3, FlurryBaseAdAdapter.PAYLOAD_AD_ROTATED);
+        verify(mMockRecyclerAdapter, never()).notifyDataSetChanged();
+        assertEquals(1, baseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE));
+        assertSame(replacementAd, baseAdAdapter.getAdForPosition(3));
+    }
+
+    @Test
+    public void testReleaseDistantAds_placeholderKept() throws Exception {
+        FlurryBaseAdAdapter baseAdAdapter = createRecyclerBaseAdAdapter();
+        doReturn(1).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        when(mMockNativeAdFetcher.popLoadedAd()).thenReturn(mMockFlurryAdNative, null);
+        reservePlaceholder(baseAdAdapter);
+        assertSame(mMockFlurryAdNative, baseAdAdapter.getAdForPosition(3));
+        doReturn(0).when(mMockNativeAdFetcher).getQueuedAdsCount();
+
+        // No more slots are reserved, so that only the released slot is checked
+        ShadowLooper.pauseMainLooper();
+        baseAdAdapter.onViewportChanged(15, 19);
+
+        verify(mMockFlurryAdNative).removeTrackingView();
+        verify(mMockNativeAdFetcher).requeueAd(mMockFlurryAdNative);
+        verify(mMockFlurryAdNative, never()).destroy();
+        // Slots only go away when notified, so the slot stays as a placeholder
+        verify(mMockRecyclerAdapter, never()).notifyItemRemoved(anyInt());
+        assertEquals(1, baseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE));
+        assertTrue(baseAdAdapter.canShowAd(3, WRAPPED_ADAPTER_SIZE));
+    }
+
+    @Test
+    public void testReservation_placeholderReserved() throws Exception {
+        FlurryBaseAdAdapter baseAdAdapter = createRecyclerBaseAdAdapter();
+        reservePlaceholder(baseAdAdapter);
+
+        verify(mMockRecyclerAdapter).notifyItemRangeInserted(3, 1);
+        verify(mMockNativeAdFetcher, atLeastOnce()).requestUrgentAd();
+        assertEquals(1, baseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE));
+        assertTrue(baseAdAdapter.canShowAd(3, WRAPPED_ADAPTER_SIZE));
+        assertNull(baseAdAdapter.getAdForPosition(3));
+    }
+
+    @Test
+    public void testReservation_fetchedAdFillsPlaceholder() throws Exception {
+        FlurryBaseAdAdapter baseAdAdapter = createRecyclerBaseAdAdapter();
+        FlurryNativeAdFetcher.FetchListener fetchListener =
+                mock(FlurryNativeAdFetcher.FetchListener.class);
+        baseAdAdapter.setFetchListener(fetchListener);
+        ArgumentCaptor<FlurryNativeAdFetcher.FetchListener> fetchListenerCaptor =
+                ArgumentCaptor.forClass(FlurryNativeAdFetcher.FetchListener.class);
+        verify(mMockNativeAdFetcher).setFetchListener(fetchListenerCaptor.capture());
+        reservePlaceholder(baseAdAdapter);
+
+        doReturn(1).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        when(mMockNativeAdFetcher.popLoadedAd()).thenReturn(mMockFlurryAdNative);
+        ShadowLooper.pauseMainLooper();
+        fetchListenerCaptor.getValue().onAdFetched();
+        ShadowLooper.runUiThreadTasks();
+
+        // The oldest placeholder is rebound in place, and the number of slots stays the same
+        verify(mMockRecyclerAdapter).notifyItemChanged(3, FlurryBaseAdAdapter.PAYLOAD_AD_FILLED);
+        verify(mMockRecyclerAdapter, never()).notifyDataSetChanged();
+        verify(fetchListener, never()).onAdFetched();
+        assertEquals(1, baseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE));
+        assertSame(mMockFlurryAdNative, baseAdAdapter.getAdForPosition(3));
+    }
+
+    @Test
+    public void testReservation_placeholderCollapsesAtDeadline() throws Exception {
+        FlurryBaseAdAdapter baseAdAdapter = createRecyclerBaseAdAdapter();
+        reservePlaceholder(baseAdAdapter);
+
+        ShadowLooper.idleMainLooper(RESERVATION_DEADLINE_MILLIS - 1);
+        verify(mMockRecyclerAdapter, never()).notifyItemRemoved(anyInt());
+        assertEquals(1, baseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE));
+
+        ShadowLooper.idleMainLooper(1);
+        verify(mMockRecyclerAdapter).notifyItemRemoved(3);
+        assertEquals(0, baseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE));
+    }
+
+    /**
+     * Reserves a placeholder at the first ad slot (3), while the queue is empty.
+     */
+    private void reservePlaceholder(FlurryBaseAdAdapter baseAdAdapter) {
+        baseAdAdapter.setReservationMode(RESERVATION_DEADLINE_MILLIS);
+        baseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE);
+        // The viewport plus a screen ahead (0-5) holds the first ad slot only
+        baseAdAdapter.onViewportChanged(0, 2);
+    }
+
+    @Test
+    public void testOnWrappedDataSetChanged_itemsInsertedAbove() throws Exception {
+        reserveAnchoredPlaceholders();
+
+        mMockAdapter.mItemIds.add(0, 100L);
+        mMockAdapter.mItemIds.add(0, 101L);
+        mFlurryBaseAdAdapter.onWrappedDataSetChanged(mMockAdapter.mItemIds.size());
+
+        assertAdFollows(5, 2);
+        assertAdFollows(9, 5);
+        assertAdFollows(13, 8);
+    }
+
+    @Test
+    public void testOnWrappedDataSetChanged_anchorsInPlace() throws Exception {
+        reserveAnchoredPlaceholders();
+
+        mMockAdapter.mItemIds.add(100L);
+        mMockAdapter.mItemIds.add(101L);
+        mMockAdapter.mItemIdLookups = 0;
+        mFlurryBaseAdAdapter.onWrappedDataSetChanged(mMockAdapter.mItemIds.size());
+
+        // Only the anchors are looked up, at their predicted positions
+        assertEquals(3, mMockAdapter.mItemIdLookups);
+        assertAdFollows(3, 2);
+        assertAdFollows(7, 5);
+        assertAdFollows(11, 8);
+    }
+
+    @Test
+    public void testOnWrappedDataSetChanged_anchorMoved() throws Exception {
+        reserveAnchoredPlaceholders();
+
+        // The item that the second ad follows moves to the end, past the third ad's item
+        mMockAdapter.mItemIds.remove(Long.valueOf(5));
+        mMockAdapter.mItemIds.add(5L);
+        mFlurryBaseAdAdapter.onWrappedDataSetChanged(mMockAdapter.mItemIds.size());
+
+        assertAdFollows(3, 2);
+        assertAdFollows(9, 8);
+        assertAdFollows(22, 5);
+    }
+
+    @Test
+    public void testOnWrappedDataSetChanged_anchorRemoved() throws Exception {
+        reserveAnchoredPlaceholders();
+
+        mMockAdapter.mItemIds.remove(Long.valueOf(5));
+        mFlurryBaseAdAdapter.onWrappedDataSetChanged(mMockAdapter.mItemIds.size());
+
+        // The second ad is dropped and the third takes its slot
+        assertAdFollows(3, 2);
+        assertAdFollows(9, 8);
+        assertEquals(2, mFlurryBaseAdAdapter.getNumberOfAds(mMockAdapter.mItemIds.size()));
+    }
+
+    @Test
+    public void testOnWrappedItemMoved() throws Exception {
+        FlurryBaseAdAdapter baseAdAdapter = createRecyclerBaseAdAdapter();
+        doReturn(MOCK_AD_COUNT).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        assertEquals(MOCK_AD_COUNT, baseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE));
+
+        // The first item moves past the first ad, which stays after the same layout slot
+        baseAdAdapter.onWrappedItemMoved(0, 5, WRAPPED_ADAPTER_SIZE);
+
+        verify(mMockRecyclerAdapter).notifyItemMoved(0, 7);
+        verify(mMockRecyclerAdapter, never()).notifyDataSetChanged();
+        assertEquals(MOCK_AD_COUNT, baseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE));
+        // The ads at 2 and 6 are skipped by the original positions
+        assertEquals(2, baseAdAdapter.getOriginalPosition(3, WRAPPED_ADAPTER_SIZE));
+        assertEquals(5, baseAdAdapter.getOriginalPosition(7, WRAPPED_ADAPTER_SIZE));
+        assertEquals(6, baseAdAdapter.getOriginalPosition(8, WRAPPED_ADAPTER_SIZE));
+    }
+
+    @Test
+    public void testOnWrappedItemRangeMoved() throws Exception {
+        FlurryBaseAdAdapter baseAdAdapter = createRecyclerBaseAdAdapter();
+        doReturn(MOCK_AD_COUNT).when(mMockNativeAdFetcher).getQueuedAdsCount();
+        assertEquals(MOCK_AD_COUNT, baseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE));
+
+        // The first two items move past the first ad
+        baseAdAdapter.onWrappedItemRangeMoved(0, 5, 2, WRAPPED_ADAPTER_SIZE);
+
+        verify(mMockRecyclerAdapter, times(2)).notifyItemMoved(anyInt(), anyInt());
+        verify(mMockRecyclerAdapter, never()).notifyDataSetChanged();
+        assertEquals(MOCK_AD_COUNT, baseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE));
+    }
+
+    /**
+     * Reserves placeholders at the ad slots 3, 7 and 11, anchored to the items with IDs 2, 5 and 8.
+     */
+    private void reserveAnchoredPlaceholders() {
+        for (long id = 0; id < WRAPPED_ADAPTER_SIZE; id++) {
+            mMockAdapter.mItemIds.add(id);
+        }
+        mFlurryBaseAdAdapter.setReservationMode(RESERVATION_DEADLINE_MILLIS);
+        mFlurryBaseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE);
+        mFlurryBaseAdAdapter.onViewportChanged(0, 6);
+        assertEquals(3, mFlurryBaseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE));
+    }
+
+    private void assertAdFollows(int adPosition, long anchorId) {
+        int internalAdapterSize = mMockAdapter.mItemIds.size();
+        assertTrue(mFlurryBaseAdAdapter.canShowAd(adPosition, internalAdapterSize));
+        assertFalse(mFlurryBaseAdAdapter.canShowAd(adPosition - 1, internalAdapterSize));
+        int anchorPosition = mFlurryBaseAdAdapter.getOriginalPosition(adPosition - 1,
+                internalAdapterSize);
+        assertEquals(anchorId, (long) mMockAdapter.mItemIds.get(anchorPosition));
+    }
+
+    interface MockRecyclerAdapter extends NativeAdAdapter,
+            FlurryBaseAdAdapter.RecyclerAdapterDataListener {
+    }
+
     private final static class MockAdapterImpl implements NativeAdAdapter,
             FlurryBaseAdAdapter.ListAdapterDataListener {
 
+        /**
+         * Stable IDs of the wrapped items, if any.
+         */
+        final List<Long> mItemIds = new ArrayList<>();
+        int mItemIdLookups;
+
         @Override
         public void notifyDataSetChanged() { }
 
@@ -129,5 +708,17 @@ public class FlurryBaseAdAdapterTest extends TestCase {
 
         @Override
         public void setRetryFailedAdPositions(boolean retryFailedAdPositions) { }
+
+        @Override
+        public boolean hasStableWrappedIds() { return !mItemIds.isEmpty(); }
+
+        @Override
+        public void onAdReleased(FlurryAdNative flurryAdNative) { }
+
+        @Override
+        public long getWrappedItemId(int originalPosition) {
+            mItemIdLookups++;
+            return mItemIds.get(originalPosition);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2015 Yahoo Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.mobile.library.streamads;
+
+import android.app.Activity;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+
+import com.flurry.android.ads.FlurryAdErrorType;
+import com.flurry.android.ads.FlurryAdNative;
+import com.flurry.android.ads.FlurryAdNativeListener;
+
+import junit.framework.TestCase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.verify;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class FlurryNativeAdFetcherTest extends TestCase {
+    private final static String AD_SPACE_NAME = "FAKE_AD_SPACE";
+    private final static String OTHER_AD_SPACE_NAME = "OTHER_FAKE_AD_SPACE";
+    private final static String WARM_AD_SPACE_NAME = "WARM_FAKE_AD_SPACE";
+    private final static int WRAPPED_ADAPTER_SIZE = 20;
+    private final static long REFILL_INTERVAL_MILLIS = 60000;
+    private final static long SESSION_POLL_MILLIS = 2000;
+
+    private Activity mActivity;
+    private TestAdFetcher mAdFetcher;
+
+    @Mock
+    FlurryNativeAdFetcher.FetchListener mMockFetchListener;
+
+    @Before
+    public void setUp() throws Exception {
+        mActivity = Robolectric.buildActivity(Activity.class).create().get();
+        MockitoAnnotations.initMocks(this);
+
+        mAdFetcher = new TestAdFetcher(mActivity);
+        mAdFetcher.setFetchListener(mMockFetchListener);
+        mAdFetcher.prefetchAds(AD_SPACE_NAME);
+    }
+
+    @Test
+    public void testOnFetched_afterDestroyAds() throws Exception {
+        FlurryAdNative flurryAdNative = requestAd();
+        FlurryAdNativeListener requestListener = getRequestListener(flurryAdNative);
+
+        mAdFetcher.destroyAds();
+        reset(flurryAdNative);
+        doReturn(true).when(flurryAdNative).isReady();
+        requestListener.onFetched(flurryAdNative);
+
+        // The late ad is discarded instead of queued
+        verify(flurryAdNative).destroy();
+        assertEquals(0, mAdFetcher.getQueuedAdsCount());
+        verify(mMockFetchListener, never()).onAdFetched();
+    }
+
+    @Test
+    public void testOnError_afterDestroyAds() throws Exception {
+        FlurryAdNative flurryAdNative = requestAd();
+        FlurryAdNativeListener requestListener = getRequestListener(flurryAdNative);
+        int requestCount = mAdFetcher.mRequestedAds.size();
+
+        mAdFetcher.destroyAds();
+        requestListener.onError(flurryAdNative, FlurryAdErrorType.FETCH, 0);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        // A retry would have started another request
+        assertEquals(requestCount, mAdFetcher.mRequestedAds.size());
+    }
+
+    @Test
+    public void testPopLoadedAd_whileFetching() throws Exception {
+        FlurryAdNative flurryAdNative = requestAd();
+        int requestCount = mAdFetcher.mRequestedAds.size();
+
+        assertNull(mAdFetcher.popLoadedAd());
+        assertNull(mAdFetcher.popLoadedAd(0));
+
+        // The background request in flight is neither replaced nor joined by another one
+        assertEquals(requestCount, mAdFetcher.mRequestedAds.size());
+        mAdFetcher.destroyAds();
+        verify(flurryAdNative).destroy();
+    }
+
+    @Test
+    public void testPopLoadedAdWithAssets_skipsExpiredAds() throws Exception {
+        FlurryAdNative expiredAd = requestAd();
+        getRequestListener(expiredAd).onFetched(expiredAd);
+        FlurryAdNative flurryAdNative = mAdFetcher.mRequestedAds.get(
+                mAdFetcher.mRequestedAds.size() - 1);
+        getRequestListener(flurryAdNative).onFetched(flurryAdNative);
+        assertEquals(2, mAdFetcher.getQueuedAdsCount());
+
+        doReturn(true).when(expiredAd).isExpired();
+
+        assertSame(flurryAdNative, mAdFetcher.popLoadedAd(0));
+        verify(expiredAd).destroy();
+        assertEquals(0, mAdFetcher.getQueuedAdsCount());
+    }
+
+    @Test
+    public void testPause_cancelsRetry() throws Exception {
+        FlurryAdNative flurryAdNative = requestAd();
+        getRequestListener(flurryAdNative).onError(flurryAdNative, FlurryAdErrorType.FETCH, 0);
+        int requestCount = mAdFetcher.mRequestedAds.size();
+
+        mAdFetcher.pause();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(requestCount, mAdFetcher.mRequestedAds.size());
+
+        // Nothing is in flight, so resuming requests right away
+        mAdFetcher.resume();
+        assertEquals(requestCount + 1, mAdFetcher.mRequestedAds.size());
+    }
+
+    @Test
+    public void testPause_cancelsPacedRefill() throws Exception {
+        mAdFetcher.setRefillInterval(REFILL_INTERVAL_MILLIS);
+        FlurryAdNative flurryAdNative = requestAd();
+        // The refill after this ad is paced, since it covers the next slot
+        getRequestListener(flurryAdNative).onFetched(flurryAdNative);
+        int requestCount = mAdFetcher.mRequestedAds.size();
+
+        mAdFetcher.pause();
+        ShadowLooper.idleMainLooper(REFILL_INTERVAL_MILLIS);
+
+        assertEquals(requestCount, mAdFetcher.mRequestedAds.size());
+        assertEquals(1, mAdFetcher.getQueuedAdsCount());
+    }
+
+    @Test
+    public void testResume_removesExpiredAds() throws Exception {
+        FlurryAdNative expiredAd = requestAd();
+        getRequestListener(expiredAd).onFetched(expiredAd);
+        FlurryAdNative flurryAdNative = mAdFetcher.mRequestedAds.get(
+                mAdFetcher.mRequestedAds.size() - 1);
+        getRequestListener(flurryAdNative).onFetched(flurryAdNative);
+        assertEquals(2, mAdFetcher.getQueuedAdsCount());
+
+        mAdFetcher.pause();
+        doReturn(true).when(expiredAd).isExpired();
+
+        assertEquals(1, mAdFetcher.resume());
+        verify(expiredAd).destroy();
+        assertEquals(1, mAdFetcher.getQueuedAdsCount());
+        assertSame(flurryAdNative, mAdFetcher.popLoadedAd());
+    }
+
+    @Test
+    public void testSessionStarted_wakesWaitingFetcher() throws Exception {
+        int requestCount = endSessionAfterFetch();
+
+        mAdFetcher.mSessionActive = true;
+        StreamAds.notifySessionStarted();
+
+        assertEquals(requestCount + 1, mAdFetcher.mRequestedAds.size());
+    }
+
+    @Test
+    public void testSessionStarted_polledWithoutNotification() throws Exception {
+        int requestCount = endSessionAfterFetch();
+
+        mAdFetcher.mSessionActive = true;
+        ShadowLooper.idleMainLooper(SESSION_POLL_MILLIS - 1);
+        assertEquals(requestCount, mAdFetcher.mRequestedAds.size());
+
+        ShadowLooper.idleMainLooper(1);
+        assertEquals(requestCount + 1, mAdFetcher.mRequestedAds.size());
+    }
+
+    @Test
+    public void testWarmUp_adoptedByFirstAdapter() throws Exception {
+        TestAdFetcher warmFetcher = new TestAdFetcher(mActivity);
+        StreamAds.warmUp(warmFetcher, WARM_AD_SPACE_NAME, 2);
+        // Popping starts the first request without waiting for the main thread to be idle
+        assertNull(warmFetcher.popLoadedAd());
+        FlurryAdNative firstAd = warmFetcher.mRequestedAds.get(0);
+        getRequestListener(firstAd).onFetched(firstAd);
+        FlurryAdNative secondAd = warmFetcher.mRequestedAds.get(1);
+        getRequestListener(secondAd).onFetched(secondAd);
+        assertEquals(2, warmFetcher.mRequestedAds.size());
+
+        FlurryBaseAdAdapter baseAdAdapter = createWarmAdSpaceAdapter();
+
+        // The queued ads are shown right away, and the adapter keeps more ads queued
+        assertEquals(2, baseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE));
+        assertSame(firstAd, baseAdAdapter.getAdForPosition(3));
+        assertEquals(3, warmFetcher.mRequestedAds.size());
+    }
+
+    @Test
+    public void testWarmUp_adoptedOnce() throws Exception {
+        TestAdFetcher warmFetcher = new TestAdFetcher(mActivity);
+        StreamAds.warmUp(warmFetcher, WARM_AD_SPACE_NAME, 1);
+        assertNull(warmFetcher.popLoadedAd());
+        FlurryAdNative flurryAdNative = warmFetcher.mRequestedAds.get(0);
+        getRequestListener(flurryAdNative).onFetched(flurryAdNative);
+        createWarmAdSpaceAdapter();
+
+        FlurryBaseAdAdapter baseAdAdapter = createWarmAdSpaceAdapter();
+
+        assertEquals(0, baseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE));
+        assertNull(StreamAds.adoptWarmFetcher(WARM_AD_SPACE_NAME));
+    }
+
+    @Test
+    public void testCancelWarmUp_destroysFetchedAds() throws Exception {
+        TestAdFetcher warmFetcher = new TestAdFetcher(mActivity);
+        StreamAds.warmUp(warmFetcher, WARM_AD_SPACE_NAME, 1);
+        assertNull(warmFetcher.popLoadedAd());
+        FlurryAdNative flurryAdNative = warmFetcher.mRequestedAds.get(0);
+        getRequestListener(flurryAdNative).onFetched(flurryAdNative);
+
+        StreamAds.cancelWarmUp(WARM_AD_SPACE_NAME);
+
+        verify(flurryAdNative).destroy();
+        assertEquals(0, warmFetcher.getQueuedAdsCount());
+        assertNull(StreamAds.adoptWarmFetcher(WARM_AD_SPACE_NAME));
+    }
+
+    @Test
+    public void testWarmUp_destroyedWhenMemoryIsLow() throws Exception {
+        TestAdFetcher warmFetcher = new TestAdFetcher(mActivity);
+        StreamAds.warmUp(warmFetcher, WARM_AD_SPACE_NAME, 1);
+        assertNull(warmFetcher.popLoadedAd());
+        FlurryAdNative flurryAdNative = warmFetcher.mRequestedAds.get(0);
+        getRequestListener(flurryAdNative).onFetched(flurryAdNative);
+
+        // Going to the background alone keeps the ads
+        StreamAds.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        verify(flurryAdNative, never()).destroy();
+
+        StreamAds.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+
+        verify(flurryAdNative).destroy();
+        assertNull(StreamAds.adoptWarmFetcher(WARM_AD_SPACE_NAME));
+    }
+
+    @Test
+    public void testRefreshAds_adSpaceName() throws Exception {
+        NativeAdAdapterListener mockAdapter = mock(NativeAdAdapterListener.class);
+        FlurryBaseAdAdapter baseAdAdapter = new FlurryBaseAdAdapter(mockAdapter);
+        baseAdAdapter.initAdFetcher(mActivity);
+        baseAdAdapter.injectMockAdFetcher(mAdFetcher);
+        baseAdAdapter.setFetchListener(mMockFetchListener);
+
+        FlurryAdNative staleAd = requestAd();
+        FlurryAdNativeListener staleRequestListener = getRequestListener(staleAd);
+        int requestCount = mAdFetcher.mRequestedAds.size();
+
+        baseAdAdapter.refreshAds(OTHER_AD_SPACE_NAME);
+        verify(mockAdapter).notifyDataSetChanged();
+
+        // The new ad space is requested right away, and the old request is ignored
+        assertEquals(requestCount + 1, mAdFetcher.mRequestedAds.size());
+        assertEquals(OTHER_AD_SPACE_NAME, mAdFetcher.mRequestedAdSpaceNames.get(requestCount));
+        FlurryAdNative flurryAdNative = mAdFetcher.mRequestedAds.get(requestCount);
+        staleRequestListener.onFetched(staleAd);
+        getRequestListener(flurryAdNative).onFetched(flurryAdNative);
+
+        verify(mMockFetchListener).onAdFetched();
+        assertEquals(1, baseAdAdapter.getNumberOfAds(WRAPPED_ADAPTER_SIZE));
+        assertSame(flurryAdNative, baseAdAdapter.getAdForPosition(3));
+    }
+
+    /**
+     * Creates a base adapter for the warmed up ad space, as the adapter builders do.
+     */
+    private FlurryBaseAdAdapter createWarmAdSpaceAdapter() {
+        FlurryBaseAdAdapter baseAdAdapter =
+                new FlurryBaseAdAdapter(mock(NativeAdAdapterListener.class));
+        baseAdAdapter.setAdSpaceName(WARM_AD_SPACE_NAME);
+        baseAdAdapter.initAdFetcher(mActivity);
+        return baseAdAdapter;
+    }
+
+    /**
+     * Starts a background request and returns the requested ad.
+     */
+    private FlurryAdNative requestAd() {
+        int requestCount = mAdFetcher.mRequestedAds.size();
+        // Popping replenishes the queue without waiting for the main thread to be idle
+        assertNull(mAdFetcher.popLoadedAd());
+        assertEquals(requestCount + 1, mAdFetcher.mRequestedAds.size());
+        return mAdFetcher.mRequestedAds.get(requestCount);
+    }
+
+    /**
+     * Fetches an ad while the session ends, so that the fetcher waits for the next session to
+     * replenish the queue. Returns the number of requests so far.
+     */
+    private int endSessionAfterFetch() {
+        FlurryAdNative flurryAdNative = requestAd();
+        int requestCount = mAdFetcher.mRequestedAds.size();
+
+        mAdFetcher.mSessionActive = false;
+        getRequestListener(flurryAdNative).onFetched(flurryAdNative);
+        assertEquals(1, mAdFetcher.getQueuedAdsCount());
+        assertEquals(requestCount, mAdFetcher.mRequestedAds.size());
+        return requestCount;
+    }
+
+    private static FlurryAdNativeListener getRequestListener(FlurryAdNative flurryAdNative) {
+        ArgumentCaptor<FlurryAdNativeListener> listenerCaptor =
+                ArgumentCaptor.forClass(FlurryAdNativeListener.class);
+        verify(flurryAdNative).setListener(listenerCaptor.capture());
+        return listenerCaptor.getValue();
+    }
+
+    interface NativeAdAdapterListener extends NativeAdAdapter,
+            FlurryBaseAdAdapter.ListAdapterDataListener {
+    }
+
+    /**
+     * Requests mock ads, which are ready once fetched, and acts as if the session is active unless
+     * told otherwise.
+     */
+    private static class TestAdFetcher extends FlurryNativeAdFetcher {
+        final List<FlurryAdNative> mRequestedAds = new ArrayList<>();
+        final List<String> mRequestedAdSpaceNames = new ArrayList<>();
+        boolean mSessionActive = true;
+
+        TestAdFetcher(Context context) {
+            super(context);
+        }
+
+        @Override
+        FlurryAdNative newFlurryAdNative(Context context, String adSpaceName) {
+            FlurryAdNative flurryAdNative = mock(FlurryAdNative.class);
+            doReturn(true).when(flurryAdNative).isReady();
+            mRequestedAds.add(flurryAdNative);
+            mRequestedAdSpaceNames.add(adSpaceName);
+            return flurryAdNative;
+        }
+
+        @Override
+        boolean isSessionActive() {
+            return mSessionActive;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015 Yahoo Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.mobile.library.streamads;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests the disk cache against a local HTTP server standing in for the ad image host.
+ */
+public class ImageDiskCacheTest extends TestCase {
+    private static final int IMAGE_SIZE = 100;
+
+    private HttpServer mServer;
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private File mDirectory;
+    private ImageDiskCache mDiskCache;
+
+    @Override
+    public void setUp() throws Exception {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mRequestCount.incrementAndGet();
+                if (exchange.getRequestURI().getPath().startsWith("/missing")) {
+                    exchange.sendResponseHeaders(404, -1);
+                    exchange.close();
+                    return;
+                }
+                exchange.sendResponseHeaders(200, IMAGE_SIZE);
+                OutputStream body = exchange.getResponseBody();
+                body.write(new byte[IMAGE_SIZE]);
+                body.close();
+            }
+        });
+        mServer.start();
+
+        mDirectory = File.createTempFile("images", "");
+        assertTrue(mDirectory.delete());
+        // Room for two images
+        mDiskCache = new ImageDiskCache(mDirectory, 2 * IMAGE_SIZE);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mServer.stop(0);
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private String getUrl(String path) {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + path;
+    }
+
+    public void testGetOrDownload_downloadsOnce() throws Exception {
+        assertNull(mDiskCache.get(getUrl("/logo.png")));
+
+        File file = mDiskCache.getOrDownload(getUrl("/logo.png"));
+        assertEquals(IMAGE_SIZE, file.length());
+        assertEquals(file, mDiskCache.getOrDownload(getUrl("/logo.png")));
+        assertEquals(file, mDiskCache.get(getUrl("/logo.png")));
+
+        assertEquals(1, mRequestCount.get());
+        assertEquals(IMAGE_SIZE, mDiskCache.getSize());
+    }
+
+    public void testGetOrDownload_evictsLeastRecentlyUsed() throws Exception {
+        File first = mDiskCache.getOrDownload(getUrl("/first.png"));
+        File second = mDiskCache.getOrDownload(getUrl("/second.png"));
+        // Least recently used after the first image is read again
+        assertTrue(second.setLastModified(first.lastModified() - 10000));
+        mDiskCache.get(getUrl("/first.png"));
+
+        mDiskCache.getOrDownload(getUrl("/third.png"));
+
+        assertNotNull(mDiskCache.get(getUrl("/first.png")));
+        assertNull(mDiskCache.get(getUrl("/second.png")));
+        assertNotNull(mDiskCache.get(getUrl("/third.png")));
+        assertEquals(2 * IMAGE_SIZE, mDiskCache.getSize());
+    }
+
+    public void testGetOrDownload_failedRequest() throws Exception {
+        try {
+            mDiskCache.getOrDownload(getUrl("/missing.png"));
+            fail("Expected an IOException");
+        } catch (IOException expected) {
+            // Nothing is cached for the failed request
+        }
+
+        assertNull(mDiskCache.get(getUrl("/missing.png")));
+        assertEquals(0, mDiskCache.getSize());
+    }
+
+    public void testGetSize_scansExistingFiles() throws Exception {
+        mDiskCache.getOrDownload(getUrl("/logo.png"));
+
+        ImageDiskCache reopenedCache = new ImageDiskCache(mDirectory, 2 * IMAGE_SIZE);
+        assertEquals(IMAGE_SIZE, reopenedCache.getSize());
+        assertNotNull(reopenedCache.get(getUrl("/logo.png")));
+    }
+}
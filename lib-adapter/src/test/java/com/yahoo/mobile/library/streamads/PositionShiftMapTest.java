@@ -0,0 +1,75 @@
+/*
+ * Copyright 2015 Yahoo Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.mobile.library.streamads;
+
+import junit.framework.TestCase;
+
+public class PositionShiftMapTest extends TestCase {
+    private PositionShiftMap mShiftMap;
+
+    @Override
+    public void setUp() throws Exception {
+        mShiftMap = new PositionShiftMap();
+    }
+
+    public void testIdentity() throws Exception {
+        assertTrue(mShiftMap.isIdentity());
+        assertEquals(7, mShiftMap.toLayoutPosition(7));
+        assertEquals(7, mShiftMap.toAdapterPosition(7));
+        assertEquals(0, mShiftMap.getLayoutDelta());
+    }
+
+    public void testInsert() throws Exception {
+        mShiftMap.insert(0, 2);
+
+        assertEquals(PositionShiftMap.NO_POSITION, mShiftMap.toLayoutPosition(0));
+        assertEquals(PositionShiftMap.NO_POSITION, mShiftMap.toLayoutPosition(1));
+        assertEquals(0, mShiftMap.nextLayoutPosition(1));
+        assertEquals(0, mShiftMap.toLayoutPosition(2));
+        assertEquals(2, mShiftMap.toAdapterPosition(0));
+        assertEquals(-2, mShiftMap.getLayoutDelta());
+    }
+
+    public void testRemove() throws Exception {
+        mShiftMap.remove(3, 2);
+
+        assertEquals(2, mShiftMap.toAdapterPosition(2));
+        assertEquals(PositionShiftMap.NO_POSITION, mShiftMap.toAdapterPosition(3));
+        assertEquals(PositionShiftMap.NO_POSITION, mShiftMap.toAdapterPosition(4));
+        assertEquals(3, mShiftMap.toAdapterPosition(5));
+        assertEquals(5, mShiftMap.toLayoutPosition(3));
+        assertEquals(2, mShiftMap.getLayoutDelta());
+    }
+
+    public void testInsertThenRemove() throws Exception {
+        mShiftMap.insert(3, 1);
+        mShiftMap.remove(3, 1);
+
+        assertTrue(mShiftMap.isIdentity());
+        assertEquals(0, mShiftMap.getLayoutDelta());
+    }
+
+    public void testCollapse() throws Exception {
+        mShiftMap.insert(0, 2);
+        mShiftMap.collapse(4);
+
+        // Rows after the collapsed row move up in both the adapter and the layout
+        assertEquals(1, mShiftMap.toLayoutPosition(3));
+        assertEquals(2, mShiftMap.toLayoutPosition(4));
+        assertEquals(4, mShiftMap.toAdapterPosition(2));
+    }
+}
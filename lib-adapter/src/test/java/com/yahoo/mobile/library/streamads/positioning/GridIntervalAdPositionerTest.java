@@ -0,0 +1,74 @@
+/*
+ * Copyright 2015 Yahoo Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.mobile.library.streamads.positioning;
+
+import android.util.SparseArray;
+
+import junit.framework.TestCase;
+
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+
+public class GridIntervalAdPositionerTest extends TestCase {
+    @Mock
+    SparseArray<Integer> mMockPrecedingSkippedMemo;
+
+    @Override
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        doReturn(0).when(mMockPrecedingSkippedMemo).get(anyInt());
+        doReturn(0).when(mMockPrecedingSkippedMemo).get(anyInt(), eq(0));
+    }
+
+    public void testCanPlaceAd() throws Exception {
+        // 3 columns, ads after 2 rows and then every 3 rows
+        GridIntervalAdPositioner positioner = new GridIntervalAdPositioner(3, 2, 3);
+        positioner.injectMockSkipMemo(mMockPrecedingSkippedMemo);
+
+        for (int i = 0; i <= 36; i++) {
+            if (i == 6) { assertTrue(positioner.canPlaceAd(i)); continue; }
+            if (i == 16) { assertTrue(positioner.canPlaceAd(i)); continue; }
+            if (i == 26) { assertTrue(positioner.canPlaceAd(i)); continue; }
+            if (i == 36) { assertTrue(positioner.canPlaceAd(i)); continue; }
+
+            assertFalse(positioner.canPlaceAd(i));
+        }
+    }
+
+    public void testGetAdIndex() throws Exception {
+        GridIntervalAdPositioner positioner = new GridIntervalAdPositioner(3, 2, 3);
+        positioner.injectMockSkipMemo(mMockPrecedingSkippedMemo);
+
+        assertEquals(0, positioner.getAdIndex(6));
+        assertEquals(1, positioner.getAdIndex(16));
+        assertEquals(2, positioner.getAdIndex(26));
+    }
+
+    public void testGetOriginalPosition() throws Exception {
+        GridIntervalAdPositioner positioner = new GridIntervalAdPositioner(3, 2, 3);
+        positioner.injectMockSkipMemo(mMockPrecedingSkippedMemo);
+
+        // Content after the first ad starts a new row
+        assertEquals(6, positioner.getOriginalPosition(7, 2));
+        assertEquals(15, positioner.getOriginalPosition(17, 2));
+    }
+}